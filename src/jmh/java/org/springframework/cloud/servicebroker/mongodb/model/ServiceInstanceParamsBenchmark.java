@@ -0,0 +1,68 @@
+package org.springframework.cloud.servicebroker.mongodb.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.cloud.servicebroker.model.CreateServiceInstanceRequest;
+import org.springframework.cloud.servicebroker.model.ServiceDefinition;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig.ServicePlan;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+
+/**
+ * Parsing of a create request into instance parameters: the request parameter lookup
+ * through {@link ServiceInstanceParams.ObjVars}, the plan lookup and the plan metadata
+ * that follows.
+ */
+@State(Scope.Benchmark)
+public class ServiceInstanceParamsBenchmark {
+
+	private final MongoConfig config = new MongoConfig();
+
+	private CreateServiceInstanceRequest request;
+
+	private Map<String, Object> planMetadata;
+
+	@Setup
+	public void setup() {
+		ServiceDefinition serviceDefinition = new CatalogConfig().catalog()
+				.getServiceDefinitions().get(0);
+		String planId = serviceDefinition.getPlans()
+				.get(serviceDefinition.getPlans().size() - 1).getId();
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("token", "token");
+		parameters.put("namespace", "mongodb");
+		parameters.put("service_name", "mongo-benchmark");
+		parameters.put("master_url", "https://k8s.example.com:6443");
+		parameters.put("expose_port", "31017");
+		parameters.put("unrelated", "value");
+		request = new CreateServiceInstanceRequest(serviceDefinition.getId(), planId,
+				"org-guid", "space-guid", parameters)
+						.withServiceInstanceId("service-instance-id")
+						.withServiceDefinition(serviceDefinition);
+		planMetadata = ServicePlan.PLATINUM.getMetadata();
+	}
+
+	@Benchmark
+	public ServiceInstanceParams fromRequest() {
+		return new ServiceInstanceParams(request, config);
+	}
+
+	@Benchmark
+	public ServiceInstanceParams fromPlanMetadata() {
+		return new ServiceInstanceParams(config, planMetadata);
+	}
+
+	@Benchmark
+	public void parameterLookup(Blackhole blackhole) {
+		for (String key : request.getParameters().keySet()) {
+			blackhole.consume(ServiceInstanceParams.ObjVars.getObj(key));
+		}
+	}
+
+}
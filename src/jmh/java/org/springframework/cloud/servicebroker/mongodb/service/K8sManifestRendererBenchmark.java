@@ -0,0 +1,51 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoK8sService.K8sObject;
+
+import freemarker.template.Configuration;
+import freemarker.template.TemplateException;
+
+/**
+ * Rendering of each k8s template, in both manifest formats. The instance's manifests
+ * are evicted before every render, so the cache is never hit.
+ */
+@State(Scope.Benchmark)
+public class K8sManifestRendererBenchmark {
+
+	@Param({ "DISCOVERY_SERVICE", "HEADLESS_SERVICE", "STATEFULSET", "CONFIGMAP",
+			"STORAGE_CLASS" })
+	private String object;
+
+	@Param({ "json", "yaml" })
+	private String format;
+
+	private K8sObject k8sObject;
+
+	private K8sManifestRenderer renderer;
+
+	private ServiceInstanceParams params;
+
+	@Setup
+	public void setup() throws IOException {
+		k8sObject = K8sObject.valueOf(object);
+		renderer = new K8sManifestRenderer(
+				new Configuration(Configuration.VERSION_2_3_23), format);
+		params = new ServiceInstanceParams("mongodb", "mongo-benchmark", "token",
+				"https://k8s.example.com:6443", 31017, 30, "128Mi", 3);
+	}
+
+	@Benchmark
+	public String render() throws IOException, TemplateException {
+		renderer.evict(params);
+		return renderer.render(k8sObject, params).getBody();
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+/**
+ * Building the connection strings handed out with bindings, for an instance cluster
+ * and for the broker's own replica set. No server needs to be running: the client
+ * only reports its seed list.
+ */
+@State(Scope.Benchmark)
+public class MongoAdminServiceBenchmark {
+
+	private MongoClient client;
+
+	private MongoAdminService mongo;
+
+	private ServiceInstanceParams cluster;
+
+	@Setup
+	public void setup() {
+		MongoConfig config = new MongoConfig();
+		new DirectFieldAccessor(config).setPropertyValue("host", "mongo.example.com");
+		client = new MongoClient(Arrays.asList(new ServerAddress("127.0.0.1", 27017),
+				new ServerAddress("127.0.0.1", 27018),
+				new ServerAddress("127.0.0.1", 27019)));
+		mongo = new MongoAdminService(client, new MongoClientCache(config));
+		cluster = new ServiceInstanceParams("mongodb", "mongo-benchmark", "token",
+				"https://k8s.example.com:6443", 31017, 30, "128Mi", 3);
+		// the first call waits for the cluster description
+		client.getAllAddress();
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public String clusterConnectionString() {
+		return mongo.getConnectionString(cluster, "service-instance-id", "binding-id",
+				"password");
+	}
+
+	@Benchmark
+	public String connectionString() {
+		return mongo.getConnectionString("service-instance-id", "binding-id",
+				"password");
+	}
+
+	@Benchmark
+	public String serverAddresses() {
+		return mongo.getServerAddresses();
+	}
+
+}
@@ -20,17 +20,25 @@ public class CatalogConfig {
     public static final String UNIT = "unit";
     public static final String STORAGE = "storage";
     public static final String REPLICAS = "replicas";
+    public static final String READY_TIMEOUT = "ready_timeout";
+    public static final String MATERIALIZATION = "materialization";
+    public static final String COLLECTION = "collection";
+    public static final String BLOCK_COMPRESSOR = "block_compressor";
+    public static final String SHARED = "shared";
+    public static final String TENANT_SIZE = "tenant_size";
+    public static final String CONNECTION_OPTIONS = "connection_options";
     public static final String CURRENCY = "usd";
 
     enum ServicePlanIdentifier {
-        D, G, P
+        D, G, P, S
     }
 
     public enum ServicePlan {
 
         DEFAULT("default", "default", "This is a default mongo free plan", true, true, getPlanMetadata(D)),
         GOLD("gold", "gold", "This is a paid mongo plan", false, true, getPlanMetadata(G)),
-        PLATINUM("platinum", "platinum", "This is a paid premium mongo plan", false, true, getPlanMetadata(P));
+        PLATINUM("platinum", "platinum", "This is a paid premium mongo plan", false, true, getPlanMetadata(P)),
+        DENSE("dense", "dense", "A mongo database on a shared replica set", false, true, getPlanMetadata(S));
 
         ServicePlan(String id, String name, String description, boolean free, boolean bindable,
                     Map<String, Object> metadata) {
@@ -63,6 +71,10 @@ public class CatalogConfig {
                     costsMap.put(UNIT, "MONTHLY");
                     costsMap.put(STORAGE, "128Mi");
                     costsMap.put(REPLICAS, "1");
+                    costsMap.put(READY_TIMEOUT, "120");
+                    costsMap.put(MATERIALIZATION, "collection");
+                    costsMap.put(BLOCK_COMPRESSOR, "snappy");
+                    costsMap.put(CONNECTION_OPTIONS, "maxPoolSize=10&compressors=snappy,zlib");
                     bulletsList = Arrays.asList("128Mi Storage (enforced)", "Single instance");
                     break;
                 case G:
@@ -74,6 +86,11 @@ public class CatalogConfig {
                     costsMap.put(UNIT, "MONTHLY");
                     costsMap.put(STORAGE, "1Gi");
                     costsMap.put(REPLICAS, "3");
+                    costsMap.put(READY_TIMEOUT, "300");
+                    costsMap.put(MATERIALIZATION, "collection");
+                    costsMap.put(BLOCK_COMPRESSOR, "zlib");
+                    costsMap.put(CONNECTION_OPTIONS,
+                            "w=majority&maxPoolSize=50&compressors=snappy,zlib");
                     bulletsList = Arrays.asList("1Gi Storage (enforced)", "3 instances");
                     break;
                 case P:
@@ -85,8 +102,32 @@ public class CatalogConfig {
                     costsMap.put(UNIT, "MONTHLY");
                     costsMap.put(STORAGE, "10Gi");
                     costsMap.put(REPLICAS, "5");
+                    costsMap.put(READY_TIMEOUT, "600");
+                    costsMap.put(MATERIALIZATION, "collection");
+                    costsMap.put(BLOCK_COMPRESSOR, "zlib");
+                    costsMap.put(CONNECTION_OPTIONS,
+                            "w=majority&maxPoolSize=100&compressors=snappy,zlib");
                     bulletsList = Arrays.asList("10Gi Storage (enforced)", "5 instances");
                     break;
+                case S:
+                    costsMap.put(AMOUNT, new HashMap<String, Object>() {
+                        {
+                            put(CURRENCY, 10.0);
+                        }
+                    });
+                    costsMap.put(UNIT, "MONTHLY");
+                    // storage and replicas of the shared replica sets, not of a tenant
+                    costsMap.put(STORAGE, "20Gi");
+                    costsMap.put(REPLICAS, "3");
+                    costsMap.put(READY_TIMEOUT, "300");
+                    costsMap.put(MATERIALIZATION, "collection");
+                    costsMap.put(BLOCK_COMPRESSOR, "zlib");
+                    costsMap.put(SHARED, "true");
+                    costsMap.put(TENANT_SIZE, "256Mi");
+                    // tenants share the connections of a cluster
+                    costsMap.put(CONNECTION_OPTIONS, "w=majority&maxPoolSize=5&compressors=snappy,zlib");
+                    bulletsList = Arrays.asList("256Mi Storage (reserved)", "Shared 3 instance replica set");
+                    break;
             }
             planMetadata.put(COSTS, Collections.singletonList(costsMap));
             planMetadata.put(BULLETS, bulletsList);
@@ -116,16 +157,32 @@ public class CatalogConfig {
         public boolean isBindable() {
             return bindable;
         }
+
+        /**
+         * @return whether instances of the plan are databases on the shared clusters
+         */
+        @SuppressWarnings("unchecked")
+        public boolean isShared() {
+            List<Map<String, Object>> costs = (List<Map<String, Object>>) metadata.get(COSTS);
+            return "true".equals(costs.get(0).get(SHARED));
+        }
     }
 
     @Value("${service.id:mongodb}")
     private String serviceId;
 
+    @Value("${mongodb.shared.size:0}")
+    private int sharedClusters;
+
     @Bean
     public Catalog catalog() {
 
         List<Plan> planList = new ArrayList<>();
         for (ServicePlan plan : ServicePlan.values()) {
+            if (plan.isShared() && sharedClusters <= 0) {
+                // no shared clusters are kept to place its instances on
+                continue;
+            }
             planList.add(new Plan(serviceId + plan.getId(), plan.getName(),
                     plan.getDescription(), plan.getMetadata(), plan.isFree(), plan.isBindable()));
         }
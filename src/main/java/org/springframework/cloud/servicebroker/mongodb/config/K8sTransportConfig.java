@@ -0,0 +1,307 @@
+package org.springframework.cloud.servicebroker.mongodb.config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NHttpConnectionFactory;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * HTTP transport used by the broker to talk to Kubernetes masters. The transport is
+ * selected with {@code mongodb.k8s.transport}: {@code pooled} (default) keeps
+ * keep-alive connections per master URL on top of a single SSL context so that TLS
+ * sessions are resumed, {@code simple} opens a new connection for every call.
+ * <p>
+ * Besides the blocking request factory there is an asynchronous one for the
+ * provisioning path. With the pooled transport it is backed by a non-blocking client
+ * whose {@code mongodb.k8s.io-threads} I/O threads serve any number of outstanding
+ * requests; with the simple transport requests are run on a small task executor.
+ */
+@Configuration
+public class K8sTransportConfig {
+
+	public static final String K8S_REQUEST_FACTORY = "k8sRequestFactory";
+
+	public static final String K8S_ASYNC_REQUEST_FACTORY = "k8sAsyncRequestFactory";
+
+	@Value("${mongodb.k8s.pool.max-total:100}")
+	private int maxTotal;
+
+	@Value("${mongodb.k8s.pool.max-per-route:20}")
+	private int maxPerRoute;
+
+	@Value("${mongodb.k8s.pool.idle-timeout:60}")
+	private long idleTimeout;
+
+	@Value("${mongodb.k8s.connect-timeout:5000}")
+	private int connectTimeout;
+
+	@Value("${mongodb.k8s.read-timeout:0}")
+	private int readTimeout;
+
+	@Value("${mongodb.k8s.io-threads:2}")
+	private int ioThreads;
+
+	private static final SSLContext TRUST_EVERYTHING = getSslContext(
+			new TrustEverythingTrustManager());
+
+	@Bean
+	public K8sTransportMetrics k8sTransportMetrics() {
+		return new K8sTransportMetrics();
+	}
+
+	@Bean(name = K8S_REQUEST_FACTORY)
+	@ConditionalOnProperty(name = "mongodb.k8s.transport", havingValue = "pooled", matchIfMissing = true)
+	public ClientHttpRequestFactory pooledK8sRequestFactory(
+			K8sTransportMetrics metrics) {
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder
+				.<ConnectionSocketFactory>create()
+				.register("http", new CountingPlainSocketFactory(metrics))
+				.register("https", new CountingSslSocketFactory(metrics)).build();
+		// routes are keyed by scheme, host and port, i.e. one pool per master URL
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+				registry);
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		metrics.setPoolStats(connectionManager::getTotalStats);
+
+		HttpRequestInterceptor countRequests = (request, context) -> metrics
+				.requestSent();
+		CloseableHttpClient httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout)
+						.build())
+				.addInterceptorFirst(countRequests)
+				.evictExpiredConnections()
+				.evictIdleConnections(idleTimeout, TimeUnit.SECONDS).build();
+		return new HttpComponentsClientHttpRequestFactory(httpClient);
+	}
+
+	@Bean(name = K8S_REQUEST_FACTORY)
+	@ConditionalOnProperty(name = "mongodb.k8s.transport", havingValue = "simple")
+	public ClientHttpRequestFactory simpleK8sRequestFactory(K8sTransportMetrics metrics) {
+		TrustEverythingClientHttpRequestFactory factory = new TrustEverythingClientHttpRequestFactory(
+				metrics);
+		factory.setConnectTimeout(connectTimeout);
+		factory.setReadTimeout(readTimeout);
+		return factory;
+	}
+
+	@Bean(name = K8S_ASYNC_REQUEST_FACTORY)
+	@ConditionalOnProperty(name = "mongodb.k8s.transport", havingValue = "pooled", matchIfMissing = true)
+	public AsyncClientHttpRequestFactory pooledK8sAsyncRequestFactory(
+			K8sTransportMetrics metrics) throws IOReactorException {
+		ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig
+				.custom().setIoThreadCount(ioThreads).setConnectTimeout(connectTimeout)
+				.setSoTimeout(readTimeout).build());
+		Registry<SchemeIOSessionStrategy> registry = RegistryBuilder
+				.<SchemeIOSessionStrategy>create()
+				.register("http", NoopIOSessionStrategy.INSTANCE)
+				.register("https", new SSLIOSessionStrategy(TRUST_EVERYTHING,
+						new TrustEverythingHostNameVerifier()))
+				.build();
+		NHttpConnectionFactory<ManagedNHttpClientConnection> countingConnections = (
+				session, config) -> {
+			metrics.connectionOpened();
+			return ManagedNHttpClientConnectionFactory.INSTANCE.create(session, config);
+		};
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+				ioReactor, countingConnections, registry);
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		metrics.setAsyncPoolStats(connectionManager::getTotalStats);
+
+		HttpRequestInterceptor countRequests = (request, context) -> metrics
+				.requestSent();
+		CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout)
+						.build())
+				.addInterceptorFirst(countRequests).build();
+		return new HttpComponentsAsyncClientHttpRequestFactory(httpClient);
+	}
+
+	@Bean(name = K8S_ASYNC_REQUEST_FACTORY)
+	@ConditionalOnProperty(name = "mongodb.k8s.transport", havingValue = "simple")
+	public AsyncClientHttpRequestFactory simpleK8sAsyncRequestFactory(
+			K8sTransportMetrics metrics) {
+		TrustEverythingClientHttpRequestFactory factory = new TrustEverythingClientHttpRequestFactory(
+				metrics);
+		factory.setConnectTimeout(connectTimeout);
+		factory.setReadTimeout(readTimeout);
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(ioThreads);
+		executor.setThreadNamePrefix("k8s-io-");
+		executor.setDaemon(true);
+		executor.initialize();
+		factory.setTaskExecutor(executor);
+		return factory;
+	}
+
+	private static SSLContext getSslContext(TrustManager trustManager) {
+		try {
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, new TrustManager[] { trustManager }, null);
+			return sslContext;
+		}
+		catch (KeyManagementException | NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class CountingPlainSocketFactory
+			extends PlainConnectionSocketFactory {
+
+		private final K8sTransportMetrics metrics;
+
+		CountingPlainSocketFactory(K8sTransportMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+				InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+				HttpContext context) throws IOException {
+			metrics.connectionOpened();
+			return super.connectSocket(connectTimeout, socket, host, remoteAddress,
+					localAddress, context);
+		}
+
+	}
+
+	private static final class CountingSslSocketFactory
+			extends SSLConnectionSocketFactory {
+
+		private final K8sTransportMetrics metrics;
+
+		CountingSslSocketFactory(K8sTransportMetrics metrics) {
+			super(TRUST_EVERYTHING, new TrustEverythingHostNameVerifier());
+			this.metrics = metrics;
+		}
+
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+				InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+				HttpContext context) throws IOException {
+			metrics.connectionOpened();
+			return super.connectSocket(connectTimeout, socket, host, remoteAddress,
+					localAddress, context);
+		}
+
+		@Override
+		protected void prepareSocket(SSLSocket socket) throws IOException {
+			long start = System.currentTimeMillis();
+			socket.addHandshakeCompletedListener(event -> metrics.handshakeCompleted(
+					event.getSession().getCreationTime() < start));
+		}
+
+	}
+
+	private static final class TrustEverythingClientHttpRequestFactory
+			extends SimpleClientHttpRequestFactory {
+
+		private final K8sTransportMetrics metrics;
+
+		TrustEverythingClientHttpRequestFactory(K8sTransportMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected HttpURLConnection openConnection(URL url, Proxy proxy)
+				throws IOException {
+			HttpURLConnection connection = super.openConnection(url, proxy);
+			metrics.requestSent();
+			metrics.connectionOpened();
+
+			if (connection instanceof HttpsURLConnection) {
+				HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+
+				httpsConnection.setSSLSocketFactory(TRUST_EVERYTHING.getSocketFactory());
+				httpsConnection
+						.setHostnameVerifier(new TrustEverythingHostNameVerifier());
+			}
+
+			return connection;
+		}
+
+	}
+
+	private static final class TrustEverythingHostNameVerifier
+			implements HostnameVerifier {
+
+		@Override
+		public boolean verify(String s, SSLSession sslSession) {
+			return true;
+		}
+
+	}
+
+	private static final class TrustEverythingTrustManager implements X509TrustManager {
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] x509Certificates, String s) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] x509Certificates, String s) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+
+	}
+
+}
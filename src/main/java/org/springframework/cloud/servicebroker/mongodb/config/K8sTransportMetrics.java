@@ -0,0 +1,103 @@
+package org.springframework.cloud.servicebroker.mongodb.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.pool.PoolStats;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Counters for the HTTP transport used to talk to the Kubernetes API. Published
+ * under {@code k8s.transport.*} on the metrics endpoint.
+ */
+public class K8sTransportMetrics implements PublicMetrics {
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+	private volatile PoolStatsSource poolStats;
+	private volatile PoolStatsSource asyncPoolStats;
+
+	void requestSent() {
+		requests.incrementAndGet();
+	}
+
+	void connectionOpened() {
+		connectionsOpened.incrementAndGet();
+	}
+
+	void handshakeCompleted(boolean resumed) {
+		handshakes.incrementAndGet();
+		if (resumed) {
+			resumedHandshakes.incrementAndGet();
+		}
+	}
+
+	void setPoolStats(PoolStatsSource poolStats) {
+		this.poolStats = poolStats;
+	}
+
+	void setAsyncPoolStats(PoolStatsSource asyncPoolStats) {
+		this.asyncPoolStats = asyncPoolStats;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/**
+	 * @return requests that were served on an already open connection
+	 */
+	public long getConnectionsReused() {
+		return Math.max(0, requests.get() - connectionsOpened.get());
+	}
+
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("k8s.transport.requests", getRequests()));
+		metrics.add(new Metric<>("k8s.transport.connections.opened",
+				getConnectionsOpened()));
+		metrics.add(new Metric<>("k8s.transport.connections.reused",
+				getConnectionsReused()));
+		metrics.add(new Metric<>("k8s.transport.tls.handshakes", getHandshakes()));
+		metrics.add(new Metric<>("k8s.transport.tls.handshakes.resumed",
+				getResumedHandshakes()));
+		addPoolStats(metrics, "k8s.transport.pool", poolStats);
+		addPoolStats(metrics, "k8s.transport.async.pool", asyncPoolStats);
+		return metrics;
+	}
+
+	private static void addPoolStats(List<Metric<?>> metrics, String prefix,
+			PoolStatsSource source) {
+		if (source != null) {
+			PoolStats stats = source.getTotalStats();
+			metrics.add(new Metric<>(prefix + ".leased", stats.getLeased()));
+			metrics.add(new Metric<>(prefix + ".available", stats.getAvailable()));
+			metrics.add(new Metric<>(prefix + ".pending", stats.getPending()));
+		}
+	}
+
+	interface PoolStatsSource {
+
+		PoolStats getTotalStats();
+
+	}
+
+}
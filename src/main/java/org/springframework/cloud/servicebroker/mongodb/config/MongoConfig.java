@@ -1,6 +1,7 @@
 package org.springframework.cloud.servicebroker.mongodb.config;
 
 import java.util.Arrays;
+import java.util.List;
 
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.beans.factory.annotation.Value;
@@ -9,6 +10,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
 
@@ -46,16 +48,86 @@ public class MongoConfig {
     @Value("${mongodb.service.timeout:30}")
     private long serviceTimeout;
 
+    @Value("${mongodb.service.ready-timeout:120}")
+    private long readyTimeout;
+
+    @Value("${mongodb.client.max-pool-size:100}")
+    private int maxPoolSize = 100;
+
+    @Value("${mongodb.client.min-pool-size:0}")
+    private int minPoolSize = 0;
+
+    @Value("${mongodb.client.wait-queue-multiple:5}")
+    private int waitQueueMultiple = 5;
+
+    @Value("${mongodb.client.max-wait-time:120000}")
+    private int maxWaitTime = 120000;
+
+    @Value("${mongodb.client.connect-timeout:10000}")
+    private int connectTimeout = 10000;
+
+    @Value("${mongodb.client.socket-timeout:0}")
+    private int socketTimeout = 0;
+
+    @Value("${mongodb.client.server-selection-timeout:30000}")
+    private int serverSelectionTimeout = 30000;
+
+    @Value("${mongodb.client.heartbeat-frequency:10000}")
+    private int heartbeatFrequency = 10000;
+
+    @Value("${mongodb.client.max-connection-idle-time:0}")
+    private int maxConnectionIdleTime = 0;
+
 	@Bean
 	public MongoClient mongoClient() {
-		final MongoCredential credential = MongoCredential.createScramSha1Credential(username, authSource, password.toCharArray());
-		return new MongoClient(new ServerAddress(host, port), Arrays.asList(credential));
+		return new MongoClient(new ServerAddress(host, port), getCredentials(),
+				clientOptions().build());
 	}
 
+    /**
+     * @return the options of the broker's clients as set by the {@code mongodb.client.*}
+     * properties: pool size, wait queue, timeouts in milliseconds and heartbeat
+     * frequency. Clients of instance clusters start from these and size their own pool.
+     */
+    public MongoClientOptions.Builder clientOptions() {
+        return MongoClientOptions.builder()
+                .connectionsPerHost(maxPoolSize)
+                .minConnectionsPerHost(minPoolSize)
+                .threadsAllowedToBlockForConnectionMultiplier(waitQueueMultiple)
+                .maxWaitTime(maxWaitTime)
+                .connectTimeout(connectTimeout)
+                .socketTimeout(socketTimeout)
+                .serverSelectionTimeout(serverSelectionTimeout)
+                .heartbeatFrequency(heartbeatFrequency)
+                .maxConnectionIdleTime(maxConnectionIdleTime);
+    }
+
+    /**
+     * @return the admin credentials, which are the same for every instance cluster
+     */
+    public List<MongoCredential> getCredentials() {
+        return Arrays.asList(MongoCredential.createScramSha1Credential(username, authSource, password.toCharArray()));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
     public int getPort() {
         return port;
     }
 
+    /**
+     * @return the name of the admin user the broker connects to instance clusters as
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
     public String getAccessToken() {
         return accessToken;
     }
@@ -75,4 +147,8 @@ public class MongoConfig {
     public long getServiceTimeout() {
         return serviceTimeout;
     }
+
+    public long getReadyTimeout() {
+        return readyTimeout;
+    }
 }
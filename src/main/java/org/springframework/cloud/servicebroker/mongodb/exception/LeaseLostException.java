@@ -0,0 +1,16 @@
+package org.springframework.cloud.servicebroker.mongodb.exception;
+
+/**
+ * Exception thrown when a broker replica records a change to an operation whose lease
+ * it has lost, because another replica took the operation over. The operation has to
+ * stop where it is and leave the rest to its new owner.
+ */
+public class LeaseLostException extends ServiceBrokerConcurrencyException {
+
+	private static final long serialVersionUID = -3371858624806453906L;
+
+	public LeaseLostException(String message) {
+		super(message);
+	}
+
+}
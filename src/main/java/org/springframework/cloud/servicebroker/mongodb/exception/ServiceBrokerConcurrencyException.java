@@ -0,0 +1,19 @@
+package org.springframework.cloud.servicebroker.mongodb.exception;
+
+import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
+
+/**
+ * Exception thrown when a request conflicts with an operation that is still in progress
+ * for the same service instance. It is answered with 422 Unprocessable Entity and the
+ * ConcurrencyError code, after which the platform retries the request later.
+ *
+ */
+public class ServiceBrokerConcurrencyException extends ServiceBrokerException {
+
+	private static final long serialVersionUID = 2470374981402457128L;
+
+	public ServiceBrokerConcurrencyException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.springframework.cloud.servicebroker.mongodb.exception;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerExceptionResolver;
+import org.springframework.web.servlet.ModelAndView;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Maps broker exceptions that need a status other than the generic 500 to their
+ * service broker API responses. The broker controllers handle every exception
+ * themselves, so this resolver runs ahead of them.
+ */
+@Component
+public class ServiceBrokerExceptionResolver implements HandlerExceptionResolver, Ordered {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(ServiceBrokerExceptionResolver.class);
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Override
+	public ModelAndView resolveException(HttpServletRequest request,
+			HttpServletResponse response, Object handler, Exception ex) {
+		if (ex instanceof ServiceBrokerOverloadedException) {
+			response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(
+					((ServiceBrokerOverloadedException) ex).getRetryAfter()));
+			return write(response, HttpStatus.SERVICE_UNAVAILABLE, null, ex);
+		}
+		if (ex instanceof ServiceBrokerConcurrencyException) {
+			return write(response, HttpStatus.UNPROCESSABLE_ENTITY, "ConcurrencyError",
+					ex);
+		}
+		return null;
+	}
+
+	private ModelAndView write(HttpServletResponse response, HttpStatus status,
+			String error, Exception ex) {
+		Map<String, String> body = new LinkedHashMap<>();
+		if (error != null) {
+			body.put("error", error);
+		}
+		body.put("description", ex.getMessage());
+		response.setStatus(status.value());
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		try {
+			mapper.writeValue(response.getOutputStream(), body);
+		}
+		catch (IOException io) {
+			LOGGER.warn("Unable to write error response: " + io.getMessage());
+		}
+		return new ModelAndView();
+	}
+
+	@Override
+	public int getOrder() {
+		return Ordered.HIGHEST_PRECEDENCE;
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.springframework.cloud.servicebroker.mongodb.exception;
+
+import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
+
+/**
+ * Exception thrown when the broker cannot accept more asynchronous operations, or when
+ * the Kubernetes API it would have to call is unavailable. It is answered with 503
+ * Service Unavailable and a Retry-After header so that the platform backs off and retries
+ * the request later.
+ *
+ */
+public class ServiceBrokerOverloadedException extends ServiceBrokerException {
+
+	private static final long serialVersionUID = -3870213367150716498L;
+
+	private final long retryAfter;
+
+	public ServiceBrokerOverloadedException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return seconds after which the request may be retried
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+}
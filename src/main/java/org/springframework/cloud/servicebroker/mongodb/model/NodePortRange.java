@@ -0,0 +1,54 @@
+package org.springframework.cloud.servicebroker.mongodb.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Allocation bitmap of a node port range: bit {@code i} of the range is bit
+ * {@code i % 64} of {@code words[i / 64]} and is set while port {@code start + i} is
+ * allocated. Words are updated individually with compare-and-set, so allocations in
+ * different words do not conflict.
+ */
+@Document
+public class NodePortRange {
+
+	private String id;
+	private int start;
+	private int end;
+	private List<Long> words;
+
+	@SuppressWarnings("unused")
+	private NodePortRange() {
+	}
+
+	public NodePortRange(int start, int end) {
+		this.id = start + "-" + end;
+		this.start = start;
+		this.end = end;
+		this.words = new ArrayList<>(Collections.nCopies(wordCount(start, end), 0L));
+	}
+
+	public static int wordCount(int start, int end) {
+		return (end - start + 64) / 64;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public List<Long> getWords() {
+		return words;
+	}
+
+}
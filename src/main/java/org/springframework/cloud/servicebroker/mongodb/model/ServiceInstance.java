@@ -1,6 +1,7 @@
 package org.springframework.cloud.servicebroker.mongodb.model;
 
 import java.util.Map;
+import java.util.Objects;
 
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceRequest;
 import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceRequest;
@@ -140,10 +141,27 @@ public class ServiceInstance {
 		return instanceParams;
 	}
 
+	/**
+	 * @return whether the other instance was requested with the same service, plan,
+	 * org, space and parameters
+	 */
+	public boolean isSameRequestAs(ServiceInstance other) {
+		return Objects.equals(serviceDefinitionId, other.serviceDefinitionId)
+				&& Objects.equals(planId, other.planId)
+				&& Objects.equals(organizationGuid, other.organizationGuid)
+				&& Objects.equals(spaceGuid, other.spaceGuid)
+				&& Objects.equals(parameters, other.parameters);
+	}
+
 	public ServiceInstance and() {
 		return this;
 	}
 
+	public ServiceInstance withInstanceParams(ServiceInstanceParams instanceParams) {
+		this.instanceParams = instanceParams;
+		return this;
+	}
+
 	public ServiceInstance withDashboardUrl(String dashboardUrl) {
 		this.dashboardUrl = dashboardUrl;
 		return this;
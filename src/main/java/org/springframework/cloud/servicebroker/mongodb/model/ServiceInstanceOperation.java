@@ -0,0 +1,162 @@
+package org.springframework.cloud.servicebroker.mongodb.model;
+
+import java.util.Date;
+
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * The last asynchronous operation on a service instance, as reported by
+ * getLastOperation. The operation is checkpointed after every completed step and
+ * carries the instance it works on, so that it can be resumed or rolled back after a
+ * broker restart. While in progress it is leased to the broker replica running it.
+ * Instances are immutable; every change produces a copy.
+ */
+@Document
+@CompoundIndex(def = "{'state': 1, 'leaseExpires': 1}")
+public class ServiceInstanceOperation {
+
+	public enum Type {
+		CREATE, DELETE
+	}
+
+	/**
+	 * Steps of an operation, in the order they complete. Create operations go through
+	 * the port, K8s, pod, database and repository steps; delete operations through the
+	 * database, repository and K8s deletion steps.
+	 */
+	public enum Step {
+		STARTED, PORT_ALLOCATED, K8S_OBJECTS_CREATED, POD_RUNNING, DATABASE_CREATED, REPOSITORY_SAVED,
+		DATABASE_DELETED, REPOSITORY_DELETED, K8S_OBJECTS_DELETED
+	}
+
+	private String id;
+	private Type type;
+	private OperationState state;
+	private Step step;
+	private String description;
+	private ServiceInstance instance;
+	private Date updated;
+	private String owner;
+	private Date leaseEpoch;
+	private Date leaseExpires;
+
+	@SuppressWarnings("unused")
+	private ServiceInstanceOperation() {
+	}
+
+	public ServiceInstanceOperation(ServiceInstance instance, Type type,
+			OperationState state, String description) {
+		this(instance, type, state, Step.STARTED, description);
+	}
+
+	private ServiceInstanceOperation(ServiceInstance instance, Type type,
+			OperationState state, Step step, String description) {
+		this.id = instance.getServiceInstanceId();
+		this.instance = instance;
+		this.type = type;
+		this.state = state;
+		this.step = step;
+		this.description = description;
+		this.updated = new Date();
+	}
+
+	private ServiceInstanceOperation(ServiceInstanceOperation operation,
+			OperationState state, Step step, String description) {
+		this(operation.instance, operation.type, state, step, description);
+		this.owner = operation.owner;
+		this.leaseEpoch = operation.leaseEpoch;
+		this.leaseExpires = operation.leaseExpires;
+	}
+
+	public String getServiceInstanceId() {
+		return id;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public OperationState getState() {
+		return state;
+	}
+
+	public Step getStep() {
+		return step;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public ServiceInstance getInstance() {
+		return instance;
+	}
+
+	public Date getUpdated() {
+		return updated;
+	}
+
+	/**
+	 * @return id of the broker replica holding the lease on this operation
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return when the broker replica holding the lease started, which tells its leases
+	 * from those it held before a restart
+	 */
+	public Date getLeaseEpoch() {
+		return leaseEpoch;
+	}
+
+	public Date getLeaseExpires() {
+		return leaseExpires;
+	}
+
+	/**
+	 * @return whether the given step has not been completed yet
+	 */
+	public boolean isBefore(Step step) {
+		return this.step.compareTo(step) < 0;
+	}
+
+	public ServiceInstanceOperation withState(OperationState state,
+			String description) {
+		return new ServiceInstanceOperation(this, state, step, description);
+	}
+
+	public ServiceInstanceOperation withStep(Step step) {
+		return new ServiceInstanceOperation(this, state, step, description);
+	}
+
+	public ServiceInstanceOperation withLease(String owner, Date leaseEpoch,
+			Date leaseExpires) {
+		ServiceInstanceOperation leased = new ServiceInstanceOperation(this, state, step,
+				description);
+		leased.owner = owner;
+		leased.leaseEpoch = leaseEpoch;
+		leased.leaseExpires = leaseExpires;
+		return leased;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("ServiceInstanceOperation{");
+		sb.append("id='").append(id).append('\'');
+		sb.append(", type=").append(type);
+		sb.append(", state=").append(state);
+		sb.append(", step=").append(step);
+		sb.append(", description='").append(description).append('\'');
+		sb.append(", updated=").append(updated);
+		sb.append(", owner='").append(owner).append('\'');
+		sb.append(", leaseEpoch=").append(leaseEpoch);
+		sb.append(", leaseExpires=").append(leaseExpires);
+		sb.append('}');
+		return sb.toString();
+	}
+
+}
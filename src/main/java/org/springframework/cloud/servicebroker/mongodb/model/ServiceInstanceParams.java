@@ -2,14 +2,16 @@ package org.springframework.cloud.servicebroker.mongodb.model;
 
 import static org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig.*;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceRequest;
 import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.data.annotation.Transient;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
@@ -47,6 +49,31 @@ public class ServiceInstanceParams {
 
 	}
 
+	/**
+	 * How the database of an instance is brought into existence.
+	 */
+	public enum Materialization {
+
+		/**
+		 * Grant the broker user {@code dbOwner} on the database, then create a
+		 * {@code foo} collection holding one document, which stays there.
+		 */
+		PLACEHOLDER,
+
+		/**
+		 * Create the tenant collection, with the plan's storage engine options, in a
+		 * single {@code create} command; the database is left without data. Shared
+		 * clusters run with authorization, so there the broker user is granted
+		 * {@code dbOwner} first as well.
+		 */
+		COLLECTION;
+
+		static Materialization of(String value) {
+			return valueOf(value.toUpperCase());
+		}
+
+	}
+
 	@JsonSerialize
 	@JsonProperty("namespace")
 	private String namespace;
@@ -61,8 +88,23 @@ public class ServiceInstanceParams {
 	private String url;
 	private int exposePort = 31000;
 	private long serviceTimeout = 30;
+	private long readyTimeout = 120;
 	private String storage;
 	private int replicas = 1;
+	private String poolPlan;
+	private boolean exposePortRequested;
+	private Materialization materialization = Materialization.PLACEHOLDER;
+	private String collection = "data";
+	private String blockCompressor;
+	private boolean shared;
+	private String tenantSize;
+	private String connectionOptions;
+	@Transient
+	private String keyFile;
+	@Transient
+	private String adminUsername;
+	@Transient
+	private String adminPassword;
 
 	/**
 	 * Create a ServiceInstanceParams from a create request. If fields are not present in
@@ -90,6 +132,30 @@ public class ServiceInstanceParams {
 		this.replicas = replicas;
 	}
 
+	/**
+	 * Create the ServiceInstanceParams a plan gets by default, without any request
+	 * parameters.
+	 * @param planMetadata metadata of the plan, as in the catalog
+	 */
+	public ServiceInstanceParams(MongoConfig config, Map<String, Object> planMetadata) {
+		initialize(config);
+		applyPlanMetadata(planMetadata);
+	}
+
+	private ServiceInstanceParams(ServiceInstanceParams params) {
+		this(params.namespace, params.name, params.accessToken, params.url,
+				params.exposePort, params.serviceTimeout, params.storage,
+				params.replicas);
+		this.readyTimeout = params.readyTimeout;
+		this.exposePortRequested = params.exposePortRequested;
+		this.materialization = params.materialization;
+		this.collection = params.collection;
+		this.blockCompressor = params.blockCompressor;
+		this.shared = params.shared;
+		this.tenantSize = params.tenantSize;
+		this.connectionOptions = params.connectionOptions;
+	}
+
 	public ServiceInstanceParams() {
 	}
 
@@ -102,6 +168,9 @@ public class ServiceInstanceParams {
 			setExposePort(config.getPort());
 		}
 		setServiceTimeout(config.getServiceTimeout());
+		if (config.getReadyTimeout() > 0) {
+			setReadyTimeout(config.getReadyTimeout());
+		}
 	}
 
 	private void populate(CreateServiceInstanceRequest request) {
@@ -121,6 +190,7 @@ public class ServiceInstanceParams {
 				break;
 			case EXPOSE_PORT:
 				setExposePort(Integer.valueOf((String) request.getParameters().get(key)));
+				exposePortRequested = true;
 				break;
 			case DEFAULT:
 				// do nothing
@@ -133,12 +203,37 @@ public class ServiceInstanceParams {
 		request.getServiceDefinition().getPlans().stream()
 				.filter(plan -> plan.getId().equalsIgnoreCase(request.getPlanId()))
 				.findFirst()
-				.ifPresent(plan -> ((List<Map<String, Object>>) plan.getMetadata()
-						.getOrDefault(COSTS, new HashMap<>())).forEach(key -> {
-							setStorage((String) key.getOrDefault(STORAGE, "128Mi"));
-							setReplicas(Integer
-									.valueOf((String) key.getOrDefault(REPLICAS, "1")));
-						}));
+				.ifPresent(plan -> applyPlanMetadata(plan.getMetadata()));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void applyPlanMetadata(Map<String, Object> metadata) {
+		((List<Map<String, Object>>) metadata.getOrDefault(COSTS, new ArrayList<>()))
+				.forEach(key -> {
+					setStorage((String) key.getOrDefault(STORAGE, "128Mi"));
+					setReplicas(Integer.valueOf((String) key.getOrDefault(REPLICAS, "1")));
+					if (key.containsKey(READY_TIMEOUT)) {
+						setReadyTimeout(Long.valueOf((String) key.get(READY_TIMEOUT)));
+					}
+					if (key.containsKey(MATERIALIZATION)) {
+						setMaterialization(Materialization.of((String) key.get(MATERIALIZATION)));
+					}
+					if (key.containsKey(COLLECTION)) {
+						setCollection((String) key.get(COLLECTION));
+					}
+					if (key.containsKey(BLOCK_COMPRESSOR)) {
+						setBlockCompressor((String) key.get(BLOCK_COMPRESSOR));
+					}
+					if (key.containsKey(SHARED)) {
+						setShared(Boolean.valueOf((String) key.get(SHARED)));
+					}
+					if (key.containsKey(TENANT_SIZE)) {
+						setTenantSize((String) key.get(TENANT_SIZE));
+					}
+					if (key.containsKey(CONNECTION_OPTIONS)) {
+						setConnectionOptions((String) key.get(CONNECTION_OPTIONS));
+					}
+				});
 	}
 
 	private void validateInputParams(CreateServiceInstanceRequest request) {
@@ -205,6 +300,17 @@ public class ServiceInstanceParams {
 		return serviceTimeout;
 	}
 
+	private void setReadyTimeout(long readyTimeout) {
+		this.readyTimeout = readyTimeout;
+	}
+
+	/**
+	 * @return overall deadline in seconds for the instance to become ready
+	 */
+	public long getReadyTimeout() {
+		return readyTimeout;
+	}
+
 	private void setExposePort(int exposePort) {
 		this.exposePort = exposePort;
 	}
@@ -213,6 +319,14 @@ public class ServiceInstanceParams {
 		return exposePort;
 	}
 
+	/**
+	 * @return whether the expose port was given as a request parameter rather than
+	 * taken from the configuration
+	 */
+	public boolean isExposePortRequested() {
+		return exposePortRequested;
+	}
+
 	public String getStorage() {
 		return storage;
 	}
@@ -229,6 +343,142 @@ public class ServiceInstanceParams {
 		this.replicas = replicas;
 	}
 
+	public Materialization getMaterialization() {
+		return materialization;
+	}
+
+	private void setMaterialization(Materialization materialization) {
+		this.materialization = materialization;
+	}
+
+	/**
+	 * @return the collection created in the database of the instance by
+	 * {@link Materialization#COLLECTION}
+	 */
+	public String getCollection() {
+		return collection;
+	}
+
+	private void setCollection(String collection) {
+		this.collection = collection;
+	}
+
+	/**
+	 * @return the WiredTiger block compressor of the tenant collection, or null for the
+	 * server's default
+	 */
+	public String getBlockCompressor() {
+		return blockCompressor;
+	}
+
+	private void setBlockCompressor(String blockCompressor) {
+		this.blockCompressor = blockCompressor;
+	}
+
+	/**
+	 * @return whether the instance is a database on one of the shared clusters rather
+	 * than a cluster of its own
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	private void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	/**
+	 * @return the storage reserved for the database of a shared instance when placing
+	 * it, as a k8s quantity
+	 */
+	public String getTenantSize() {
+		return tenantSize;
+	}
+
+	private void setTenantSize(String tenantSize) {
+		this.tenantSize = tenantSize;
+	}
+
+	/**
+	 * @return the query string of options, such as {@code w} or {@code compressors},
+	 * added to the connection strings of the instance's bindings, or null for none
+	 */
+	public String getConnectionOptions() {
+		return connectionOptions;
+	}
+
+	private void setConnectionOptions(String connectionOptions) {
+		this.connectionOptions = connectionOptions;
+	}
+
+	/**
+	 * @return the plan of the warm pool or shared clusters this cluster is built for, or
+	 * null for clusters built for an instance
+	 */
+	public String getPoolPlan() {
+		return poolPlan;
+	}
+
+	/**
+	 * @return a copy for a warm pool cluster of the given plan, with its own name and
+	 * node port; port 0 lets k8s assign one
+	 */
+	public ServiceInstanceParams forPool(String plan, String name, int exposePort) {
+		ServiceInstanceParams params = new ServiceInstanceParams(this);
+		params.name = name;
+		params.exposePort = exposePort;
+		params.poolPlan = plan;
+		return params;
+	}
+
+	/**
+	 * @return the key the members of a shared cluster authenticate each other with, or
+	 * null for clusters that run without authorization. Only set while the cluster's
+	 * objects are created, it is neither saved nor copied.
+	 */
+	@JsonIgnore
+	public String getKeyFile() {
+		return keyFile;
+	}
+
+	/**
+	 * @return the admin user a shared cluster is created with, set along with the key
+	 */
+	@JsonIgnore
+	public String getAdminUsername() {
+		return adminUsername;
+	}
+
+	@JsonIgnore
+	public String getAdminPassword() {
+		return adminPassword;
+	}
+
+	/**
+	 * @return a copy that renders the cluster with authorization, the given key and the
+	 * given admin user
+	 */
+	public ServiceInstanceParams withAuthorization(String keyFile, String adminUsername,
+			String adminPassword) {
+		ServiceInstanceParams params = new ServiceInstanceParams(this);
+		params.poolPlan = poolPlan;
+		params.keyFile = keyFile;
+		params.adminUsername = adminUsername;
+		params.adminPassword = adminPassword;
+		return params;
+	}
+
+	/**
+	 * @return a copy that refers to an existing cluster, e.g. one claimed from the warm
+	 * pool
+	 */
+	public ServiceInstanceParams withCluster(String name, int exposePort) {
+		ServiceInstanceParams params = new ServiceInstanceParams(this);
+		params.name = name;
+		params.exposePort = exposePort;
+		return params;
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder("ServiceInstanceParams{");
@@ -238,8 +488,16 @@ public class ServiceInstanceParams {
 		sb.append(", url='").append(url).append('\'');
 		sb.append(", exposePort=").append(exposePort);
 		sb.append(", serviceTimeout=").append(serviceTimeout);
+		sb.append(", readyTimeout=").append(readyTimeout);
 		sb.append(", storage='").append(storage).append('\'');
 		sb.append(", replicas=").append(replicas);
+		sb.append(", poolPlan='").append(poolPlan).append('\'');
+		sb.append(", materialization=").append(materialization);
+		sb.append(", collection='").append(collection).append('\'');
+		sb.append(", blockCompressor='").append(blockCompressor).append('\'');
+		sb.append(", shared=").append(shared);
+		sb.append(", tenantSize='").append(tenantSize).append('\'');
+		sb.append(", connectionOptions='").append(connectionOptions).append('\'');
 		sb.append('}');
 		return sb.toString();
 	}
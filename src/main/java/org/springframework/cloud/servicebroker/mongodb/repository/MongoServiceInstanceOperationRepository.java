@@ -0,0 +1,13 @@
+package org.springframework.cloud.servicebroker.mongodb.repository;
+
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+/**
+ * Repository for ServiceInstanceOperation objects
+ *
+ */
+public interface MongoServiceInstanceOperationRepository
+		extends MongoRepository<ServiceInstanceOperation, String> {
+
+}
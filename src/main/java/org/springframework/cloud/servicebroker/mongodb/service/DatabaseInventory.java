@@ -0,0 +1,83 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which databases exist on which cluster. Every database name has its own
+ * entry, refreshed on its own once it is older than the given time to live, so a
+ * cluster holding thousands of databases is never listed as a whole. The broker's own
+ * creates and drops update the entry of the database straight away.
+ * <p>
+ * An answer from the cluster only replaces an entry that is older than the request
+ * that fetched it, so a check that raced with a create or drop cannot undo it. Times
+ * are {@link System#nanoTime()} values.
+ */
+final class DatabaseInventory {
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final int maxEntries;
+
+	DatabaseInventory(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return whether the database exists, or null if it is unknown or the entry is
+	 * older than {@code ttl} nanoseconds
+	 */
+	Boolean lookup(String cluster, String database, long ttl) {
+		Entry entry = entries.get(key(cluster, database));
+		if (entry == null || System.nanoTime() - entry.asOf > ttl) {
+			return null;
+		}
+		return entry.exists;
+	}
+
+	/**
+	 * Records what the cluster answered to a request made at {@code asOf}.
+	 */
+	void listed(String cluster, String database, boolean exists, long asOf) {
+		if (entries.size() >= maxEntries) {
+			// names of instances long gone pile up otherwise; entries are cheap to refetch
+			entries.clear();
+		}
+		entries.merge(key(cluster, database), new Entry(exists, asOf),
+				(current, listed) -> current.asOf - listed.asOf > 0 ? current : listed);
+	}
+
+	void created(String cluster, String database) {
+		entries.put(key(cluster, database), new Entry(true, System.nanoTime()));
+	}
+
+	void dropped(String cluster, String database) {
+		entries.put(key(cluster, database), new Entry(false, System.nanoTime()));
+	}
+
+	/**
+	 * Drops the entry of a database whose state is uncertain, e.g. after a failed
+	 * create.
+	 */
+	void forget(String cluster, String database) {
+		entries.remove(key(cluster, database));
+	}
+
+	private static String key(String cluster, String database) {
+		return cluster + '/' + database;
+	}
+
+	private static final class Entry {
+
+		private final boolean exists;
+
+		private final long asOf;
+
+		Entry(boolean exists, long asOf) {
+			this.exists = exists;
+			this.asOf = asOf;
+		}
+
+	}
+
+}
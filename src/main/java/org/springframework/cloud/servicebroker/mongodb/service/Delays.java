@@ -0,0 +1,43 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for asynchronous pipelines. A single daemon timer thread completes the returned
+ * futures; stages chained directly onto them run on that thread and must not block.
+ */
+final class Delays {
+
+	private static final ScheduledExecutorService TIMER = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "async-delays");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private Delays() {
+	}
+
+	/**
+	 * @return a future completing after the given number of milliseconds
+	 */
+	static CompletableFuture<Void> of(long millis) {
+		CompletableFuture<Void> delay = new CompletableFuture<>();
+		TIMER.schedule(() -> delay.complete(null), millis, TimeUnit.MILLISECONDS);
+		return delay;
+	}
+
+	/**
+	 * @return a random delay between {@code base} and the exponential backoff of the
+	 * given attempt, capped at {@code max}
+	 */
+	static long jittered(int attempt, long base, long max) {
+		long backoff = Math.max(base, Math.min(max, base << Math.min(attempt, 16)));
+		return ThreadLocalRandom.current().nextLong(base, backoff + 1);
+	}
+
+}
@@ -0,0 +1,337 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerOverloadedException;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Throttles the calls made to each Kubernetes master URL.
+ * <p>
+ * Every master gets a token bucket refilled with {@code mongodb.k8s.rate-limit.qps}
+ * tokens per second and holding at most {@code mongodb.k8s.rate-limit.burst}; a call
+ * without a token waits for one. A 429 answer pauses all calls to that master for the
+ * time given in its {@code Retry-After} header. Throttled calls, as well as 503 answers,
+ * are retried up to {@code mongodb.k8s.retry.max-attempts} times with capped, jittered
+ * exponential backoff; other server and connection errors are retried for GET and
+ * DELETE only, which are safe to repeat.
+ * <p>
+ * After {@code mongodb.k8s.breaker.failure-threshold} consecutive server or connection
+ * errors the circuit to the master opens and calls fail straight away with
+ * {@link ServiceBrokerOverloadedException}. After {@code mongodb.k8s.breaker.open-time}
+ * seconds a single trial call is let through; its outcome closes or reopens the
+ * circuit.
+ */
+@Component
+public class K8sApiLimiter implements PublicMetrics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(K8sApiLimiter.class);
+
+	private static final long RETRY_BASE_BACKOFF = 200;
+
+	private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	private final AtomicLong throttled = new AtomicLong();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	@Value("${mongodb.k8s.rate-limit.qps:50}")
+	private double qps = 50;
+
+	@Value("${mongodb.k8s.rate-limit.burst:100}")
+	private int burst = 100;
+
+	@Value("${mongodb.k8s.retry.max-attempts:5}")
+	private int maxAttempts = 5;
+
+	@Value("${mongodb.k8s.retry.max-backoff:10000}")
+	private long maxBackoff = 10000;
+
+	@Value("${mongodb.k8s.breaker.failure-threshold:5}")
+	private int failureThreshold = 5;
+
+	@Value("${mongodb.k8s.breaker.open-time:30}")
+	private long openTime = 30;
+
+	/**
+	 * Runs an asynchronous call to the master of the given URI under its rate limit,
+	 * retrying it as described above.
+	 */
+	public CompletableFuture<ResponseEntity<String>> executeAsync(URI uri,
+			HttpMethod method, Supplier<CompletableFuture<ResponseEntity<String>>> call) {
+		return attempt(endpoint(uri), method, call, 0);
+	}
+
+	private CompletableFuture<ResponseEntity<String>> attempt(Endpoint endpoint,
+			HttpMethod method, Supplier<CompletableFuture<ResponseEntity<String>>> call,
+			int attempt) {
+		long wait;
+		try {
+			wait = endpoint.reserve();
+		}
+		catch (ServiceBrokerOverloadedException ex) {
+			CompletableFuture<ResponseEntity<String>> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+		CompletableFuture<Void> ready = wait > 0 ? Delays.of(wait)
+				: CompletableFuture.completedFuture(null);
+		return ready.thenCompose(ignore -> call.get()).handle((response, ex) -> {
+			Throwable failure = ex instanceof CompletionException && ex.getCause() != null
+					? ex.getCause() : ex;
+			long retry = record(endpoint, method, response, failure, attempt);
+			if (retry < 0) {
+				CompletableFuture<ResponseEntity<String>> outcome = new CompletableFuture<>();
+				if (failure != null) {
+					outcome.completeExceptionally(failure);
+				}
+				else {
+					outcome.complete(response);
+				}
+				return outcome;
+			}
+			return Delays.of(retry)
+					.thenCompose(ignore -> attempt(endpoint, method, call, attempt + 1));
+		}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Blocking variant of {@link #executeAsync(URI, HttpMethod, Supplier)}.
+	 */
+	public ResponseEntity<String> execute(URI uri, HttpMethod method,
+			Supplier<ResponseEntity<String>> call) throws IOException {
+		Endpoint endpoint = endpoint(uri);
+		try {
+			for (int attempt = 0;; attempt++) {
+				TimeUnit.MILLISECONDS.sleep(endpoint.reserve());
+				ResponseEntity<String> response = null;
+				RuntimeException failure = null;
+				try {
+					response = call.get();
+				}
+				catch (RuntimeException ex) {
+					failure = ex;
+				}
+				long retry = record(endpoint, method, response, failure, attempt);
+				if (retry < 0) {
+					if (failure != null) {
+						throw failure;
+					}
+					return response;
+				}
+				TimeUnit.MILLISECONDS.sleep(retry);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while calling " + uri);
+		}
+	}
+
+	private Endpoint endpoint(URI uri) {
+		return endpoints.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(),
+				Endpoint::new);
+	}
+
+	/**
+	 * Records the outcome of a call with the endpoint's circuit breaker.
+	 * @return milliseconds to wait before retrying the call, or -1 if the outcome is
+	 * final
+	 */
+	private long record(Endpoint endpoint, HttpMethod method,
+			ResponseEntity<String> response, Throwable failure, int attempt) {
+		boolean retryable;
+		if (failure != null) {
+			if (!(failure instanceof RestClientException
+					|| failure instanceof IOException)) {
+				endpoint.neutral();
+				return -1;
+			}
+			endpoint.failed();
+			retryable = isIdempotent(method);
+		}
+		else {
+			int status = response.getStatusCodeValue();
+			if (status == HttpStatus.TOO_MANY_REQUESTS.value()) {
+				throttled.incrementAndGet();
+				endpoint.pause(retryAfter(response));
+				retryable = true;
+			}
+			else if (status >= 500) {
+				endpoint.failed();
+				retryable = status == HttpStatus.SERVICE_UNAVAILABLE.value()
+						|| isIdempotent(method);
+			}
+			else {
+				endpoint.succeeded();
+				return -1;
+			}
+		}
+		if (!retryable || attempt + 1 >= maxAttempts) {
+			return -1;
+		}
+		retries.incrementAndGet();
+		return Delays.jittered(attempt, RETRY_BASE_BACKOFF, maxBackoff);
+	}
+
+	private static boolean isIdempotent(HttpMethod method) {
+		return method == HttpMethod.GET || method == HttpMethod.DELETE;
+	}
+
+	/**
+	 * @return the pause requested by a 429 answer in milliseconds, 0 if there is none
+	 */
+	private static long retryAfter(ResponseEntity<String> response) {
+		String retryAfter = response.getHeaders().getFirst("Retry-After");
+		if (retryAfter == null) {
+			return 0;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+		}
+		catch (NumberFormatException ex) {
+			// an HTTP date; rely on the backoff instead
+			return 0;
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		long open = endpoints.values().stream().filter(Endpoint::isOpen).count();
+		metrics.add(new Metric<>("k8s.api.throttled", throttled.get()));
+		metrics.add(new Metric<>("k8s.api.retries", retries.get()));
+		metrics.add(new Metric<>("k8s.api.rejected", rejected.get()));
+		metrics.add(new Metric<>("k8s.api.circuits.open", open));
+		return metrics;
+	}
+
+	/**
+	 * Rate limit and circuit breaker state of one master URL. Times are
+	 * {@link System#nanoTime()} values.
+	 */
+	private final class Endpoint {
+
+		private final String master;
+
+		private double tokens = burst;
+
+		private long refilled = System.nanoTime();
+
+		private boolean paused;
+
+		private long pausedUntil;
+
+		private int failures;
+
+		private boolean open;
+
+		private long openUntil;
+
+		private boolean trial;
+
+		Endpoint(String master) {
+			this.master = master;
+		}
+
+		/**
+		 * Takes a token, possibly ahead of time.
+		 * @return milliseconds to wait before the call may be made
+		 * @throws ServiceBrokerOverloadedException if the circuit is open
+		 */
+		synchronized long reserve() {
+			long now = System.nanoTime();
+			if (open) {
+				if (now - openUntil < 0 || trial) {
+					rejected.incrementAndGet();
+					throw new ServiceBrokerOverloadedException("Kubernetes API " + master
+							+ " is unavailable, retry later", Math.max(1,
+									TimeUnit.NANOSECONDS.toSeconds(openUntil - now)));
+				}
+				trial = true;
+			}
+			long wait = 0;
+			if (qps > 0) {
+				tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * qps);
+				refilled = now;
+				tokens -= 1;
+				if (tokens < 0) {
+					wait = (long) Math.ceil(-tokens / qps * 1000);
+				}
+			}
+			if (paused) {
+				if (now - pausedUntil < 0) {
+					wait = Math.max(wait,
+							TimeUnit.NANOSECONDS.toMillis(pausedUntil - now));
+				}
+				else {
+					paused = false;
+				}
+			}
+			return wait;
+		}
+
+		synchronized void pause(long millis) {
+			long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+			if (!paused || until - pausedUntil > 0) {
+				paused = millis > 0;
+				pausedUntil = until;
+			}
+			trial = false;
+		}
+
+		synchronized void succeeded() {
+			if (open) {
+				LOGGER.info("Circuit to " + master + " closed");
+			}
+			failures = 0;
+			open = false;
+			trial = false;
+		}
+
+		synchronized void failed() {
+			failures++;
+			if (trial || (!open && failures >= failureThreshold)) {
+				LOGGER.warn("Circuit to " + master + " opened after " + failures
+						+ " consecutive failures");
+				open = true;
+				openUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(openTime);
+			}
+			trial = false;
+		}
+
+		synchronized void neutral() {
+			trial = false;
+		}
+
+		synchronized boolean isOpen() {
+			return open;
+		}
+
+	}
+
+}
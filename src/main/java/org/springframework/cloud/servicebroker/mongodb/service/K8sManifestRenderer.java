@@ -0,0 +1,155 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoK8sService.K8sObject;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * Renders the k8s object manifests of a service instance. Every template under
+ * {@code /templates/} is loaded and compiled once at startup; rendered manifests are
+ * cached per instance so that retries and later operations on the same instance do
+ * not render again. The cache is keyed by every value the templates read, so changed
+ * parameters render anew, and it keeps the manifests of at most
+ * {@code mongodb.k8s.manifest-cache-size} instances, dropping the least recently used
+ * ones. With {@code mongodb.k8s.manifest-format=json} (default) the YAML
+ * output is converted to JSON before it is sent, which the API server decodes more
+ * cheaply than YAML.
+ */
+@Component
+public class K8sManifestRenderer {
+
+	static final MediaType APPLICATION_YAML = MediaType.valueOf("application/yaml");
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(K8sManifestRenderer.class);
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	private final Map<K8sObject, Template> templates = new EnumMap<>(K8sObject.class);
+
+	@Value("${mongodb.k8s.manifest-cache-size:256}")
+	private int cacheSize = 256;
+
+	private final Map<String, Map<K8sObject, Manifest>> manifests = Collections
+			.synchronizedMap(new LinkedHashMap<String, Map<K8sObject, Manifest>>(16,
+					0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, Map<K8sObject, Manifest>> eldest) {
+					return size() > cacheSize;
+				}
+
+			});
+
+	private final ThreadLocal<StringWriter> buffers = ThreadLocal
+			.withInitial(() -> new StringWriter(INITIAL_BUFFER_SIZE));
+
+	private final ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+
+	private final ObjectMapper jsonMapper = new ObjectMapper();
+
+	private final boolean json;
+
+	public K8sManifestRenderer(Configuration config,
+			@Value("${mongodb.k8s.manifest-format:json}") String format)
+			throws IOException {
+		config.setClassForTemplateLoading(this.getClass(), "/templates/");
+		for (K8sObject obj : K8sObject.values()) {
+			templates.put(obj, config.getTemplate(obj.getFileName()));
+		}
+		this.json = "json".equalsIgnoreCase(format);
+		LOGGER.info("Compiled " + templates.size() + " k8s templates, sending "
+				+ (json ? "json" : "yaml") + " manifests");
+	}
+
+	/**
+	 * @return the manifest of the given object, rendered on first use and reused while
+	 * the instance's manifests stay cached
+	 */
+	Manifest render(K8sObject obj, ServiceInstanceParams serviceObj)
+			throws IOException, TemplateException {
+		Map<K8sObject, Manifest> rendered = manifests
+				.computeIfAbsent(cacheKey(serviceObj), key -> new ConcurrentHashMap<>());
+		Manifest manifest = rendered.get(obj);
+		if (manifest == null) {
+			manifest = renderManifest(obj, serviceObj);
+			rendered.put(obj, manifest);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Drops the cached manifests of an instance once its objects are gone.
+	 */
+	void evict(ServiceInstanceParams serviceObj) {
+		manifests.remove(cacheKey(serviceObj));
+	}
+
+	private Manifest renderManifest(K8sObject obj, ServiceInstanceParams serviceObj)
+			throws IOException, TemplateException {
+		StringWriter buffer = buffers.get();
+		buffer.getBuffer().setLength(0);
+		templates.get(obj).process(serviceObj, buffer);
+		String yaml = buffer.toString();
+		if (!json) {
+			return new Manifest(yaml, APPLICATION_YAML);
+		}
+		return new Manifest(jsonMapper.writeValueAsString(yamlMapper.readTree(yaml)),
+				MediaType.APPLICATION_JSON);
+	}
+
+	/**
+	 * Manifests only depend on the values the templates reference, so instances that
+	 * share all of them can share the rendered output as well. The key file of a shared
+	 * cluster is generated along with its name, so the name stands in for it.
+	 */
+	private static String cacheKey(ServiceInstanceParams serviceObj) {
+		return serviceObj.getNamespace() + '/' + serviceObj.getName() + '/'
+				+ serviceObj.getExposePort() + '/' + serviceObj.getReplicas() + '/'
+				+ serviceObj.getStorage() + '/' + serviceObj.getPoolPlan() + '/'
+				+ serviceObj.isShared();
+	}
+
+	static final class Manifest {
+
+		private final String body;
+		private final MediaType contentType;
+
+		Manifest(String body, MediaType contentType) {
+			this.body = body;
+			this.contentType = contentType;
+		}
+
+		String getBody() {
+			return body;
+		}
+
+		MediaType getContentType() {
+			return contentType;
+		}
+
+	}
+
+}
@@ -1,7 +1,13 @@
 package org.springframework.cloud.servicebroker.mongodb.service;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.bson.Document;
 import org.slf4j.Logger;
@@ -9,17 +15,34 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams.Materialization;
 import org.springframework.stereotype.Service;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
 
 /**
  * Utility class for manipulating a Mongo database.
+ * <p>
+ * Operations that take the {@link ServiceInstanceParams} of an instance run against
+ * that instance's cluster, through the client cached for it in {@link MongoClientCache};
+ * the others run against the broker's own Mongo.
+ * <p>
+ * Existence checks list only the database asked for ({@code listDatabases} with
+ * {@code nameOnly} and a name filter). With {@code mongodb.inventory.enabled} their
+ * answers are kept in a {@link DatabaseInventory} for {@code mongodb.inventory.ttl}
+ * seconds, and the databases created and dropped through this service are recorded
+ * there as well, so repeated checks do not go to the cluster.
+ * <p>
+ * Databases are created the way the {@link Materialization} of the instance's plan
+ * says; without a plan, with the legacy {@code foo} placeholder.
+ * <p>
+ * Many user and role changes can be run at once with {@link #runUserCommandsAsync}.
  *
  * @author sgreenberg@pivotal.io
  *
@@ -27,9 +50,17 @@ import com.mongodb.client.MongoDatabase;
 @Service
 public class MongoAdminService {
 
+	private static final long REPLICA_SET_POLL_INTERVAL = 1000;
+
+	private static final int MAX_INVENTORY_ENTRIES = 100000;
+
 	private Logger logger = LoggerFactory.getLogger(MongoAdminService.class);
 
 	private MongoClient client;
+
+	private MongoClientCache clients;
+
+	private PrimaryRouter router;
 	
 	@Value("${mongodb.authdb:admin}")
 	private String adminDatabase;
@@ -37,26 +68,135 @@ public class MongoAdminService {
 	@Value("${mongodb.username:admin}")
 	private String adminUsername;
 
-	@Autowired
+	@Value("${mongodb.admin.batch-concurrency:8}")
+	private int batchConcurrency = 8;
+
+	@Value("${mongodb.inventory.enabled:false}")
+	private boolean inventoryEnabled;
+
+	@Value("${mongodb.inventory.ttl:60}")
+	private long inventoryTtl = 60;
+
+	private final DatabaseInventory inventory = new DatabaseInventory(MAX_INVENTORY_ENTRIES);
+
 	public MongoAdminService(MongoClient client) {
+		this(client, null);
+	}
+
+	public MongoAdminService(MongoClient client, MongoClientCache clients) {
+		this(client, clients, null);
+	}
+
+	@Autowired
+	public MongoAdminService(MongoClient client, MongoClientCache clients,
+			PrimaryRouter router) {
 		this.client = client;
+		this.clients = clients;
+		this.router = router;
+	}
+
+	private <T> T withClient(ServiceInstanceParams cluster, Function<MongoClient, T> action) {
+		if (cluster == null || clients == null) {
+			return action.apply(client);
+		}
+		return clients.execute(clients.addressOf(cluster), action);
+	}
+
+	/**
+	 * @return a key for the inventory entries of the cluster of an instance, or of
+	 * the broker's own Mongo
+	 */
+	private String inventoryKey(ServiceInstanceParams cluster) {
+		if (cluster == null || clients == null) {
+			return "broker";
+		}
+		return clients.addressOf(cluster).toString();
 	}
 
 	public boolean databaseExists(String databaseName) throws MongoServiceException {
+		return databaseExists((ServiceInstanceParams) null, databaseName);
+	}
+
+	public boolean databaseExists(ServiceInstanceParams cluster, String databaseName) throws MongoServiceException {
+		if (!inventoryEnabled) {
+			return withClient(cluster, c -> databaseExists(c, databaseName));
+		}
+		String key = inventoryKey(cluster);
+		Boolean known = inventory.lookup(key, databaseName, TimeUnit.SECONDS.toNanos(inventoryTtl));
+		if (known != null) {
+			return known;
+		}
+		long asOf = System.nanoTime();
+		boolean exists = withClient(cluster, c -> databaseExists(c, databaseName));
+		inventory.listed(key, databaseName, exists, asOf);
+		return exists;
+	}
+
+	private boolean databaseExists(MongoClient client, String databaseName) {
 		try {
-			for(String dbname : client.listDatabaseNames()){
-				if(dbname.equals(databaseName)){
+			Document result = client.getDatabase("admin").runCommand(new Document("listDatabases", 1)
+					.append("nameOnly", true)
+					.append("filter", new Document("name", databaseName)));
+			// servers before 3.6 ignore both options and list every database
+			for (Object database : result.get("databases", List.class)) {
+				if (databaseName.equals(((Document) database).getString("name"))) {
 					return true;
 				}
 			}
-			
 			return false;
 		} catch (MongoException e) {
 			throw handleException(e);
 		}
 	}
 
+	/**
+	 * @return the answer of {@code listDatabases} on the cluster: every database with
+	 * its size on disk, and their {@code totalSize}
+	 */
+	public Document listDatabases(ServiceInstanceParams cluster) throws MongoServiceException {
+		return withClient(cluster, c -> runAdminCommand(c, new Document("listDatabases", 1)));
+	}
+
+	/**
+	 * @return the answer of {@code serverStatus} on the cluster's primary, without the
+	 * replication, metrics and locks sections
+	 */
+	public Document serverStatus(ServiceInstanceParams cluster) throws MongoServiceException {
+		return withClient(cluster, c -> runAdminCommand(c, new Document("serverStatus", 1)
+				.append("repl", 0).append("metrics", 0).append("locks", 0)));
+	}
+
+	private Document runAdminCommand(MongoClient client, Document command) {
+		try {
+			return runCommand(client, "admin", command);
+		} catch (MongoException e) {
+			throw handleException(e);
+		}
+	}
+
 	public void deleteDatabase(String databaseName) throws MongoServiceException {
+		deleteDatabase((ServiceInstanceParams) null, databaseName);
+	}
+
+	public void deleteDatabase(ServiceInstanceParams cluster, String databaseName) throws MongoServiceException {
+		try {
+			withClient(cluster, c -> {
+				deleteDatabase(c, databaseName);
+				return null;
+			});
+		}
+		catch (MongoServiceException e) {
+			if (inventoryEnabled) {
+				inventory.forget(inventoryKey(cluster), databaseName);
+			}
+			throw e;
+		}
+		if (inventoryEnabled) {
+			inventory.dropped(inventoryKey(cluster), databaseName);
+		}
+	}
+
+	private void deleteDatabase(MongoClient client, String databaseName) {
 		try{
 			client.getDatabase(adminDatabase);
 			client.dropDatabase(databaseName);
@@ -66,8 +206,40 @@ public class MongoAdminService {
 	}
 
 	public MongoDatabase createDatabase(String databaseName) throws MongoServiceException {
+		return createDatabase((ServiceInstanceParams) null, databaseName);
+	}
+
+	public MongoDatabase createDatabase(ServiceInstanceParams cluster, String databaseName) throws MongoServiceException {
+		MongoDatabase db;
 		try {
-			addDbOwnerRole(databaseName);
+			if (cluster != null && cluster.getMaterialization() == Materialization.COLLECTION) {
+				db = withClient(cluster, c -> {
+					if (cluster.isShared()) {
+						// shared clusters run with authorization, so the grant is needed
+						run(c, UserCommand.grantDbOwner(adminDatabase, adminUsername, databaseName));
+					}
+					return createTenantCollection(c, databaseName, cluster);
+				});
+			}
+			else {
+				db = withClient(cluster, c -> createDatabase(c, databaseName));
+			}
+		}
+		catch (MongoServiceException e) {
+			if (inventoryEnabled) {
+				inventory.forget(inventoryKey(cluster), databaseName);
+			}
+			throw e;
+		}
+		if (inventoryEnabled) {
+			inventory.created(inventoryKey(cluster), databaseName);
+		}
+		return db;
+	}
+
+	private MongoDatabase createDatabase(MongoClient client, String databaseName) {
+		try {
+			addDbOwnerRole(client, databaseName);
 			
 			MongoDatabase db = client.getDatabase(databaseName);
 			db.createCollection("foo");
@@ -85,74 +257,188 @@ public class MongoAdminService {
 		} catch (MongoException e) {
 			// try to clean up and fail
 			try {
-				deleteDatabase(databaseName);
+				deleteDatabase(client, databaseName);
 			} catch (MongoServiceException ignore) {}
 			throw handleException(e);
 		}
 	}
 	
 	
-	private void addDbOwnerRole(String databaseName){
-		MongoDatabase db = client.getDatabase(adminDatabase);
-		Map<String, Object> roles = new BasicDBObject();
-		roles.put("role", "dbOwner");
-		roles.put("db", databaseName);
-		
-		Map<String, Object> commandArguments = new BasicDBObject();
-	    commandArguments.put("grantRolesToUser", adminUsername);
-	    commandArguments.put("roles", Arrays.asList(roles));
-	    BasicDBObject grantRolesToUserCmd = new BasicDBObject(commandArguments);
-	    
-	    Document result = db.runCommand(grantRolesToUserCmd);
-		if (result.getDouble("ok") != 1.0d) {
-			throw handleException(new MongoServiceException(result.toString()));
+	/**
+	 * Creates the database with its tenant collection in one command. Nothing is
+	 * written, and a failed create leaves nothing behind to clean up.
+	 */
+	private MongoDatabase createTenantCollection(MongoClient client, String databaseName,
+			ServiceInstanceParams params) {
+		try {
+			MongoDatabase db = client.getDatabase(databaseName);
+			CreateCollectionOptions options = new CreateCollectionOptions();
+			if (params.getBlockCompressor() != null) {
+				options.storageEngineOptions(new Document("wiredTiger", new Document(
+						"configString", "block_compressor=" + params.getBlockCompressor())));
+			}
+			db.createCollection(params.getCollection(), options);
+			return db;
+		} catch (MongoException e) {
+			throw handleException(e);
 		}
 	}
 
+	private void addDbOwnerRole(MongoClient client, String databaseName) {
+		UserCommand grant = UserCommand.grantDbOwner(adminDatabase, adminUsername, databaseName);
+		runCommand(client, grant.database, grant.command);
+	}
+
 	public void createUser(String database, String username, String password) throws MongoServiceException {
-		try {
-			MongoDatabase db = client.getDatabase(database);
-			Map<String, Object> roles = new BasicDBObject();
-			roles.put("role", "readWrite");
-			roles.put("db", database);
-
-			Map<String, Object> commandArguments = new BasicDBObject();
-		    commandArguments.put("createUser", username);
-		    commandArguments.put("pwd", password);
-		   
-		    commandArguments.put("roles", Arrays.asList(roles));
-		    BasicDBObject createUserCmd = new BasicDBObject(commandArguments);
-			
-			
-			Document result = db.runCommand(createUserCmd);
-			if (result.getDouble("ok") != 1.0d) {
-				throw handleException(new MongoServiceException(result.toString()));
+		createUser(client, database, username, password);
+	}
+
+	/**
+	 * Creates a user of the given database only. On a shared cluster the user owns the
+	 * database, as the user of a cluster of its own could, but no other database.
+	 */
+	public void createUser(ServiceInstanceParams cluster, String database, String username, String password) throws MongoServiceException {
+		withClient(cluster, c -> {
+			if (cluster != null && cluster.isShared()) {
+				run(c, UserCommand.createUser(database, username, password, "dbOwner"));
+			}
+			else {
+				createUser(c, database, username, password);
+			}
+			return null;
+		});
+	}
+
+	private void createUser(MongoClient client, String database, String username, String password) {
+		run(client, UserCommand.createUser(database, username, password));
+	}
+
+	public void deleteUser(String database, String username) throws MongoServiceException {
+		deleteUser(client, database, username);
+	}
+
+	public void deleteUser(ServiceInstanceParams cluster, String database, String username) throws MongoServiceException {
+		withClient(cluster, c -> {
+			deleteUser(c, database, username);
+			return null;
+		});
+	}
+
+	private void deleteUser(MongoClient client, String database, String username) {
+		run(client, UserCommand.deleteUser(database, username));
+	}
+
+	/**
+	 * Runs many user and role changes against a cluster, {@code mongodb.admin.batch-concurrency}
+	 * at a time over the client's pooled connections. Grants of {@code dbOwner} to the
+	 * same user are sent as one {@code grantRolesToUser}. A failing change does not stop
+	 * the others; every command records its own outcome.
+	 * @return the given commands, once all of them have completed
+	 */
+	public CompletableFuture<List<UserCommand>> runUserCommandsAsync(ServiceInstanceParams cluster,
+			List<UserCommand> commands, Executor executor) {
+		List<List<UserCommand>> batches = coalesce(commands);
+		int lanes = Math.max(1, Math.min(batchConcurrency, batches.size()));
+		CompletableFuture<?>[] running = new CompletableFuture<?>[lanes];
+		for (int lane = 0; lane < lanes; lane++) {
+			int first = lane;
+			running[lane] = CompletableFuture.runAsync(() -> withClient(cluster, c -> {
+				for (int i = first; i < batches.size(); i += lanes) {
+					run(c, batches.get(i));
+				}
+				return null;
+			}), executor);
+		}
+		return CompletableFuture.allOf(running).handle((ignore, ex) -> {
+			// a lane fails as a whole only if no client could be had for the cluster
+			MongoServiceException error = ex == null ? null
+					: new MongoServiceException(ex.getCause() != null
+							? ex.getCause().getMessage() : ex.getMessage());
+			for (UserCommand command : commands) {
+				if (!command.isDone()) {
+					command.complete(error);
+				}
+			}
+			return commands;
+		});
+	}
+
+	/**
+	 * @return the commands in groups sent as one: grants to the same user, and every
+	 * other command on its own
+	 */
+	private static List<List<UserCommand>> coalesce(List<UserCommand> commands) {
+		Map<String, List<UserCommand>> batches = new LinkedHashMap<>();
+		int single = 0;
+		for (UserCommand command : commands) {
+			String key = command.grantee != null ? command.database + '/' + command.grantee
+					: "#" + single++;
+			batches.computeIfAbsent(key, k -> new ArrayList<>()).add(command);
+		}
+		return new ArrayList<>(batches.values());
+	}
+
+	private void run(MongoClient client, List<UserCommand> batch) {
+		UserCommand first = batch.get(0);
+		Document command = first.command;
+		if (batch.size() > 1) {
+			List<Document> roles = new ArrayList<>();
+			for (UserCommand grant : batch) {
+				roles.add(grant.role);
 			}
+			command = new Document("grantRolesToUser", first.grantee).append("roles", roles);
+		}
+		MongoServiceException error = null;
+		try {
+			runCommand(client, first.database, command);
+		} catch (MongoServiceException e) {
+			error = e;
 		} catch (MongoException e) {
-			throw handleException(e);
+			error = handleException(e);
+		}
+		for (UserCommand done : batch) {
+			done.complete(error);
 		}
 	}
 
-	public void deleteUser(String database, String username) throws MongoServiceException {
+	private void run(MongoClient client, UserCommand command) {
 		try {
-			MongoDatabase db = client.getDatabase(database);
-			Document result = db.runCommand(new BasicDBObject("dropUser", username));
-			if (result.getDouble("ok") != 1.0d) {
-				throw handleException(new MongoServiceException(result.toString()));
-			}
+			runCommand(client, command.database, command.command);
 		} catch (MongoException e) {
 			throw handleException(e);
 		}
 	}
 
+	private Document runCommand(MongoClient client, String database, Document command) {
+		Document result = client.getDatabase(database).runCommand(command);
+		if (result.get("ok", Number.class).doubleValue() != 1.0d) {
+			throw handleException(new MongoServiceException(result.toString()));
+		}
+		return result;
+	}
+
 	public String getConnectionString(String database, String username, String password) {
+		return getConnectionString(getServerAddresses(), database, username, password);
+	}
+
+	public String getConnectionString(ServiceInstanceParams cluster, String database, String username, String password) {
+		if (cluster == null || clients == null) {
+			return getConnectionString(database, username, password);
+		}
+		ServerAddress address = clients.addressOf(cluster);
+		String uri = getConnectionString(address.getHost() + ":" + address.getPort(), database, username, password);
+		String options = cluster.getConnectionOptions();
+		return options == null || options.isEmpty() ? uri : uri + "?" + options;
+	}
+
+	private String getConnectionString(String addresses, String database, String username, String password) {
 		return new StringBuilder()
 				.append("mongodb://")
 				.append(username)
 				.append(":")
 				.append(password)
 				.append("@")
-				.append(getServerAddresses())
+				.append(addresses)
 				.append("/")
 				.append(database)
 				.toString();
@@ -172,6 +458,99 @@ public class MongoAdminService {
 		return builder.toString();
 	}
 
+	/**
+	 * Waits until the replica set of a cluster has elected a primary, all other members
+	 * have joined as secondaries and the cluster's port routes to the primary, or until
+	 * the deadline ({@link System#nanoTime()}) has passed. The port is routed as the
+	 * replica set comes up, see {@link PrimaryRouter}.
+	 */
+	public boolean awaitReplicaSet(ServiceInstanceParams cluster, long deadline) throws InterruptedException {
+		int expected = Math.max(1, cluster.getReplicas());
+		String state;
+		while ((state = replicaSetState(cluster, expected)) != null) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				logger.error("Replica set of " + cluster.getName() + " is not ready: " + state);
+				return false;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("Replica set of " + cluster.getName() + " is not ready yet: " + state);
+			}
+			TimeUnit.MILLISECONDS.sleep(Math.min(remaining, REPLICA_SET_POLL_INTERVAL));
+		}
+		return true;
+	}
+
+	/**
+	 * Like {@link #awaitReplicaSet(ServiceInstanceParams, long)}, but without holding a
+	 * thread between polls. The polls themselves run on the given executor.
+	 */
+	public CompletableFuture<Boolean> awaitReplicaSetAsync(ServiceInstanceParams cluster,
+			long deadline, Executor executor) {
+		int expected = Math.max(1, cluster.getReplicas());
+		return CompletableFuture
+				.supplyAsync(() -> replicaSetState(cluster, expected), executor)
+				.thenCompose(state -> {
+					if (state == null) {
+						return CompletableFuture.completedFuture(true);
+					}
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (remaining <= 0) {
+						logger.error("Replica set of " + cluster.getName() + " is not ready: " + state);
+						return CompletableFuture.completedFuture(false);
+					}
+					if (logger.isDebugEnabled()) {
+						logger.debug("Replica set of " + cluster.getName() + " is not ready yet: " + state);
+					}
+					return Delays.of(Math.min(remaining, REPLICA_SET_POLL_INTERVAL))
+							.thenCompose(ignore -> awaitReplicaSetAsync(cluster, deadline, executor));
+				});
+	}
+
+	/**
+	 * @return null if the replica set has a primary, the expected number of secondaries
+	 * and the port of the cluster routes to the primary, a description of its state
+	 * otherwise
+	 */
+	private String replicaSetState(ServiceInstanceParams cluster, int expectedMembers) {
+		boolean routed = router == null || router.route(cluster);
+		String state = withClient(cluster, c -> replicaSetState(c, expectedMembers));
+		if (state == null && !routed && !router.route(cluster)) {
+			return "port not routed to the primary yet";
+		}
+		return state;
+	}
+
+	/**
+	 * @return null if the replica set has a primary and the expected number of
+	 * secondaries, a description of its state otherwise
+	 */
+	private String replicaSetState(MongoClient client, int expectedMembers) {
+		try {
+			Document status = client.getDatabase(adminDatabase)
+					.runCommand(new Document("replSetGetStatus", 1));
+			int primaries = 0;
+			int secondaries = 0;
+			for (Object member : (List<?>) status.get("members", List.class)) {
+				String memberState = ((Document) member).getString("stateStr");
+				if ("PRIMARY".equals(memberState)) {
+					primaries++;
+				}
+				else if ("SECONDARY".equals(memberState)) {
+					secondaries++;
+				}
+			}
+			if (primaries == 1 && secondaries >= expectedMembers - 1) {
+				return null;
+			}
+			return primaries + " primary, " + secondaries + " of " + (expectedMembers - 1)
+					+ " secondaries";
+		} catch (MongoException e) {
+			// not initiated, not reachable or the admin user does not exist yet
+			return e.getMessage();
+		}
+	}
+
 	private MongoServiceException handleException(Exception e) {
 		logger.warn(e.getLocalizedMessage(), e);
 		return new MongoServiceException(e.getLocalizedMessage());
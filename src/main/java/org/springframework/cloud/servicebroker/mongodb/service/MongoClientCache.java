@@ -0,0 +1,211 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Admin clients for the clusters of service instances, keyed by cluster address.
+ * <p>
+ * Every instance exposes its own replica set on {@code mongodb.host} at the instance's
+ * port. The members' own addresses are only known inside k8s, so that port is the one
+ * endpoint the broker can reach; it only routes to the primary (see
+ * {@link PrimaryRouter}), and clients connect to it directly. Clients are created on
+ * first use and kept for reuse, each with at most
+ * {@code mongodb.clients.connections-per-host} connections. At most
+ * {@code mongodb.clients.max-clients} clients are kept; beyond that the least recently
+ * used one is evicted, and clients unused for {@code mongodb.clients.idle-timeout}
+ * seconds are closed. Their other options are those of the broker's own client, see
+ * {@link MongoConfig#clientOptions()}. An evicted client that is still in use is closed
+ * when its last user is done with it.
+ */
+@Component
+public class MongoClientCache implements PublicMetrics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MongoClientCache.class);
+
+	private final Map<ServerAddress, Entry> clients = new LinkedHashMap<>(16, 0.75f,
+			true);
+
+	private final MongoConfig config;
+
+	private final ScheduledExecutorService sweeper = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "mongo-client-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private long created;
+
+	private long evicted;
+
+	@Value("${mongodb.clients.max-clients:20}")
+	private int maxClients = 20;
+
+	@Value("${mongodb.clients.connections-per-host:10}")
+	private int connectionsPerHost = 10;
+
+	@Value("${mongodb.clients.idle-timeout:300}")
+	private long idleTimeout = 300;
+
+	@Autowired
+	public MongoClientCache(MongoConfig config) {
+		this.config = config;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		long interval = Math.max(TimeUnit.SECONDS.toMillis(idleTimeout) / 2, 1000);
+		sweeper.scheduleWithFixedDelay(this::closeIdle, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the address of the cluster serving the given instance
+	 */
+	public ServerAddress addressOf(ServiceInstanceParams instance) {
+		return new ServerAddress(config.getHost(), instance.getExposePort());
+	}
+
+	/**
+	 * Runs the action with the client for the given cluster, creating the client if
+	 * needed. The client must not be used once the action returns.
+	 */
+	public <T> T execute(ServerAddress address, Function<MongoClient, T> action) {
+		Entry entry = acquire(address);
+		try {
+			return action.apply(entry.client);
+		}
+		finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Closes the client for the given cluster once it is no longer in use, so that the
+	 * next action connects anew, e.g. after the cluster's port was routed elsewhere.
+	 */
+	public synchronized void reset(ServerAddress address) {
+		Entry entry = clients.remove(address);
+		if (entry != null) {
+			evict(entry);
+		}
+	}
+
+	private synchronized Entry acquire(ServerAddress address) {
+		Entry entry = clients.get(address);
+		if (entry == null) {
+			entry = new Entry(create(address));
+			clients.put(address, entry);
+			created++;
+			evictOverflow();
+		}
+		entry.users++;
+		return entry;
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.users--;
+		entry.lastUsed = System.nanoTime();
+		if (entry.evicted && entry.users == 0) {
+			entry.client.close();
+		}
+	}
+
+	private MongoClient create(ServerAddress address) {
+		LOGGER.info("Creating admin client for cluster " + address);
+		MongoClientOptions options = config.clientOptions()
+				.connectionsPerHost(connectionsPerHost)
+				.maxConnectionIdleTime((int) TimeUnit.SECONDS.toMillis(idleTimeout))
+				.build();
+		return new MongoClient(address, config.getCredentials(), options);
+	}
+
+	private void evictOverflow() {
+		Iterator<Entry> eldest = clients.values().iterator();
+		while (clients.size() > maxClients && eldest.hasNext()) {
+			evict(eldest.next());
+			eldest.remove();
+		}
+	}
+
+	synchronized void closeIdle() {
+		long cutoff = System.nanoTime() - TimeUnit.SECONDS.toNanos(idleTimeout);
+		Iterator<Entry> entries = clients.values().iterator();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			if (entry.users == 0 && entry.lastUsed - cutoff < 0) {
+				evict(entry);
+				entries.remove();
+			}
+		}
+	}
+
+	private void evict(Entry entry) {
+		entry.evicted = true;
+		evicted++;
+		if (entry.users == 0) {
+			entry.client.close();
+		}
+	}
+
+	@Override
+	public synchronized Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("mongodb.clients.live", clients.size()));
+		metrics.add(new Metric<>("mongodb.clients.created", created));
+		metrics.add(new Metric<>("mongodb.clients.evicted", evicted));
+		return metrics;
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		sweeper.shutdown();
+		for (Entry entry : clients.values()) {
+			entry.client.close();
+		}
+		clients.clear();
+	}
+
+	private static final class Entry {
+
+		private final MongoClient client;
+
+		private int users;
+
+		private long lastUsed = System.nanoTime();
+
+		private boolean evicted;
+
+		Entry(MongoClient client) {
+			this.client = client;
+		}
+
+	}
+
+}
@@ -1,40 +1,71 @@
 package org.springframework.cloud.servicebroker.mongodb.service;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.Proxy;
-import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.X509Certificate;
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
-import javax.net.ssl.*;
-
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.client.methods.AsyncCharConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.servicebroker.mongodb.config.K8sTransportConfig;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.service.K8sManifestRenderer.Manifest;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
-import org.springframework.ui.freemarker.FreeMarkerTemplateUtils;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import freemarker.template.Configuration;
 import freemarker.template.TemplateException;
 
+/**
+ * Manages the k8s objects of service instances. Creation, readiness polling and
+ * deletion run as non-blocking pipelines on the asynchronous transport, so no thread
+ * is held while k8s works; the blocking variants wait for those pipelines.
+ */
 @Service
 public class MongoK8sService {
 
@@ -42,11 +73,19 @@ public class MongoK8sService {
 
 		DISCOVERY_SERVICE("discovery_service.yml"), HEADLESS_SERVICE(
 				"headless_service.yml"), STATEFULSET("statefulset.yml"), CONFIGMAP(
-						"configmap.yml"), STORAGE_CLASS("storage_gcp.yml");
+						"configmap.yml"), SECRET("secret.yml"), STORAGE_CLASS(
+								"storage_gcp.yml");
 
 		private String fileName;
-		private static final List<K8sObject> orderedList = new ArrayList<>();
-		private static final List<K8sObject> reverseOrderedList = new ArrayList<>();
+		private static final List<K8sObject> ORDERED_LIST = Collections
+				.unmodifiableList(Arrays.asList(values()));
+		private static final List<K8sObject> REVERSE_ORDERED_LIST;
+
+		static {
+			List<K8sObject> reversed = new ArrayList<>(ORDERED_LIST);
+			Collections.reverse(reversed);
+			REVERSE_ORDERED_LIST = Collections.unmodifiableList(reversed);
+		}
 
 		K8sObject(String fileName) {
 			setFileName(fileName);
@@ -61,104 +100,770 @@ public class MongoK8sService {
 		}
 
 		static List<K8sObject> getOrderedList() {
-			if (orderedList.isEmpty()) {
-				orderedList.addAll(Arrays.asList(values()));
-			}
-			return orderedList;
+			return ORDERED_LIST;
 		}
 
 		static List<K8sObject> getReverseOrderedList() {
-			if (reverseOrderedList.isEmpty()) {
-				reverseOrderedList.addAll(getOrderedList());
-				Collections.reverse(reverseOrderedList);
+			return REVERSE_ORDERED_LIST;
+		}
+
+		/**
+		 * Objects that have to exist before this one can be created. The statefulset
+		 * mounts the configmap and the secret, binds its claims to the storage class
+		 * and registers its pods with the headless service; everything else is
+		 * independent.
+		 */
+		Set<K8sObject> getDependencies() {
+			switch (this) {
+			case STATEFULSET:
+				return EnumSet.of(STORAGE_CLASS, CONFIGMAP, SECRET, HEADLESS_SERVICE);
+			default:
+				return EnumSet.noneOf(K8sObject.class);
 			}
-			return reverseOrderedList;
+		}
+
+		/**
+		 * @return whether the given cluster has this object. Only shared clusters run
+		 * with authorization, so only they have a secret.
+		 */
+		boolean isPartOf(ServiceInstanceParams serviceObj) {
+			return this != SECRET || serviceObj.isShared();
+		}
+
+	}
+
+	/**
+	 * Outcome of a single object creation within the provisioning graph.
+	 */
+	static final class K8sObjectResult {
+
+		private final K8sObject object;
+		private final HttpStatus status;
+		private final String body;
+		private final long elapsedMillis;
+
+		K8sObjectResult(K8sObject object, HttpStatus status, String body,
+				long elapsedMillis) {
+			this.object = object;
+			this.status = status;
+			this.body = body;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		static K8sObjectResult skipped(K8sObject object) {
+			return new K8sObjectResult(object, null, "skipped: dependency failed", 0);
+		}
+
+		K8sObject getObject() {
+			return object;
+		}
+
+		HttpStatus getStatus() {
+			return status;
+		}
+
+		String getBody() {
+			return body;
+		}
+
+		long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		boolean isSuccess() {
+			return status != null && STATUS_CODES.contains(status.toString());
+		}
+
+		/**
+		 * @return whether the object exists now; when resuming, an object that already
+		 * existed counts as created
+		 */
+		boolean isCreated(boolean resume) {
+			return isSuccess() || (resume && status == HttpStatus.CONFLICT);
 		}
 
 	}
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(MongoK8sService.class);
-	private final Configuration config;
+	private final K8sManifestRenderer renderer;
 	private final RestTemplate restTemplate;
-	private static final String CONTENT_TYPE = "application/yaml";
+	private final AsyncRestTemplate asyncRestTemplate;
+	private final HttpAsyncClient watchClient;
+	private final K8sApiLimiter limiter;
+	private final ProvisioningMetrics metrics;
+
+	@Value("${mongodb.k8s.delete-timeout:300}")
+	private long deleteTimeout = 300;
 	private static final String BASE_URL = "/api/v1/namespaces/";
 	private static final String BASE_URL_SF = "/apis/apps/v1/namespaces/";
 	private static final String BASE_URL_STORAGE = "/apis/storage.k8s.io/v1/storageclasses";
 	private static final List<String> STATUS_CODES = Arrays.asList("200", "201");
+	private static final long POLL_BASE_BACKOFF = 500;
+	private static final String FOREGROUND = "?propagationPolicy=Foreground";
+	private static final String DISCOVERY_SUFFIX = "-discovery";
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final MediaType MERGE_PATCH = MediaType
+			.valueOf("application/merge-patch+json");
 
-	public MongoK8sService(Configuration config) {
-		this.config = config;
-		this.config.setClassForTemplateLoading(this.getClass(), "/templates/");
-		restTemplate = new RestTemplate(new TrustEverythingClientHttpRequestFactory());
+	public MongoK8sService(K8sManifestRenderer renderer,
+			@Qualifier(K8sTransportConfig.K8S_REQUEST_FACTORY) ClientHttpRequestFactory requestFactory,
+			@Qualifier(K8sTransportConfig.K8S_ASYNC_REQUEST_FACTORY) AsyncClientHttpRequestFactory asyncRequestFactory,
+			K8sApiLimiter limiter, ProvisioningMetrics metrics) {
+		this.renderer = renderer;
+		this.limiter = limiter;
+		this.metrics = metrics;
+		restTemplate = new RestTemplate(requestFactory);
 		restTemplate.setErrorHandler(new NoErrorsResponseErrorHandler());
+		asyncRestTemplate = new AsyncRestTemplate(asyncRequestFactory, restTemplate);
+		asyncRestTemplate.setErrorHandler(new NoErrorsResponseErrorHandler());
+		// watch streams are consumed as they arrive, which takes the non-blocking client
+		watchClient = asyncRequestFactory instanceof HttpComponentsAsyncClientHttpRequestFactory
+				? ((HttpComponentsAsyncClientHttpRequestFactory) asyncRequestFactory)
+						.getAsyncClient()
+				: null;
+		if (watchClient instanceof CloseableHttpAsyncClient) {
+			((CloseableHttpAsyncClient) watchClient).start();
+		}
 	}
 
-	boolean createK8sObjects(ServiceInstanceParams serviceObj)
+	/**
+	 * Creates the k8s objects of an instance. When resuming an interrupted
+	 * provisioning, objects that already exist are treated as created.
+	 */
+	boolean createK8sObjects(ServiceInstanceParams serviceObj, boolean resume)
 			throws IOException, InterruptedException, TemplateException {
-		final HttpHeaders headers = new HttpHeaders();
-		headers.set("Authorization", "Bearer " + serviceObj.getAccessToken());
-		headers.set("Content-Type", CONTENT_TYPE);
-		// if (LOGGER.isDebugEnabled()) {
-		// LOGGER.debug(
-		// "Deleting k8s objects if exist before creating a new service instance");
-		// }
-		// for (K8sObject obj : K8sObject.getOrderedList()) {
-		// deleteObjectIfExists(obj, headers, serviceObj);
-		// }
+		try {
+			return createK8sObjectsAsync(serviceObj, resume).get();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof TemplateException) {
+				throw (TemplateException) ex.getCause();
+			}
+			throw asIOException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Creates the k8s objects of an instance without blocking. The manifests are
+	 * rendered up front and every object is posted as soon as its dependencies have
+	 * been created; if a dependency fails, the dependent object is skipped. If any
+	 * object could not be created, the ones that were are deleted again by name before
+	 * the returned future completes, so a failed create leaves nothing behind and never
+	 * touches objects that already existed.
+	 * @see #createK8sObjects(ServiceInstanceParams, boolean)
+	 */
+	CompletableFuture<Boolean> createK8sObjectsAsync(ServiceInstanceParams serviceObj,
+			boolean resume) {
+		Map<K8sObject, Manifest> manifests = new EnumMap<>(K8sObject.class);
+		try {
+			for (K8sObject obj : K8sObject.getOrderedList()) {
+				if (!obj.isPartOf(serviceObj)) {
+					continue;
+				}
+				long rendering = System.nanoTime();
+				manifests.put(obj, renderer.render(obj, serviceObj));
+				metrics.render(obj.name().toLowerCase(), rendering);
+			}
+		}
+		catch (IOException | TemplateException ex) {
+			CompletableFuture<Boolean> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+		final HttpHeaders headers = authHeaders(serviceObj);
+		long start = System.nanoTime();
+		Map<K8sObject, CompletableFuture<K8sObjectResult>> graph = new EnumMap<>(
+				K8sObject.class);
 		for (K8sObject obj : K8sObject.getReverseOrderedList()) {
-			ResponseEntity<String> result = createObject(obj, headers, serviceObj);
-			if (!STATUS_CODES.contains(result.getStatusCode().toString())) {
-				LOGGER.error(obj + " creation has failed with status code: "
-						+ result.getStatusCode() + result.getBody());
-				return false;
+			if (obj.isPartOf(serviceObj)) {
+				scheduleCreate(obj, graph, headers, manifests, serviceObj, resume);
 			}
 		}
-		if (!actionStatus(headers, serviceObj)) {
-			LOGGER.error(
-					"POD creation has failed or taking longer time to complete. Exceeded the threshold wait time");
-			return false;
+		return CompletableFuture.allOf(graph.values().toArray(new CompletableFuture<?>[0]))
+				.handle((ignore, failure) -> {
+					List<K8sObjectResult> results = new ArrayList<>();
+					Set<K8sObject> made = EnumSet.noneOf(K8sObject.class);
+					boolean created = true;
+					for (CompletableFuture<K8sObjectResult> future : graph.values()) {
+						if (future.isCompletedExceptionally()) {
+							created = false;
+							continue;
+						}
+						K8sObjectResult result = future.join();
+						results.add(result);
+						metrics.k8sObject(result.getObject().name().toLowerCase(),
+								result.getStatus() == null ? "skipped"
+										: String.valueOf(result.getStatus().value()),
+								result.getElapsedMillis());
+						if (result.isCreated(resume)) {
+							made.add(result.getObject());
+						}
+						else if (result.getStatus() == null) {
+							LOGGER.error(result.getObject() + " creation was "
+									+ result.getBody());
+							created = false;
+						}
+						else {
+							LOGGER.error(result.getObject()
+									+ " creation has failed with status code: "
+									+ result.getStatus() + ": " + result.getBody());
+							created = false;
+						}
+					}
+					LOGGER.info("K8s objects for " + serviceObj.getName() + " processed in "
+							+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+							+ "ms " + formatTimings(results));
+					if (created) {
+						return CompletableFuture.completedFuture(true);
+					}
+					return CompletableFuture
+							.allOf(deleteByName(serviceObj, made, headers)
+									.toArray(new CompletableFuture<?>[0]))
+							.handle((done, ex) -> {
+								if (ex != null) {
+									LOGGER.warn("Unable to remove partially created k8s objects of "
+											+ serviceObj.getName() + ": " + ex.getMessage());
+								}
+								if (failure != null) {
+									throw failure instanceof CompletionException
+											? (CompletionException) failure
+											: new CompletionException(failure);
+								}
+								return false;
+							});
+				}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Waits for all pods of an instance to come up, or until the deadline
+	 * ({@link System#nanoTime()}) has passed.
+	 */
+	boolean awaitReady(ServiceInstanceParams serviceObj, long deadline)
+			throws IOException, InterruptedException {
+		try {
+			return awaitReadyAsync(serviceObj, deadline).get();
+		}
+		catch (ExecutionException ex) {
+			throw asIOException(ex.getCause());
 		}
-		return true;
 	}
 
-	void deleteK8sObjects(ServiceInstanceParams serviceObj) {
+	/**
+	 * Waits without blocking until every pod of the statefulset reports phase
+	 * {@code Running}, or until the deadline ({@link System#nanoTime()}) has passed.
+	 * Phase changes are consumed from a watch stream on the non-blocking client, so
+	 * readiness is noticed as soon as it happens without holding a thread. If the
+	 * watch cannot be established, or the transport has no non-blocking client, all
+	 * pods are read with one list call per round instead, with rounds spaced by
+	 * jittered exponential backoff. Either way the wait ends as soon as one of the pods
+	 * fails.
+	 */
+	CompletableFuture<Boolean> awaitReadyAsync(ServiceInstanceParams serviceObj,
+			long deadline) {
+		HttpHeaders headers = authHeaders(serviceObj);
+		CompletableFuture<PodPhase> watched = watchClient == null
+				? CompletableFuture.completedFuture(PodPhase.UNAVAILABLE)
+				: watchPods(serviceObj, headers, deadline);
+		return watched.exceptionally(ex -> {
+			LOGGER.warn("Watch on pods of " + serviceObj.getName()
+					+ " could not be established, falling back to polling: "
+					+ ex.getMessage());
+			return PodPhase.UNAVAILABLE;
+		}).thenCompose(phase -> {
+			if (phase != PodPhase.UNAVAILABLE) {
+				return CompletableFuture.completedFuture(phase == PodPhase.RUNNING);
+			}
+			return pollPods(listAPI(serviceObj, "pods"), new HttpEntity<>(null, headers),
+					serviceObj, deadline, 0);
+		}).thenApply(running -> {
+			if (!running) {
+				LOGGER.error(
+						"POD creation has failed or taking longer time to complete. Exceeded the threshold wait time");
+			}
+			return running;
+		});
+	}
+
+	/**
+	 * Watches the pods of an instance until all of them run, one of them fails or the
+	 * deadline has passed. A watch the server ends before that is opened again. Watches
+	 * are long-lived and opened once per wait, so they bypass the rate limit; the
+	 * polling fallback does not.
+	 * @return the phase the pods ended in: {@code PENDING} if the deadline passed,
+	 * {@code UNAVAILABLE} if the watch stream is not usable
+	 */
+	private CompletableFuture<PodPhase> watchPods(ServiceInstanceParams serviceObj,
+			HttpHeaders headers, long deadline) {
+		long remaining = TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime());
+		if (remaining <= 0) {
+			return CompletableFuture.completedFuture(PodPhase.PENDING);
+		}
+		HttpGet request = new HttpGet(URI.create(listAPI(serviceObj, "pods")
+				+ "&watch=true&timeoutSeconds=" + remaining));
+		headers.forEach((name, values) -> values
+				.forEach(value -> request.addHeader(name, value)));
+		PodWatch watch = new PodWatch(serviceObj);
+		watchClient.execute(HttpAsyncMethods.create(request), watch, watch.callback());
+		return watch.outcome.thenCompose(phase -> {
+			if (phase != PodPhase.PENDING) {
+				return CompletableFuture.completedFuture(phase);
+			}
+			// stream closed by the server before the pods were running; re-watch
+			return Delays.of(POLL_BASE_BACKOFF)
+					.thenCompose(ignore -> watchPods(serviceObj, headers, deadline));
+		});
+	}
+
+	private static HttpHeaders authHeaders(ServiceInstanceParams serviceObj) {
 		final HttpHeaders headers = new HttpHeaders();
 		headers.set("Authorization", "Bearer " + serviceObj.getAccessToken());
-		headers.set("Content-Type", CONTENT_TYPE);
+		return headers;
+	}
+
+	void deleteK8sObjects(ServiceInstanceParams serviceObj) {
+		try {
+			deleteK8sObjectsAsync(serviceObj).join();
+		}
+		catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Deletes the k8s objects of an instance without blocking. All objects are deleted
+	 * at once with foreground propagation, together with the volume claims of the
+	 * statefulset, which k8s would otherwise keep. The returned future completes once
+	 * the statefulset, its pods and its claims are gone; it fails if a deletion is
+	 * refused or if they are still there after {@code mongodb.k8s.delete-timeout}
+	 * seconds.
+	 */
+	CompletableFuture<Void> deleteK8sObjectsAsync(ServiceInstanceParams serviceObj) {
+		final HttpHeaders headers = authHeaders(serviceObj);
 		if (LOGGER.isDebugEnabled()) {
 			LOGGER.debug("Deleting k8s objects as part of service instance deletion");
 		}
+		List<CompletableFuture<Void>> deletions = new ArrayList<>();
 		for (K8sObject obj : K8sObject.getOrderedList()) {
-			deleteObjectIfExists(obj, headers, serviceObj);
+			if (obj.isPartOf(serviceObj)) {
+				deletions.add(deleteObject(obj.name(),
+						URI.create(getEndpoint(obj, serviceObj, true) + FOREGROUND),
+						headers));
+			}
 		}
+		deletions.add(deleteObject("PERSISTENT_VOLUME_CLAIMS",
+				listAPI(serviceObj, "persistentvolumeclaims"), headers));
+		return awaitDeleted(serviceObj, deletions, headers);
 	}
 
-	private ResponseEntity<String> createObject(K8sObject obj, HttpHeaders headers,
-			ServiceInstanceParams serviceObj) throws IOException, TemplateException {
-		ResponseEntity<String> result = restTemplate.exchange(
-				getEndpoint(obj, serviceObj, false), HttpMethod.POST,
-				new HttpEntity<>(
-						FreeMarkerTemplateUtils.processTemplateIntoString(
-								config.getTemplate(obj.getFileName()), serviceObj),
-						headers),
-				String.class);
-		if (LOGGER.isDebugEnabled()) {
-			LOGGER.debug("Creation of " + obj + " : ", result.getStatusCode(),
-					result.getBody());
+	/**
+	 * Deletes the k8s objects a create of the instance has made without blocking, like
+	 * {@link #deleteK8sObjectsAsync(ServiceInstanceParams)} but by name only: the volume
+	 * claims deleted are those of the statefulset's replicas rather than every claim
+	 * labelled with the instance's name, so an instance whose create is rolled back
+	 * never takes volumes of another one with it.
+	 */
+	CompletableFuture<Void> deleteCreatedK8sObjectsAsync(ServiceInstanceParams serviceObj) {
+		final HttpHeaders headers = authHeaders(serviceObj);
+		return awaitDeleted(serviceObj,
+				deleteByName(serviceObj, K8sObject.getOrderedList(), headers), headers);
+	}
+
+	/**
+	 * Deletes the given objects of an instance by name, together with the volume claims
+	 * of the statefulset's replicas if it is one of them.
+	 */
+	private List<CompletableFuture<Void>> deleteByName(ServiceInstanceParams serviceObj,
+			Collection<K8sObject> objects, HttpHeaders headers) {
+		List<CompletableFuture<Void>> deletions = new ArrayList<>();
+		for (K8sObject obj : objects) {
+			if (obj.isPartOf(serviceObj)) {
+				deletions.add(deleteObject(obj.name(),
+						URI.create(getEndpoint(obj, serviceObj, true) + FOREGROUND),
+						headers));
+			}
+		}
+		if (objects.contains(K8sObject.STATEFULSET)) {
+			for (int ordinal = 0; ordinal < serviceObj.getReplicas(); ordinal++) {
+				String claim = "datadir-" + serviceObj.getName() + "-" + ordinal;
+				deletions.add(deleteObject(claim,
+						URI.create(serviceObj.getUrl() + BASE_URL + serviceObj.getNamespace()
+								+ "/persistentvolumeclaims/" + claim),
+						headers));
+			}
+		}
+		return deletions;
+	}
+
+	/**
+	 * @return a future that completes once the given deletions have been accepted and
+	 * the statefulset of the instance, its pods and its claims are gone
+	 */
+	private CompletableFuture<Void> awaitDeleted(ServiceInstanceParams serviceObj,
+			List<CompletableFuture<Void>> deletions, HttpHeaders headers) {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(deleteTimeout);
+		return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0]))
+				.thenCompose(ignore -> awaitGone(serviceObj,
+						new HttpEntity<>(null, headers), deadline, 0))
+				.whenComplete((ignore, ex) -> {
+					renderer.evict(serviceObj);
+					if (ex == null) {
+						LOGGER.info("K8s objects for " + serviceObj.getName()
+								+ " released in " + TimeUnit.NANOSECONDS
+										.toMillis(System.nanoTime() - start)
+								+ "ms");
+					}
+				});
+	}
+
+	/**
+	 * Polls with jittered exponential backoff until the statefulset of an instance,
+	 * its pods and its volume claims are gone, or until the deadline has passed.
+	 */
+	private CompletableFuture<Void> awaitGone(ServiceInstanceParams serviceObj,
+			HttpEntity<String> entity, long deadline, int attempt) {
+		CompletableFuture<Boolean> statefulSetGone = exchange(
+				URI.create(getEndpoint(K8sObject.STATEFULSET, serviceObj, true)),
+				HttpMethod.GET, entity)
+						.thenApply(result -> result.getStatusCode() == HttpStatus.NOT_FOUND);
+		CompletableFuture<Boolean> podsGone = isEmpty(listAPI(serviceObj, "pods"),
+				entity);
+		CompletableFuture<Boolean> claimsGone = isEmpty(
+				listAPI(serviceObj, "persistentvolumeclaims"), entity);
+		return statefulSetGone.thenCombine(podsGone, Boolean::logicalAnd)
+				.thenCombine(claimsGone, Boolean::logicalAnd).thenCompose(gone -> {
+					if (gone) {
+						return CompletableFuture.completedFuture(null);
+					}
+					long remaining = TimeUnit.NANOSECONDS
+							.toMillis(deadline - System.nanoTime());
+					if (remaining <= 0) {
+						throw new CompletionException(new IOException("K8s objects for "
+								+ serviceObj.getName() + " are still present after "
+								+ deleteTimeout + "s"));
+					}
+					long maxBackoff = TimeUnit.SECONDS
+							.toMillis(serviceObj.getServiceTimeout());
+					return Delays
+							.of(Math.min(remaining,
+									Delays.jittered(attempt, POLL_BASE_BACKOFF, maxBackoff)))
+							.thenCompose(ignore -> awaitGone(serviceObj, entity, deadline,
+									attempt + 1));
+				});
+	}
+
+	private CompletableFuture<Boolean> isEmpty(URI listAPI, HttpEntity<String> entity) {
+		return exchange(listAPI, HttpMethod.GET, entity).thenApply(result -> {
+			if (!result.getStatusCode().is2xxSuccessful()) {
+				return false;
+			}
+			try {
+				return MAPPER.readTree(result.getBody()).path("items").size() == 0;
+			}
+			catch (IOException ex) {
+				throw new CompletionException(ex);
+			}
+		});
+	}
+
+	/**
+	 * @return the list endpoint for namespaced resources of the given kind that belong
+	 * to an instance
+	 */
+	private static URI listAPI(ServiceInstanceParams serviceObj, String kind) {
+		return URI.create(serviceObj.getUrl() + BASE_URL + serviceObj.getNamespace()
+				+ "/" + kind + "?labelSelector=app%3D" + serviceObj.getName());
+	}
+
+	/**
+	 * Lists the statefulsets in the namespace of the given instance that carry all of
+	 * the given labels.
+	 */
+	List<JsonNode> listStatefulSets(ServiceInstanceParams serviceObj,
+			Map<String, String> labels) throws IOException {
+		return listItems(serviceObj, "statefulsets",
+				URI.create(getEndpoint(K8sObject.STATEFULSET, serviceObj, false)
+						+ "?labelSelector=" + selector(labels)));
+	}
+
+	/**
+	 * Lists the pods in the namespace of the given instance that carry all of the given
+	 * labels.
+	 */
+	List<JsonNode> listPods(ServiceInstanceParams serviceObj, Map<String, String> labels)
+			throws IOException {
+		return listItems(serviceObj, "pods", URI.create(serviceObj.getUrl() + BASE_URL
+				+ serviceObj.getNamespace() + "/pods?labelSelector=" + selector(labels)));
+	}
+
+	private List<JsonNode> listItems(ServiceInstanceParams serviceObj, String kind,
+			URI listAPI) throws IOException {
+		ResponseEntity<String> result = limiter.execute(listAPI, HttpMethod.GET,
+				() -> restTemplate.exchange(listAPI, HttpMethod.GET,
+						new HttpEntity<>(null, authHeaders(serviceObj)), String.class));
+		if (!result.getStatusCode().is2xxSuccessful()) {
+			throw new IOException("Listing " + kind + " failed with status code: "
+					+ result.getStatusCode() + result.getBody());
+		}
+		List<JsonNode> items = new ArrayList<>();
+		MAPPER.readTree(result.getBody()).path("items").forEach(items::add);
+		return items;
+	}
+
+	private static String selector(Map<String, String> labels) {
+		StringBuilder selector = new StringBuilder();
+		for (Map.Entry<String, String> label : labels.entrySet()) {
+			selector.append(selector.length() == 0 ? "" : "%2C").append(label.getKey())
+					.append("%3D").append(label.getValue());
+		}
+		return selector.toString();
+	}
+
+	/**
+	 * Merges the given labels into the statefulset of an instance. With a resource
+	 * version the update only applies if the statefulset has not changed since.
+	 * @return the updated statefulset, or null if the update was refused
+	 */
+	JsonNode labelStatefulSet(ServiceInstanceParams serviceObj,
+			Map<String, String> labels, String resourceVersion) throws IOException {
+		ObjectNode metadata = MAPPER.createObjectNode();
+		if (resourceVersion != null) {
+			metadata.put("resourceVersion", resourceVersion);
+		}
+		ObjectNode labelNode = metadata.putObject("labels");
+		labels.forEach(labelNode::put);
+		ObjectNode patch = MAPPER.createObjectNode();
+		patch.set("metadata", metadata);
+		HttpHeaders headers = authHeaders(serviceObj);
+		headers.setContentType(MERGE_PATCH);
+		URI statefulSetAPI = URI.create(getEndpoint(K8sObject.STATEFULSET, serviceObj, true));
+		try {
+			ResponseEntity<String> result = limiter.execute(statefulSetAPI,
+					HttpMethod.PATCH, () -> restTemplate.exchange(statefulSetAPI,
+							HttpMethod.PATCH, new HttpEntity<>(patch.toString(), headers),
+							String.class));
+			if (!result.getStatusCode().is2xxSuccessful()) {
+				LOGGER.warn("Labelling statefulset " + serviceObj.getName()
+						+ " refused with status code: " + result.getStatusCode());
+				return null;
+			}
+			return MAPPER.readTree(result.getBody());
+		}
+		catch (RestClientException ex) {
+			// e.g. a transport that cannot send PATCH
+			LOGGER.warn("Unable to label statefulset " + serviceObj.getName() + ": "
+					+ ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Sets a label on a pod of an instance, or removes it if the value is null.
+	 * @return whether the pod was updated
+	 */
+	boolean labelPod(ServiceInstanceParams serviceObj, String podName, String label,
+			String value) throws IOException {
+		ObjectNode labels = MAPPER.createObjectNode();
+		if (value == null) {
+			labels.putNull(label);
+		}
+		else {
+			labels.put(label, value);
+		}
+		ObjectNode patch = MAPPER.createObjectNode();
+		patch.putObject("metadata").set("labels", labels);
+		HttpHeaders headers = authHeaders(serviceObj);
+		headers.setContentType(MERGE_PATCH);
+		URI podAPI = URI.create(serviceObj.getUrl() + BASE_URL + serviceObj.getNamespace()
+				+ "/pods/" + podName);
+		try {
+			ResponseEntity<String> result = limiter.execute(podAPI, HttpMethod.PATCH,
+					() -> restTemplate.exchange(podAPI, HttpMethod.PATCH,
+							new HttpEntity<>(patch.toString(), headers), String.class));
+			if (!result.getStatusCode().is2xxSuccessful()) {
+				LOGGER.warn("Labelling pod " + podName + " refused with status code: "
+						+ result.getStatusCode());
+				return false;
+			}
+			return true;
+		}
+		catch (RestClientException ex) {
+			LOGGER.warn("Unable to label pod " + podName + ": " + ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the node port of every discovery service in the namespace of the given
+	 * instance, by instance name
+	 */
+	Map<String, Integer> listDiscoveryPorts(ServiceInstanceParams serviceObj)
+			throws IOException {
+		Map<String, Integer> ports = new HashMap<>();
+		for (JsonNode service : listItems(serviceObj, "services", URI
+				.create(getEndpoint(K8sObject.DISCOVERY_SERVICE, serviceObj, false)))) {
+			String name = service.path("metadata").path("name").asText();
+			JsonNode port = service.path("spec").path("ports").path(0);
+			if (name.endsWith(DISCOVERY_SUFFIX) && port.hasNonNull("nodePort")) {
+				ports.put(name.substring(0, name.length() - DISCOVERY_SUFFIX.length()),
+						port.path("nodePort").asInt());
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * @return the node ports of all services in the cluster
+	 */
+	Set<Integer> listNodePorts(ServiceInstanceParams serviceObj) throws IOException {
+		URI servicesAPI = URI.create(serviceObj.getUrl() + "/api/v1/services");
+		ResponseEntity<String> result = limiter.execute(servicesAPI, HttpMethod.GET,
+				() -> restTemplate.exchange(servicesAPI, HttpMethod.GET,
+						new HttpEntity<>(null, authHeaders(serviceObj)), String.class));
+		if (!result.getStatusCode().is2xxSuccessful()) {
+			throw new IOException("Listing services failed with status code: "
+					+ result.getStatusCode() + result.getBody());
+		}
+		Set<Integer> ports = new HashSet<>();
+		for (JsonNode service : MAPPER.readTree(result.getBody()).path("items")) {
+			for (JsonNode port : service.path("spec").path("ports")) {
+				if (port.hasNonNull("nodePort")) {
+					ports.add(port.path("nodePort").asInt());
+				}
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * @return the node port k8s assigned to the discovery service of an instance
+	 */
+	int getNodePort(ServiceInstanceParams serviceObj) throws IOException {
+		URI discoveryAPI = URI
+				.create(getEndpoint(K8sObject.DISCOVERY_SERVICE, serviceObj, true));
+		ResponseEntity<String> result = limiter.execute(discoveryAPI, HttpMethod.GET,
+				() -> restTemplate.exchange(discoveryAPI, HttpMethod.GET,
+						new HttpEntity<>(null, authHeaders(serviceObj)), String.class));
+		if (!result.getStatusCode().is2xxSuccessful()) {
+			throw new IOException("Reading discovery service failed with status code: "
+					+ result.getStatusCode() + result.getBody());
 		}
-		return result;
+		return MAPPER.readTree(result.getBody()).path("spec").path("ports").path(0)
+				.path("nodePort").asInt();
 	}
 
-	private void deleteObjectIfExists(K8sObject obj, HttpHeaders headers,
-			ServiceInstanceParams serviceObj) {
+	/**
+	 * Schedules creation of the given object once all of its dependencies have been
+	 * created. Independent objects are posted straight away; if a dependency fails, the
+	 * dependent object is skipped rather than created.
+	 */
+	private CompletableFuture<K8sObjectResult> scheduleCreate(K8sObject obj,
+			Map<K8sObject, CompletableFuture<K8sObjectResult>> graph,
+			HttpHeaders headers, Map<K8sObject, Manifest> manifests,
+			ServiceInstanceParams serviceObj, boolean resume) {
+		CompletableFuture<K8sObjectResult> scheduled = graph.get(obj);
+		if (scheduled != null) {
+			return scheduled;
+		}
+		List<CompletableFuture<K8sObjectResult>> dependencies = new ArrayList<>();
+		for (K8sObject dependency : obj.getDependencies()) {
+			if (dependency.isPartOf(serviceObj)) {
+				dependencies.add(scheduleCreate(dependency, graph, headers, manifests,
+						serviceObj, resume));
+			}
+		}
+		scheduled = CompletableFuture
+				.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+				.thenCompose(ignore -> {
+					for (CompletableFuture<K8sObjectResult> dependency : dependencies) {
+						if (!dependency.join().isCreated(resume)) {
+							return CompletableFuture
+									.completedFuture(K8sObjectResult.skipped(obj));
+						}
+					}
+					return createObject(obj, headers, manifests.get(obj), serviceObj);
+				});
+		graph.put(obj, scheduled);
+		return scheduled;
+	}
+
+	private static String formatTimings(List<K8sObjectResult> results) {
+		StringBuilder sb = new StringBuilder("{");
+		for (K8sObjectResult result : results) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(result.getObject()).append('=')
+					.append(result.getElapsedMillis()).append("ms");
+		}
+		return sb.append('}').toString();
+	}
+
+	private CompletableFuture<K8sObjectResult> createObject(K8sObject obj,
+			HttpHeaders headers, Manifest manifest, ServiceInstanceParams serviceObj) {
+		HttpHeaders objHeaders = new HttpHeaders();
+		objHeaders.putAll(headers);
+		objHeaders.setContentType(manifest.getContentType());
+		long start = System.nanoTime();
+		return exchange(URI.create(getEndpoint(obj, serviceObj, false)), HttpMethod.POST,
+				new HttpEntity<>(manifest.getBody(), objHeaders)).thenApply(result -> {
+					if (LOGGER.isDebugEnabled()) {
+						LOGGER.debug("Creation of {}: {} {}", obj, result.getStatusCode(),
+								result.getBody());
+					}
+					return new K8sObjectResult(obj, result.getStatusCode(),
+							result.getBody(), TimeUnit.NANOSECONDS
+									.toMillis(System.nanoTime() - start));
+				});
+	}
+
+	/**
+	 * Deletes an object; one that does not exist counts as deleted.
+	 */
+	private CompletableFuture<Void> deleteObject(String name, URI uri,
+			HttpHeaders headers) {
 		HttpEntity<String> entity = new HttpEntity<>(null, headers);
-		ResponseEntity<String> result = restTemplate.exchange(
-				getEndpoint(obj, serviceObj, true), HttpMethod.DELETE, entity,
-				String.class);
-		if (LOGGER.isDebugEnabled()) {
-			LOGGER.debug("Deletion of " + obj.name() + ": ", result.getStatusCode(),
-					result.getBody());
+		return exchange(uri, HttpMethod.DELETE, entity).thenAccept(result -> {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Deletion of {}: {} {}", name, result.getStatusCode(),
+						result.getBody());
+			}
+			if (!result.getStatusCode().is2xxSuccessful()
+					&& result.getStatusCode() != HttpStatus.NOT_FOUND) {
+				throw new CompletionException(new IOException("Deletion of " + name
+						+ " has failed with status code: " + result.getStatusCode()
+						+ result.getBody()));
+			}
+		});
+	}
+
+	private CompletableFuture<ResponseEntity<String>> exchange(URI uri,
+			HttpMethod method, HttpEntity<String> entity) {
+		return limiter.executeAsync(uri, method, () -> send(uri, method, entity));
+	}
+
+	private CompletableFuture<ResponseEntity<String>> send(URI uri, HttpMethod method,
+			HttpEntity<String> entity) {
+		CompletableFuture<ResponseEntity<String>> response = new CompletableFuture<>();
+		try {
+			asyncRestTemplate.exchange(uri, method, entity, String.class)
+					.addCallback(response::complete, response::completeExceptionally);
+		}
+		catch (RestClientException ex) {
+			response.completeExceptionally(ex);
 		}
+		return response;
+	}
+
+	private static IOException asIOException(Throwable cause) {
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		return cause instanceof IOException ? (IOException) cause
+				: new IOException(cause);
 	}
 
 	private String getEndpoint(K8sObject obj, ServiceInstanceParams serviceObj,
@@ -178,11 +883,18 @@ public class MongoK8sService {
 				endpoint = endpoint + "/" + serviceObj.getName() + "-config";
 			}
 			break;
+		case SECRET:
+			endpoint = serviceObj.getUrl() + BASE_URL + serviceObj.getNamespace()
+					+ "/secrets";
+			if (delete) {
+				endpoint = endpoint + "/" + serviceObj.getName() + "-auth";
+			}
+			break;
 		case DISCOVERY_SERVICE:
 			endpoint = serviceObj.getUrl() + BASE_URL + serviceObj.getNamespace()
 					+ "/services";
 			if (delete) {
-				endpoint = endpoint + "/" + serviceObj.getName() + "-discovery";
+				endpoint = endpoint + "/" + serviceObj.getName() + DISCOVERY_SUFFIX;
 			}
 			break;
 		case HEADLESS_SERVICE:
@@ -203,100 +915,191 @@ public class MongoK8sService {
 		return endpoint;
 	}
 
-	private boolean actionStatus(HttpHeaders headers, ServiceInstanceParams serviceObj)
-			throws IOException, InterruptedException {
-		int threshold = 3;
-		boolean status = true;
-		HttpEntity<String> entity = new HttpEntity<>(null, headers);
-		ObjectMapper mapper = new ObjectMapper();
-		String podAPI = serviceObj.getUrl() + BASE_URL + serviceObj.getNamespace()
-				+ "/pods/" + serviceObj.getName() + "-0/status";
-		ResponseEntity<String> result;
-		while (true) {
-			result = restTemplate.exchange(podAPI, HttpMethod.GET, entity, String.class);
-			JsonNode node = mapper.readTree(result.getBody());
-			if (node.get("status").get("phase").textValue().equalsIgnoreCase("Running")) {
-				break;
-			}
-			if (--threshold >= 0) {
-				TimeUnit.SECONDS.sleep(serviceObj.getServiceTimeout());
+	private CompletableFuture<Boolean> pollPods(URI podsAPI, HttpEntity<String> entity,
+			ServiceInstanceParams serviceObj, long deadline, int attempt) {
+		return exchange(podsAPI, HttpMethod.GET, entity).thenCompose(result -> {
+			PodPhase phase;
+			try {
+				phase = result.getStatusCode().is2xxSuccessful()
+						? phaseOf(serviceObj, result.getBody()) : PodPhase.PENDING;
 			}
-			else {
-				status = false;
-				break;
+			catch (IOException ex) {
+				throw new CompletionException(ex);
+			}
+			if (phase != PodPhase.PENDING) {
+				return CompletableFuture.completedFuture(phase == PodPhase.RUNNING);
 			}
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				return CompletableFuture.completedFuture(false);
+			}
+			long maxBackoff = TimeUnit.SECONDS.toMillis(serviceObj.getServiceTimeout());
+			return Delays
+					.of(Math.min(remaining,
+							Delays.jittered(attempt, POLL_BASE_BACKOFF, maxBackoff)))
+					.thenCompose(ignore -> pollPods(podsAPI, entity, serviceObj, deadline,
+							attempt + 1));
+		});
+	}
+
+	private static PodPhase phaseOf(ServiceInstanceParams serviceObj, String pods)
+			throws IOException {
+		Map<String, PodPhase> phases = new HashMap<>();
+		for (JsonNode pod : MAPPER.readTree(pods).path("items")) {
+			phases.put(pod.path("metadata").path("name").asText(), PodPhase.of(pod));
 		}
-		return status;
+		return phaseOf(serviceObj, phases);
 	}
 
-	private static final class NoErrorsResponseErrorHandler
-			extends DefaultResponseErrorHandler {
+	/**
+	 * @return {@code RUNNING} once every pod of the instance runs, {@code FAILED} as
+	 * soon as one of them has failed, {@code PENDING} otherwise
+	 */
+	private static PodPhase phaseOf(ServiceInstanceParams serviceObj,
+			Map<String, PodPhase> phases) {
+		PodPhase phase = PodPhase.RUNNING;
+		for (int ordinal = 0; ordinal < Math.max(1, serviceObj.getReplicas()); ordinal++) {
+			String podName = serviceObj.getName() + "-" + ordinal;
+			PodPhase podPhase = phases.getOrDefault(podName, PodPhase.PENDING);
+			if (podPhase == PodPhase.FAILED) {
+				LOGGER.error("Pod " + podName + " has failed");
+				return PodPhase.FAILED;
+			}
+			if (podPhase != PodPhase.RUNNING) {
+				phase = PodPhase.PENDING;
+			}
+		}
+		return phase;
+	}
 
-		@Override
-		public boolean hasError(ClientHttpResponse response) {
-			return false;
+	private enum PodPhase {
+
+		PENDING, RUNNING, FAILED, UNAVAILABLE;
+
+		static PodPhase of(JsonNode pod) {
+			String phase = pod.path("status").path("phase").asText();
+			if ("Running".equalsIgnoreCase(phase)) {
+				return RUNNING;
+			}
+			if ("Failed".equalsIgnoreCase(phase)) {
+				return FAILED;
+			}
+			return PENDING;
 		}
 
 	}
 
-	private static final class TrustEverythingClientHttpRequestFactory
-			extends SimpleClientHttpRequestFactory {
+	/**
+	 * Consumes a watch stream on the pods of an instance as it arrives, one JSON event
+	 * per line, and completes {@link #outcome} once the pods have all run or one has
+	 * failed. The exchange is cancelled then, which drops the connection rather than
+	 * waiting for the server to end the stream. If the server ends it first, the
+	 * outcome is {@code PENDING}.
+	 */
+	private static final class PodWatch extends AsyncCharConsumer<PodPhase> {
 
-		@Override
-		protected HttpURLConnection openConnection(URL url, Proxy proxy)
-				throws IOException {
-			HttpURLConnection connection = super.openConnection(url, proxy);
+		private final ServiceInstanceParams serviceObj;
 
-			if (connection instanceof HttpsURLConnection) {
-				HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+		private final Map<String, PodPhase> phases = new HashMap<>();
 
-				httpsConnection.setSSLSocketFactory(
-						getSslContext(new TrustEverythingTrustManager())
-								.getSocketFactory());
-				httpsConnection
-						.setHostnameVerifier(new TrustEverythingHostNameVerifier());
-			}
+		private final StringBuilder line = new StringBuilder();
 
-			return connection;
+		private final CompletableFuture<PodPhase> outcome = new CompletableFuture<>();
+
+		PodWatch(ServiceInstanceParams serviceObj) {
+			this.serviceObj = serviceObj;
 		}
 
-		private static SSLContext getSslContext(TrustManager trustManager) {
-			try {
-				SSLContext sslContext = SSLContext.getInstance("SSL");
-				sslContext.init(null, new TrustManager[] { trustManager }, null);
-				return sslContext;
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			if (response.getStatusLine().getStatusCode() / 100 != 2) {
+				decide(PodPhase.UNAVAILABLE);
 			}
-			catch (KeyManagementException | NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
+		}
+
+		@Override
+		protected CharsetDecoder createDecoder(ContentType contentType) {
+			return StandardCharsets.UTF_8.newDecoder();
+		}
 
+		@Override
+		protected void onCharReceived(CharBuffer buf, IOControl ioctrl)
+				throws IOException {
+			while (buf.hasRemaining() && !outcome.isDone()) {
+				char c = buf.get();
+				if (c != '\n') {
+					line.append(c);
+				}
+				else if (line.length() > 0) {
+					onEvent(MAPPER.readTree(line.toString()));
+					line.setLength(0);
+				}
 			}
+		}
 
+		private void onEvent(JsonNode event) {
+			String type = event.path("type").asText();
+			if ("ERROR".equals(type)) {
+				decide(PodPhase.UNAVAILABLE);
+				return;
+			}
+			JsonNode pod = event.path("object");
+			String podName = pod.path("metadata").path("name").asText();
+			if ("DELETED".equals(type)) {
+				phases.remove(podName);
+			}
+			else {
+				phases.put(podName, PodPhase.of(pod));
+			}
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Pod " + podName + " " + type + " in phase "
+						+ phases.get(podName));
+			}
+			PodPhase phase = phaseOf(serviceObj, phases);
+			if (phase != PodPhase.PENDING) {
+				decide(phase);
+			}
 		}
-	}
 
-	private static final class TrustEverythingHostNameVerifier
-			implements HostnameVerifier {
+		private void decide(PodPhase phase) {
+			outcome.complete(phase);
+			cancel();
+		}
 
 		@Override
-		public boolean verify(String s, SSLSession sslSession) {
-			return true;
+		protected PodPhase buildResult(HttpContext context) {
+			return PodPhase.PENDING;
 		}
 
-	}
+		FutureCallback<PodPhase> callback() {
+			return new FutureCallback<PodPhase>() {
 
-	private static final class TrustEverythingTrustManager implements X509TrustManager {
+				@Override
+				public void completed(PodPhase result) {
+					outcome.complete(result);
+				}
 
-		@Override
-		public void checkClientTrusted(X509Certificate[] x509Certificates, String s) {
-		}
+				@Override
+				public void failed(Exception ex) {
+					outcome.completeExceptionally(ex);
+				}
 
-		@Override
-		public void checkServerTrusted(X509Certificate[] x509Certificates, String s) {
+				@Override
+				public void cancelled() {
+					outcome.complete(PodPhase.UNAVAILABLE);
+				}
+
+			};
 		}
 
+	}
+
+	private static final class NoErrorsResponseErrorHandler
+			extends DefaultResponseErrorHandler {
+
 		@Override
-		public X509Certificate[] getAcceptedIssuers() {
-			return new X509Certificate[0];
+		public boolean hasError(ClientHttpResponse response) {
+			return false;
 		}
 
 	}
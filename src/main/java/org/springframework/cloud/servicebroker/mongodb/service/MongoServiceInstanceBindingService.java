@@ -7,19 +7,26 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceBindingDoesNotExistException;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceBindingExistsException;
+import org.springframework.cloud.servicebroker.exception.ServiceInstanceDoesNotExistException;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceAppBindingResponse;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceBindingRequest;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceBindingResponse;
 import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceBindingRequest;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceBinding;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
 import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceBindingRepository;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
 import org.springframework.cloud.servicebroker.service.ServiceInstanceBindingService;
 import org.springframework.stereotype.Service;
 
 /**
  * Mongo impl to bind services.  Binding a service does the following:
  * creates a new user in the database (currently uses a default pwd of "password"),
- * saves the ServiceInstanceBinding info to the Mongo repository.
+ * saves the ServiceInstanceBinding info to the Mongo repository. Users are managed on
+ * the cluster of the bound instance; a binding whose instance is gone is simply
+ * removed. Binding and unbinding calls are timed through
+ * {@link ProvisioningMetrics}.
  *  
  * @author sgreenberg@pivotal.io
  */
@@ -30,15 +37,27 @@ public class MongoServiceInstanceBindingService implements ServiceInstanceBindin
 
 	private MongoServiceInstanceBindingRepository bindingRepository;
 
+	private MongoServiceInstanceRepository instanceRepository;
+
+	private ProvisioningMetrics metrics;
+
 	@Autowired
 	public MongoServiceInstanceBindingService(MongoAdminService mongo,
-											  MongoServiceInstanceBindingRepository bindingRepository) {
+											  MongoServiceInstanceBindingRepository bindingRepository,
+											  MongoServiceInstanceRepository instanceRepository,
+											  ProvisioningMetrics metrics) {
 		this.mongo = mongo;
 		this.bindingRepository = bindingRepository;
+		this.instanceRepository = instanceRepository;
+		this.metrics = metrics;
 	}
 	
 	@Override
 	public CreateServiceInstanceBindingResponse createServiceInstanceBinding(CreateServiceInstanceBindingRequest request) {
+		return metrics.binding("bind", request.getPlanId(), () -> bind(request));
+	}
+
+	private CreateServiceInstanceBindingResponse bind(CreateServiceInstanceBindingRequest request) {
 
 		String bindingId = request.getBindingId();
 		String serviceInstanceId = request.getServiceInstanceId();
@@ -48,16 +67,17 @@ public class MongoServiceInstanceBindingService implements ServiceInstanceBindin
 			throw new ServiceInstanceBindingExistsException(serviceInstanceId, bindingId);
 		}
 
+		ServiceInstanceParams cluster = getCluster(serviceInstanceId);
 		String database = serviceInstanceId;
 		String username = bindingId;
 		String password = RandomStringUtils.randomAlphanumeric(25);
 		
 		// TODO check if user already exists in the DB
 
-		mongo.createUser(database, username, password);
+		mongo.createUser(cluster, database, username, password);
 		
 		Map<String, Object> credentials =
-				Collections.singletonMap("uri", (Object) mongo.getConnectionString(database, username, password));
+				Collections.singletonMap("uri", (Object) mongo.getConnectionString(cluster, database, username, password));
 
 		binding = new ServiceInstanceBinding(bindingId, serviceInstanceId, credentials, null, request.getBoundAppGuid());
 		bindingRepository.save(binding);
@@ -67,6 +87,13 @@ public class MongoServiceInstanceBindingService implements ServiceInstanceBindin
 
 	@Override
 	public void deleteServiceInstanceBinding(DeleteServiceInstanceBindingRequest request) {
+		metrics.binding("unbind", request.getPlanId(), () -> {
+			unbind(request);
+			return null;
+		});
+	}
+
+	private void unbind(DeleteServiceInstanceBindingRequest request) {
 		String bindingId = request.getBindingId();
 		ServiceInstanceBinding binding = getServiceInstanceBinding(bindingId);
 
@@ -74,10 +101,22 @@ public class MongoServiceInstanceBindingService implements ServiceInstanceBindin
 			throw new ServiceInstanceBindingDoesNotExistException(bindingId);
 		}
 
-		mongo.deleteUser(binding.getServiceInstanceId(), bindingId);
+		ServiceInstance instance = instanceRepository.findOne(binding.getServiceInstanceId());
+		// without its instance, the binding's user went away with the instance's cluster
+		if (instance != null) {
+			mongo.deleteUser(instance.getInstanceParams(), binding.getServiceInstanceId(), bindingId);
+		}
 		bindingRepository.delete(bindingId);
 	}
 
+	private ServiceInstanceParams getCluster(String serviceInstanceId) {
+		ServiceInstance instance = instanceRepository.findOne(serviceInstanceId);
+		if (instance == null) {
+			throw new ServiceInstanceDoesNotExistException(serviceInstanceId);
+		}
+		return instance.getInstanceParams();
+	}
+
 	protected ServiceInstanceBinding getServiceInstanceBinding(String id) {
 		return bindingRepository.findOne(id);
 	}
@@ -2,35 +2,51 @@ package org.springframework.cloud.servicebroker.mongodb.service;
 
 import static org.springframework.cloud.servicebroker.model.OperationState.*;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceDoesNotExistException;
+import org.springframework.cloud.servicebroker.exception.ServiceInstanceExistsException;
 import org.springframework.cloud.servicebroker.model.*;
 import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.exception.LeaseLostException;
 import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerConcurrencyException;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Step;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
 import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.cloud.servicebroker.mongodb.service.ProvisioningScheduler.Admission;
 import org.springframework.cloud.servicebroker.service.ServiceInstanceService;
 import org.springframework.stereotype.Service;
 
 import com.mongodb.client.MongoDatabase;
 
-import freemarker.template.TemplateException;
-
 /**
  * Mongo impl to manage service instances. Creating a service does the following: creates
  * a new database, saves the ServiceInstance info to the Mongo repository.
+ * <p>
+ * Requests for the same instance are serialized by a striped lock: a request that
+ * repeats the operation already in progress joins it instead of starting another one,
+ * a conflicting request is refused with a concurrency error until the running
+ * operation completes. Requests for different instances do not wait for each other.
+ * <p>
+ * Instances of the shared plan get a database on one of the {@link SharedClusterPool}
+ * clusters instead of a cluster of their own; deleting them leaves the cluster alone.
+ * <p>
+ * Every step of an operation and every operation as a whole is timed through
+ * {@link ProvisioningMetrics}.
  * 
  * @author sgreenberg@pivotal.io
  */
@@ -48,89 +64,328 @@ public class MongoServiceInstanceService implements ServiceInstanceService {
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(MongoServiceInstanceService.class);
 
-	private final ExecutorService servicePool = Executors.newFixedThreadPool(10);
+	private final ProvisioningScheduler scheduler;
+
+	private final ServiceInstanceOperationStore operationStatus;
+
+	private final StripedLock instanceLocks;
+
+	private final WarmPool warmPool;
+
+	private final SharedClusterPool sharedClusters;
 
-	private final Map<String, OperationState> operationStatus = new HashMap<>();
+	private final NodePortAllocator nodePorts;
+
+	private final ProvisioningMetrics metrics;
 
 	@Autowired
 	public MongoServiceInstanceService(MongoAdminService mongo,
 			MongoServiceInstanceRepository repository, MongoK8sService k8sService,
-			MongoConfig config) {
+			MongoConfig config, ProvisioningScheduler scheduler,
+			ServiceInstanceOperationStore operationStatus, WarmPool warmPool,
+			SharedClusterPool sharedClusters, NodePortAllocator nodePorts, ProvisioningMetrics metrics,
+			@Value("${mongodb.instance.lock-stripes:64}") int lockStripes) {
 		this.mongo = mongo;
 		this.repository = repository;
 		this.k8sService = k8sService;
 		this.config = config;
+		this.scheduler = scheduler;
+		this.operationStatus = operationStatus;
+		this.instanceLocks = new StripedLock(lockStripes);
+		this.warmPool = warmPool;
+		this.sharedClusters = sharedClusters;
+		this.nodePorts = nodePorts;
+		this.metrics = metrics;
 	}
 
 	@Override
 	public CreateServiceInstanceResponse createServiceInstance(
 			final CreateServiceInstanceRequest request) {
 		// TODO MongoDB dashboard
-		operationStatus.put(request.getServiceInstanceId(), IN_PROGRESS);
-		servicePool.execute(new Thread(() -> {
-			try {
-				if (LOGGER.isDebugEnabled()) {
-					LOGGER.debug("Initializing service instance id: "
-							+ request.getServiceInstanceId());
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(
+					"Initializing service instance id: " + request.getServiceInstanceId());
+		}
+		String instanceId = request.getServiceInstanceId();
+		ServiceInstanceParams objInstance = new ServiceInstanceParams(request, config);
+		ServiceInstance instance = new ServiceInstance(request, objInstance);
+		Lock lock = instanceLocks.get(instanceId);
+		lock.lock();
+		try {
+			ServiceInstanceOperation current = inProgress(instanceId);
+			if (current != null) {
+				if (current.getType() != Type.CREATE) {
+					throw new ServiceBrokerConcurrencyException(
+							"Service instance " + instanceId + " is being deleted");
 				}
-				ServiceInstanceParams objInstance = new ServiceInstanceParams(request,
-						config);
-				ServiceInstance instance = new ServiceInstance(request, objInstance);
-				if (k8sService.createK8sObjects(objInstance)) {
-					if (LOGGER.isDebugEnabled()) {
-						LOGGER.debug("K8s mongo objects created for instance id: "
-								+ request.getServiceInstanceId());
+				if (!current.getInstance().isSameRequestAs(instance)) {
+					throw new ServiceInstanceExistsException(instanceId,
+							request.getServiceDefinitionId());
+				}
+				LOGGER.info("Joining create operation in progress for instance id: "
+						+ instanceId);
+				return new CreateServiceInstanceResponse().withAsync(true);
+			}
+			ServiceInstance existing = repository.findOne(instanceId);
+			if (existing != null) {
+				if (!existing.isSameRequestAs(instance)) {
+					throw new ServiceInstanceExistsException(instanceId,
+							request.getServiceDefinitionId());
+				}
+				return new CreateServiceInstanceResponse().withInstanceExisted(true);
+			}
+			schedule(new ServiceInstanceOperation(instance, Type.CREATE, IN_PROGRESS,
+					"Creating service instance"), this::provision);
+		}
+		finally {
+			lock.unlock();
+		}
+		return new CreateServiceInstanceResponse().withAsync(true);
+	}
+
+	/**
+	 * Runs the remaining steps of a create operation, checkpointing after each one. A
+	 * failed create is rolled back. Steps that call Mongo run on the scheduler's
+	 * workers; waiting for k8s objects and pods does not hold a thread.
+	 */
+	CompletableFuture<Void> provision(ServiceInstanceOperation operation) {
+		ServiceInstance instance = operation.getInstance();
+		String instanceId = instance.getServiceInstanceId();
+		String plan = instance.getPlanId();
+		boolean resume = operation.getStep() != Step.STARTED;
+		Executor continuations = scheduler.continuations();
+		AtomicReference<ServiceInstanceOperation> progress = new AtomicReference<>(
+				operation);
+		long start = System.nanoTime();
+		return CompletableFuture.completedFuture(null)
+				.thenRun(() -> metrics.step("allocate", plan,
+						() -> allocate(progress, resume)))
+				.thenCompose(ignore -> metrics.stepAsync("k8s_objects", plan,
+						() -> createK8sObjects(progress, resume)))
+				.thenCompose(ignore -> awaitRunning(progress, continuations))
+				.thenRunAsync(() -> createDatabase(progress), continuations)
+				.handleAsync((ignore, ex) -> ex, continuations).thenCompose(ex -> {
+					if (ex == null) {
+						metrics.operation(Type.CREATE, plan, SUCCEEDED, start);
+						return CompletableFuture.completedFuture(null);
 					}
-					// ServiceInstance instance =
-					// repository.findOne(request.getServiceInstanceId());
-					// if (instance != null) {
-					// throw new
-					// ServiceInstanceExistsException(request.getServiceInstanceId(),
-					// request.getServiceDefinitionId());
-					// }
-					if (mongo.databaseExists(instance.getServiceInstanceId())) {
-						// ensure the instance is empty
-						mongo.deleteDatabase(instance.getServiceInstanceId());
+					Throwable cause = unwrap(ex);
+					if (cause instanceof LeaseLostException) {
+						// the replica that took the operation over carries on
+						LOGGER.warn("Stopped creating instance id: " + instanceId + ": "
+								+ cause.getMessage());
+						return CompletableFuture.completedFuture(null);
 					}
-					MongoDatabase db = mongo
-							.createDatabase(instance.getServiceInstanceId());
-					if (db == null) {
-						throw new MongoServiceException(
-								"unable to create mongo database instance");
+					LOGGER.error("Failed to create new DB instance: " + cause.getMessage()
+							+ ": " + instanceId, cause);
+					return rollback(progress.get(), cause.getMessage()).whenComplete(
+							(done, failure) -> metrics.operation(Type.CREATE, plan,
+									FAILED, start));
+				});
+	}
+
+	/**
+	 * Places an instance of the shared plan on a shared cluster. Otherwise takes a warm
+	 * cluster if there is one and reserves the node port of the instance.
+	 */
+	private void allocate(AtomicReference<ServiceInstanceOperation> progress,
+			boolean resume) {
+		ServiceInstance instance = progress.get().getInstance();
+		if (instance.getInstanceParams().isShared()) {
+			if (progress.get().isBefore(Step.POD_RUNNING)) {
+				instance.withInstanceParams(sharedClusters.place(
+						instance.getInstanceParams(), instance.getServiceInstanceId()));
+				// the shared cluster is already running
+				advance(progress, Step.POD_RUNNING);
+			}
+			return;
+		}
+		if (!resume) {
+			ServiceInstanceParams claimed = warmPool.claim(instance.getPlanId(),
+					instance.getInstanceParams(), instance.getServiceInstanceId());
+			if (claimed != null) {
+				instance.withInstanceParams(claimed);
+				// a warm cluster is already running; a replica taking the operation over
+				// has to find it, or it would build another (and the claimed one would
+				// be removed as orphaned)
+				ServiceInstanceOperation checkpoint = progress.get()
+						.withStep(Step.POD_RUNNING);
+				progress.set(checkpoint);
+				operationStatus.putNow(checkpoint);
+			}
+		}
+		if (progress.get().isBefore(Step.PORT_ALLOCATED)) {
+			ServiceInstanceParams objInstance = instance.getInstanceParams();
+			if (objInstance.isExposePortRequested() || !nodePorts.isEnabled()) {
+				if (!nodePorts.claim(objInstance.getExposePort())) {
+					throw new MongoServiceException("expose_port "
+							+ objInstance.getExposePort() + " is already in use");
+				}
+			}
+			else {
+				instance.withInstanceParams(objInstance
+						.withCluster(objInstance.getName(), nodePorts.allocate()));
+			}
+			// node port reconciliation on other replicas has to see the port in use
+			ServiceInstanceOperation checkpoint = progress.get()
+					.withStep(Step.PORT_ALLOCATED);
+			progress.set(checkpoint);
+			try {
+				operationStatus.putNow(checkpoint);
+			}
+			catch (LeaseLostException ex) {
+				// the new owner allocates a port of its own
+				nodePorts.release(instance.getInstanceParams().getExposePort());
+				throw ex;
+			}
+		}
+	}
+
+	private CompletableFuture<Void> createK8sObjects(
+			AtomicReference<ServiceInstanceOperation> progress, boolean resume) {
+		if (!progress.get().isBefore(Step.K8S_OBJECTS_CREATED)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		ServiceInstance instance = progress.get().getInstance();
+		return k8sService.createK8sObjectsAsync(instance.getInstanceParams(), resume)
+				.thenAccept(created -> {
+					if (!created) {
+						throw new MongoServiceException("unable to create mongo k8s objects");
 					}
-					repository.save(instance);
-					operationStatus.put(request.getServiceInstanceId(),
-							OperationState.SUCCEEDED);
+					advance(progress, Step.K8S_OBJECTS_CREATED);
 					if (LOGGER.isDebugEnabled()) {
-						LOGGER.debug("Successfully created the instance id: "
-								+ request.getServiceInstanceId());
+						LOGGER.debug("K8s mongo objects created for instance id: "
+								+ instance.getServiceInstanceId());
 					}
+				});
+	}
+
+	private CompletableFuture<Void> awaitRunning(
+			AtomicReference<ServiceInstanceOperation> progress, Executor continuations) {
+		if (!progress.get().isBefore(Step.POD_RUNNING)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		ServiceInstance instance = progress.get().getInstance();
+		ServiceInstanceParams objInstance = instance.getInstanceParams();
+		String plan = instance.getPlanId();
+		long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(objInstance.getReadyTimeout());
+		return metrics.stepAsync("pods_ready", plan,
+				() -> k8sService.awaitReadyAsync(objInstance, deadline)
+						.thenApply(running -> {
+							if (!running) {
+								throw new MongoServiceException(
+										"mongo pods are not running");
+							}
+							return running;
+						}))
+				.thenCompose(ignore -> metrics.stepAsync("replica_set", plan,
+						() -> mongo.awaitReplicaSetAsync(objInstance, deadline,
+								continuations).thenApply(ready -> {
+									if (!ready) {
+										throw new MongoServiceException(
+												"mongo replica set is not ready");
+									}
+									return ready;
+								})))
+				.thenRun(() -> advance(progress, Step.POD_RUNNING));
+	}
+
+	private void createDatabase(AtomicReference<ServiceInstanceOperation> progress) {
+		ServiceInstance instance = progress.get().getInstance();
+		ServiceInstanceParams objInstance = instance.getInstanceParams();
+		String instanceId = instance.getServiceInstanceId();
+		String plan = instance.getPlanId();
+		if (progress.get().isBefore(Step.DATABASE_CREATED)) {
+			if (metrics.step("database_exists", plan,
+					() -> mongo.databaseExists(objInstance, instanceId))) {
+				// ensure the instance is empty
+				metrics.step("delete_database", plan,
+						() -> mongo.deleteDatabase(objInstance, instanceId));
+			}
+			metrics.step("create_database", plan, () -> {
+				MongoDatabase db = mongo.createDatabase(objInstance, instanceId);
+				if (db == null) {
+					throw new MongoServiceException(
+							"unable to create mongo database instance");
 				}
-				else {
-					// remove objects if got created partially
-					k8sService.deleteK8sObjects(objInstance);
-					throw new MongoServiceException("unable to create mongo k8s objects");
-				}
+			});
+			advance(progress, Step.DATABASE_CREATED);
+		}
+		if (progress.get().isBefore(Step.REPOSITORY_SAVED)) {
+			metrics.step("repository_save", plan, () -> repository.save(instance));
+			progress.set(progress.get().withStep(Step.REPOSITORY_SAVED));
+		}
+		operationStatus.put(progress.get().withState(SUCCEEDED, "Service instance created"));
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Successfully created the instance id: " + instanceId);
+		}
+	}
+
+	/**
+	 * Removes whatever a create operation has left behind and marks it as failed. K8s
+	 * objects are only deleted once the operation has created all of them, and then by
+	 * name; a create that failed part way has already removed the objects it made, and
+	 * objects it was refused, such as those of another instance holding the same name
+	 * or node port, are left alone.
+	 */
+	CompletableFuture<Void> rollback(ServiceInstanceOperation operation, String reason) {
+		ServiceInstance instance = operation.getInstance();
+		String instanceId = instance.getServiceInstanceId();
+		try {
+			if (!operation.isBefore(Step.REPOSITORY_SAVED)) {
+				repository.delete(instanceId);
 			}
-			catch (IOException | InterruptedException | TemplateException
-					| MongoServiceException ex) {
-				operationStatus.put(request.getServiceInstanceId(), FAILED);
-				throw new ServiceBrokerException("Failed to create new DB instance: "
-						+ ex.getMessage() + ": " + request.getServiceInstanceId(), ex);
+			if (!operation.isBefore(Step.POD_RUNNING)) {
+				mongo.deleteDatabase(instance.getInstanceParams(), instanceId);
 			}
-		}));
-		return new CreateServiceInstanceResponse().withAsync(true);
+		}
+		catch (RuntimeException ex) {
+			LOGGER.warn("Unable to roll back database of instance id: " + instanceId,
+					ex);
+		}
+		if (instance.getInstanceParams().isShared()) {
+			// the shared cluster stays
+			if (!operation.isBefore(Step.POD_RUNNING)) {
+				sharedClusters.release(instance.getInstanceParams(), instanceId);
+			}
+			operationStatus.put(operation.withState(FAILED, reason));
+			return CompletableFuture.completedFuture(null);
+		}
+		if (operation.isBefore(Step.K8S_OBJECTS_CREATED)) {
+			if (!operation.isBefore(Step.PORT_ALLOCATED)) {
+				nodePorts.release(instance.getInstanceParams().getExposePort());
+			}
+			operationStatus.put(operation.withState(FAILED, reason));
+			return CompletableFuture.completedFuture(null);
+		}
+		return k8sService.deleteCreatedK8sObjectsAsync(instance.getInstanceParams())
+				.handleAsync((ignore, ex) -> {
+					if (ex != null) {
+						LOGGER.warn("Unable to remove k8s objects of instance id: "
+								+ instanceId, unwrap(ex));
+					}
+					else if (!operation.isBefore(Step.PORT_ALLOCATED)) {
+						nodePorts.release(instance.getInstanceParams().getExposePort());
+					}
+					operationStatus.put(operation.withState(FAILED, reason));
+					return null;
+				}, scheduler.continuations());
 	}
 
 	@Override
 	public GetLastServiceOperationResponse getLastOperation(
 			GetLastServiceOperationRequest request) {
-		OperationState state = operationStatus.get(request.getServiceInstanceId());
-		if (state == IN_PROGRESS) {
-			return new GetLastServiceOperationResponse().withOperationState(state);
+		ServiceInstanceOperation operation = operationStatus
+				.get(request.getServiceInstanceId());
+		if (operation == null) {
+			throw new ServiceInstanceDoesNotExistException(
+					request.getServiceInstanceId());
 		}
-		operationStatus.remove(request.getServiceInstanceId());
-		return new GetLastServiceOperationResponse().withOperationState(state);
+		return new GetLastServiceOperationResponse()
+				.withOperationState(operation.getState())
+				.withDescription(operation.getDescription())
+				.withDeleteOperation(operation.getType() == Type.DELETE);
 	}
 
 	ServiceInstance getServiceInstance(String id) {
@@ -140,27 +395,148 @@ public class MongoServiceInstanceService implements ServiceInstanceService {
 	@Override
 	public DeleteServiceInstanceResponse deleteServiceInstance(
 			DeleteServiceInstanceRequest request) throws MongoServiceException {
-		operationStatus.put(request.getServiceInstanceId(), IN_PROGRESS);
-		servicePool.execute(new Thread(() -> {
-			String instanceId = request.getServiceInstanceId();
-			try {
-				ServiceInstance instance = repository.findOne(instanceId);
-				if (instance == null) {
-					throw new ServiceInstanceDoesNotExistException(instanceId);
+		String instanceId = request.getServiceInstanceId();
+		Lock lock = instanceLocks.get(instanceId);
+		lock.lock();
+		try {
+			ServiceInstanceOperation current = inProgress(instanceId);
+			if (current != null) {
+				if (current.getType() != Type.DELETE) {
+					throw new ServiceBrokerConcurrencyException(
+							"Service instance " + instanceId + " is being created");
 				}
-				mongo.deleteDatabase(instanceId);
-				repository.delete(instanceId);
-				k8sService.deleteK8sObjects(instance.getInstanceParams());
-				operationStatus.put(instanceId, SUCCEEDED);
+				LOGGER.info("Joining delete operation in progress for instance id: "
+						+ instanceId);
+				return new DeleteServiceInstanceResponse().withAsync(true);
 			}
-			catch (Exception ex) {
-				operationStatus.put(instanceId, FAILED);
-				throw ex;
+			ServiceInstance instance = repository.findOne(instanceId);
+			if (instance == null) {
+				throw new ServiceInstanceDoesNotExistException(instanceId);
 			}
-		}));
+			schedule(new ServiceInstanceOperation(instance, Type.DELETE, IN_PROGRESS,
+					"Deleting service instance"), this::deprovision);
+		}
+		finally {
+			lock.unlock();
+		}
 		return new DeleteServiceInstanceResponse().withAsync(true);
 	}
 
+	/**
+	 * Runs the remaining steps of a delete operation, checkpointing after each one.
+	 */
+	CompletableFuture<Void> deprovision(ServiceInstanceOperation operation) {
+		ServiceInstance instance = operation.getInstance();
+		ServiceInstanceParams objInstance = instance.getInstanceParams();
+		String instanceId = instance.getServiceInstanceId();
+		String plan = instance.getPlanId();
+		Executor continuations = scheduler.continuations();
+		AtomicReference<ServiceInstanceOperation> progress = new AtomicReference<>(
+				operation);
+		long start = System.nanoTime();
+		return CompletableFuture.completedFuture(null).thenRun(() -> {
+			if (progress.get().isBefore(Step.DATABASE_DELETED)) {
+				metrics.step("delete_database", plan,
+						() -> mongo.deleteDatabase(objInstance, instanceId));
+				advance(progress, Step.DATABASE_DELETED);
+			}
+			if (progress.get().isBefore(Step.REPOSITORY_DELETED)) {
+				metrics.step("repository_delete", plan,
+						() -> repository.delete(instanceId));
+				advance(progress, Step.REPOSITORY_DELETED);
+			}
+		}).thenCompose(ignore -> {
+			if (!progress.get().isBefore(Step.K8S_OBJECTS_DELETED)) {
+				return CompletableFuture.completedFuture(null);
+			}
+			if (objInstance.isShared()) {
+				// the shared cluster stays
+				progress.set(progress.get().withStep(Step.K8S_OBJECTS_DELETED));
+				return CompletableFuture.completedFuture(null);
+			}
+			return metrics.stepAsync("delete_k8s_objects", plan,
+					() -> k8sService.deleteK8sObjectsAsync(objInstance))
+					.thenRunAsync(() -> {
+						nodePorts.release(objInstance.getExposePort());
+						progress.set(progress.get().withStep(Step.K8S_OBJECTS_DELETED));
+					}, continuations);
+		}).handle((ignore, ex) -> {
+			try {
+				if (ex == null) {
+					operationStatus.put(progress.get().withState(SUCCEEDED,
+							"Service instance deleted"));
+				}
+				else {
+					Throwable cause = unwrap(ex);
+					if (cause instanceof LeaseLostException) {
+						throw (LeaseLostException) cause;
+					}
+					LOGGER.error("Failed to delete instance id: " + instanceId, cause);
+					operationStatus.put(
+							progress.get().withState(FAILED, cause.getMessage()));
+				}
+			}
+			catch (LeaseLostException lost) {
+				// the replica that took the operation over carries on
+				LOGGER.warn("Stopped deleting instance id: " + instanceId + ": "
+						+ lost.getMessage());
+			}
+			metrics.operation(Type.DELETE, plan, ex == null ? SUCCEEDED : FAILED, start);
+			return null;
+		});
+	}
+
+	/**
+	 * Continues an operation that was interrupted by a broker restart or taken over
+	 * from another replica.
+	 */
+	CompletableFuture<Void> resume(ServiceInstanceOperation operation) {
+		LOGGER.info("Resuming " + operation);
+		if (operation.getType() == Type.CREATE) {
+			return provision(operation);
+		}
+		return deprovision(operation);
+	}
+
+	private void advance(AtomicReference<ServiceInstanceOperation> progress, Step step) {
+		ServiceInstanceOperation checkpoint = progress.get().withStep(step);
+		operationStatus.put(checkpoint);
+		progress.set(checkpoint);
+	}
+
+	private static Throwable unwrap(Throwable ex) {
+		return ex instanceof CompletionException && ex.getCause() != null
+				? ex.getCause() : ex;
+	}
+
+	/**
+	 * @return the operation in progress for the instance, or null if there is none
+	 */
+	private ServiceInstanceOperation inProgress(String instanceId) {
+		ServiceInstanceOperation operation = operationStatus.get(instanceId);
+		return operation != null && operation.getState() == IN_PROGRESS ? operation
+				: null;
+	}
+
+	/**
+	 * Admits a new operation to the scheduler, records it and queues it. Rejected
+	 * operations are not recorded.
+	 */
+	private void schedule(ServiceInstanceOperation operation,
+			Function<ServiceInstanceOperation, CompletableFuture<Void>> steps) {
+		Admission admission = scheduler
+				.admit(ProvisioningScheduler.tenantOf(operation.getInstance()));
+		ServiceInstanceOperation started;
+		try {
+			started = operationStatus.start(operation);
+		}
+		catch (RuntimeException ex) {
+			admission.cancel();
+			throw ex;
+		}
+		admission.executeAsync(() -> steps.apply(started));
+	}
+
 	@Override
 	public UpdateServiceInstanceResponse updateServiceInstance(
 			UpdateServiceInstanceRequest request) {
@@ -177,9 +553,4 @@ public class MongoServiceInstanceService implements ServiceInstanceService {
 		return new UpdateServiceInstanceResponse();
 	}
 
-	@PreDestroy
-	public void shutdown() {
-		servicePool.shutdown();
-	}
-
 }
\ No newline at end of file
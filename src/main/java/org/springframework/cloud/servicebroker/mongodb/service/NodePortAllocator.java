@@ -0,0 +1,314 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
+import org.springframework.cloud.servicebroker.mongodb.model.NodePortRange;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+/**
+ * Hands out node ports for the discovery services of instances from
+ * {@code mongodb.nodeport.range-start} to {@code mongodb.nodeport.range-end}
+ * (inclusive, the k8s default range by default).
+ * <p>
+ * Allocations are kept as a bitmap in the broker's Mongo (see {@link NodePortRange}),
+ * so they are shared by all broker replicas. A port is claimed or released by a
+ * conditional update of the 64-bit word holding its bit; a lost race simply re-reads
+ * the bitmap and tries again. Allocation starts at a random word to keep concurrent
+ * allocations apart.
+ * <p>
+ * Once the application is ready, and every {@code mongodb.nodeport.reconcile-interval}
+ * seconds after, the bitmap is reconciled with the cluster: ports used by any k8s
+ * service or recorded for an instance or an operation in progress are marked
+ * allocated. Warm and shared clusters are recorded by their service only, which they
+ * create after allocating its port, so an allocated port is released only once it
+ * went unused in two passes in a row. Set {@code mongodb.nodeport.allocate=false} to
+ * keep using the configured port.
+ */
+@Service
+public class NodePortAllocator implements PublicMetrics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(NodePortAllocator.class);
+
+	private static final int MAX_ATTEMPTS = 64;
+
+	private final MongoOperations mongoOperations;
+
+	private final MongoK8sService k8sService;
+
+	private final MongoServiceInstanceRepository instanceRepository;
+
+	private final MongoConfig config;
+
+	private final ScheduledExecutorService reconciler = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "node-port-reconciler");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	@Value("${mongodb.nodeport.allocate:true}")
+	private boolean enabled = true;
+
+	@Value("${mongodb.nodeport.range-start:30000}")
+	private int rangeStart = 30000;
+
+	@Value("${mongodb.nodeport.range-end:32767}")
+	private int rangeEnd = 32767;
+
+	@Value("${mongodb.nodeport.reconcile-interval:300}")
+	private long reconcileInterval = 300;
+
+	private volatile long[] words;
+
+	/**
+	 * Ports that were allocated but not in use at the last reconciliation.
+	 */
+	private BitSet unused = new BitSet();
+
+	@Autowired
+	public NodePortAllocator(MongoOperations mongoOperations, MongoK8sService k8sService,
+			MongoServiceInstanceRepository instanceRepository, MongoConfig config) {
+		this.mongoOperations = mongoOperations;
+		this.k8sService = k8sService;
+		this.instanceRepository = instanceRepository;
+		this.config = config;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		if (!enabled) {
+			return;
+		}
+		NodePortRange range = new NodePortRange(rangeStart, rangeEnd);
+		mongoOperations.upsert(new Query(where("_id").is(range.getId())),
+				new Update().setOnInsert("start", rangeStart)
+						.setOnInsert("end", rangeEnd)
+						.setOnInsert("words", range.getWords()),
+				NodePortRange.class);
+		refresh();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return a port that was free and is now allocated
+	 * @throws MongoServiceException if every port of the range is allocated
+	 */
+	public int allocate() {
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			long[] current = words;
+			int offset = ThreadLocalRandom.current().nextInt(current.length);
+			for (int n = 0; n < current.length; n++) {
+				int index = (offset + n) % current.length;
+				long free = ~current[index] & validBits(index);
+				if (free == 0) {
+					continue;
+				}
+				int bit = Long.numberOfTrailingZeros(free);
+				if (compareAndSet(index, current[index], current[index] | 1L << bit)) {
+					return rangeStart + index * 64 + bit;
+				}
+				break;
+			}
+			refresh();
+		}
+		throw new MongoServiceException("No free node port between " + rangeStart
+				+ " and " + rangeEnd);
+	}
+
+	/**
+	 * Allocates the given port.
+	 * @return whether the port was free
+	 */
+	public boolean claim(int port) {
+		if (!enabled || !inRange(port)) {
+			// not ours to track
+			return true;
+		}
+		return update(port, true);
+	}
+
+	public void release(int port) {
+		if (enabled && inRange(port)) {
+			update(port, false);
+		}
+	}
+
+	private boolean update(int port, boolean allocate) {
+		int index = (port - rangeStart) / 64;
+		long mask = 1L << ((port - rangeStart) % 64);
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			long word = words[index];
+			if (((word & mask) != 0) == allocate) {
+				return !allocate;
+			}
+			if (compareAndSet(index, word, allocate ? word | mask : word & ~mask)) {
+				return true;
+			}
+			refresh();
+		}
+		throw new MongoServiceException("Unable to update node port " + port);
+	}
+
+	private boolean compareAndSet(int index, long expected, long value) {
+		String field = "words." + index;
+		boolean updated = mongoOperations
+				.updateFirst(new Query(where("_id").is(rangeId()).and(field).is(expected)),
+						new Update().set(field, value), NodePortRange.class)
+				.getN() == 1;
+		if (updated) {
+			words[index] = value;
+		}
+		return updated;
+	}
+
+	private void refresh() {
+		NodePortRange range = mongoOperations.findById(rangeId(), NodePortRange.class);
+		long[] current = new long[range.getWords().size()];
+		for (int i = 0; i < current.length; i++) {
+			current[i] = range.getWords().get(i);
+		}
+		words = current;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void startReconciling() {
+		if (enabled) {
+			reconciler.scheduleWithFixedDelay(this::reconcile, 0, reconcileInterval,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Marks the ports in use in the cluster as allocated and releases allocated ports
+	 * nothing used at this and the previous reconciliation. Only words that did not
+	 * change since the first read are updated, so allocations made while reconciling
+	 * are kept.
+	 */
+	synchronized void reconcile() {
+		try {
+			refresh();
+			long[] snapshot = words.clone();
+			BitSet used = new BitSet();
+			for (int port : k8sService.listNodePorts(
+					new ServiceInstanceParams(config, Collections.emptyMap()))) {
+				mark(used, port);
+			}
+			for (ServiceInstance instance : instanceRepository.findAll()) {
+				markInstance(used, instance);
+			}
+			for (ServiceInstanceOperation operation : mongoOperations.find(
+					new Query(where("state").is(OperationState.IN_PROGRESS.name())),
+					ServiceInstanceOperation.class)) {
+				markInstance(used, operation.getInstance());
+			}
+			int marked = 0;
+			int released = 0;
+			long[] stillUnused = new long[snapshot.length];
+			for (int index = 0; index < snapshot.length; index++) {
+				long inUse = wordOf(used, index);
+				long idle = snapshot[index] & ~inUse;
+				// may be a pool cluster whose service is not created yet
+				long kept = idle & ~wordOf(unused, index);
+				stillUnused[index] = idle;
+				if ((inUse | kept) != snapshot[index]
+						&& compareAndSet(index, snapshot[index], inUse | kept)) {
+					marked += Long.bitCount(inUse & ~snapshot[index]);
+					released += Long.bitCount(idle & ~kept);
+					stillUnused[index] = kept;
+				}
+			}
+			unused = BitSet.valueOf(stillUnused);
+			LOGGER.info("Reconciled node ports: " + used.cardinality() + " in use, "
+					+ marked + " marked, " + released + " released");
+		}
+		catch (IOException | RuntimeException ex) {
+			LOGGER.warn("Unable to reconcile node ports: " + ex.getMessage());
+		}
+	}
+
+	private void markInstance(BitSet used, ServiceInstance instance) {
+		if (instance != null && instance.getInstanceParams() != null) {
+			mark(used, instance.getInstanceParams().getExposePort());
+		}
+	}
+
+	private void mark(BitSet used, int port) {
+		if (inRange(port)) {
+			used.set(port - rangeStart);
+		}
+	}
+
+	private static long wordOf(BitSet bits, int index) {
+		long[] words = bits.get(index * 64, index * 64 + 64).toLongArray();
+		return words.length == 0 ? 0 : words[0];
+	}
+
+	private long validBits(int index) {
+		int remaining = rangeEnd - rangeStart + 1 - index * 64;
+		return remaining >= 64 ? -1L : (1L << remaining) - 1;
+	}
+
+	private boolean inRange(int port) {
+		return port >= rangeStart && port <= rangeEnd;
+	}
+
+	private String rangeId() {
+		return rangeStart + "-" + rangeEnd;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		reconciler.shutdown();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		if (enabled) {
+			int allocated = 0;
+			for (long word : words) {
+				allocated += Long.bitCount(word);
+			}
+			metrics.add(new Metric<>("mongodb.nodeports.allocated", allocated));
+			metrics.add(new Metric<>("mongodb.nodeports.free",
+					rangeEnd - rangeStart + 1 - allocated));
+		}
+		return metrics;
+	}
+
+}
@@ -0,0 +1,205 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+/**
+ * Routes the node port of every replica set to its primary.
+ * <p>
+ * The broker reaches the cluster of an instance through its node port only, and admin
+ * writes have to reach the primary. The discovery service therefore selects the pod
+ * labelled {@value #ROLE_LABEL}={@value #PRIMARY}, and this labels the member that the
+ * replica set reports as its primary. Single-member clusters carry the label in their
+ * pod template. Pods lose the label when they are replaced, and the node port of a
+ * cluster may reach no member at all; then the label is moved on to the next pod until
+ * one answers.
+ * <p>
+ * Clusters are routed while their replica set comes up (see
+ * {@link MongoAdminService#awaitReplicaSet}), and all of them again every
+ * {@code mongodb.routing.interval} seconds to follow elections. Once the label moved,
+ * the cached client for the cluster is closed, since its connections still go to the
+ * pod it was opened to.
+ */
+@Service
+public class PrimaryRouter {
+
+	static final String ROLE_LABEL = "mongodb-broker/role";
+
+	static final String PRIMARY = "primary";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PrimaryRouter.class);
+
+	private final MongoK8sService k8sService;
+
+	private final MongoClientCache clients;
+
+	private final MongoConfig config;
+
+	private final ScheduledExecutorService sweeper = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "primary-router");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	@Value("${mongodb.routing.interval:30}")
+	private long interval = 30;
+
+	@Autowired
+	public PrimaryRouter(MongoK8sService k8sService, MongoClientCache clients,
+			MongoConfig config) {
+		this.k8sService = k8sService;
+		this.clients = clients;
+		this.config = config;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		sweeper.scheduleWithFixedDelay(this::routeAll, interval, interval,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Routes the node port of a cluster to its primary.
+	 * @return whether the node port reaches the primary
+	 */
+	public boolean route(ServiceInstanceParams cluster) {
+		if (cluster.getReplicas() <= 1) {
+			return true;
+		}
+		try {
+			return route(cluster, k8sService.listPods(cluster,
+					Collections.singletonMap("app", cluster.getName())));
+		}
+		catch (IOException | RuntimeException ex) {
+			LOGGER.warn("Unable to route " + cluster.getName() + " to its primary: "
+					+ ex.getMessage());
+			return false;
+		}
+	}
+
+	private boolean route(ServiceInstanceParams cluster, List<JsonNode> pods)
+			throws IOException {
+		List<String> names = new ArrayList<>();
+		List<String> labelled = new ArrayList<>();
+		for (JsonNode pod : pods) {
+			String name = pod.path("metadata").path("name").asText();
+			names.add(name);
+			if (PRIMARY.equals(
+					pod.path("metadata").path("labels").path(ROLE_LABEL).asText(null))) {
+				labelled.add(name);
+			}
+		}
+		if (names.isEmpty()) {
+			return false;
+		}
+		Collections.sort(names);
+		ServerAddress address = clients.addressOf(cluster);
+		Document isMaster = labelled.isEmpty() ? null : isMaster(address);
+		String target;
+		if (isMaster == null) {
+			// the port reaches no member, try the next one
+			target = labelled.isEmpty() ? names.get(0)
+					: names.get((names.indexOf(labelled.get(0)) + 1) % names.size());
+		}
+		else if (isMaster.getString("primary") == null) {
+			// no primary elected yet
+			return false;
+		}
+		else {
+			// members are addressed as <pod>.<service>.<namespace>...:<port>
+			target = isMaster.getString("primary").split("[.:]", 2)[0];
+			if (labelled.equals(Collections.singletonList(target))) {
+				return true;
+			}
+		}
+		// labelled before the others are unlabelled, so the port always reaches a member
+		if (!labelled.contains(target)
+				&& !k8sService.labelPod(cluster, target, ROLE_LABEL, PRIMARY)) {
+			return false;
+		}
+		for (String name : labelled) {
+			if (!name.equals(target)) {
+				k8sService.labelPod(cluster, name, ROLE_LABEL, null);
+			}
+		}
+		clients.reset(address);
+		LOGGER.info("Routed " + cluster.getName() + " to " + target
+				+ (isMaster == null ? ", looking for its primary" : ", its primary"));
+		return isMaster != null;
+	}
+
+	private Document isMaster(ServerAddress address) {
+		try {
+			return clients.execute(address, client -> client.getDatabase("admin")
+					.runCommand(new Document("isMaster", 1)));
+		}
+		catch (MongoException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Routes every multi-member cluster in the namespace, with one list of the discovery
+	 * services and one of the pods.
+	 */
+	void routeAll() {
+		try {
+			ServiceInstanceParams namespace = new ServiceInstanceParams(config,
+					Collections.emptyMap());
+			Map<String, Integer> ports = k8sService.listDiscoveryPorts(namespace);
+			Map<String, List<JsonNode>> podsByCluster = new HashMap<>();
+			for (JsonNode pod : k8sService.listPods(namespace, Collections.emptyMap())) {
+				String app = pod.path("metadata").path("labels").path("app").asText();
+				if (ports.containsKey(app)) {
+					podsByCluster.computeIfAbsent(app, key -> new ArrayList<>()).add(pod);
+				}
+			}
+			for (Map.Entry<String, List<JsonNode>> pods : podsByCluster.entrySet()) {
+				if (pods.getValue().size() <= 1) {
+					continue;
+				}
+				try {
+					route(namespace.withCluster(pods.getKey(), ports.get(pods.getKey())),
+							pods.getValue());
+				}
+				catch (IOException | RuntimeException ex) {
+					LOGGER.warn("Unable to route " + pods.getKey() + " to its primary: "
+							+ ex.getMessage());
+				}
+			}
+		}
+		catch (IOException | RuntimeException ex) {
+			LOGGER.warn("Unable to route clusters to their primaries: " + ex.getMessage());
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		sweeper.shutdown();
+	}
+
+}
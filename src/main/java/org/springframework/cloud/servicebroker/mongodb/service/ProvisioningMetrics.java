@@ -0,0 +1,149 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Timers for the steps of provisioning, deprovisioning and binding, published through
+ * Micrometer and scraped from the {@code /prometheus} endpoint.
+ * <p>
+ * {@code mongodb.provisioning.step} times every step of an operation, tagged with the
+ * {@code step}, the {@code plan} of the instance and the {@code outcome}
+ * ({@code success} or {@code failure}). {@code mongodb.provisioning.operation} times
+ * whole operations from the moment they start running until they succeed or fail,
+ * tagged with {@code type}, {@code plan} and {@code outcome}.
+ * {@code mongodb.binding} times binding and unbinding calls the same way.
+ * <p>
+ * Below the plan level, {@code mongodb.k8s.render} times the rendering of each
+ * manifest and {@code mongodb.k8s.create} the creation of each k8s object, tagged with
+ * the {@code object} and the answered HTTP {@code status}. All timers publish
+ * histogram buckets, so SLOs can be expressed as quantiles in Prometheus.
+ */
+@Component
+public class ProvisioningMetrics {
+
+	static final String SUCCESS = "success";
+
+	static final String FAILURE = "failure";
+
+	private final MeterRegistry registry;
+
+	@Autowired
+	public ProvisioningMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Runs a blocking step and times it; the step fails if it throws.
+	 */
+	<T> T step(String step, String plan, Supplier<T> action) {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			T result = action.get();
+			success = true;
+			return result;
+		}
+		finally {
+			record("mongodb.provisioning.step", start, success, "step", step, "plan",
+					plan);
+		}
+	}
+
+	void step(String step, String plan, Runnable action) {
+		step(step, plan, () -> {
+			action.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Times an asynchronous step until the returned stage completes; the step fails
+	 * if the stage completes exceptionally.
+	 */
+	<T> CompletableFuture<T> stepAsync(String step, String plan,
+			Supplier<CompletableFuture<T>> action) {
+		long start = System.nanoTime();
+		CompletableFuture<T> stage;
+		try {
+			stage = action.get();
+		}
+		catch (RuntimeException ex) {
+			record("mongodb.provisioning.step", start, false, "step", step, "plan",
+					plan);
+			throw ex;
+		}
+		return stage.whenComplete((result, ex) -> record("mongodb.provisioning.step",
+				start, ex == null, "step", step, "plan", plan));
+	}
+
+	/**
+	 * Records a finished operation.
+	 * @param start when the operation started running, as a {@link System#nanoTime()}
+	 * value
+	 */
+	void operation(Type type, String plan, OperationState state, long start) {
+		record("mongodb.provisioning.operation", start,
+				state == OperationState.SUCCEEDED, "type", type.name().toLowerCase(),
+				"plan", plan);
+	}
+
+	/**
+	 * Runs a binding call and times it; the call fails if it throws.
+	 */
+	<T> T binding(String operation, String plan, Supplier<T> action) {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			T result = action.get();
+			success = true;
+			return result;
+		}
+		finally {
+			record("mongodb.binding", start, success, "operation", operation, "plan",
+					plan);
+		}
+	}
+
+	void render(String object, long start) {
+		timer("mongodb.k8s.render", "object", object)
+				.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the creation of a k8s object.
+	 * @param status the answered HTTP status, or a description if there was none
+	 */
+	void k8sObject(String object, String status, long elapsedMillis) {
+		timer("mongodb.k8s.create", "object", object, "status", status)
+				.record(elapsedMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void record(String name, long start, boolean success, String... tags) {
+		String[] outcome = Arrays.copyOf(tags, tags.length + 2);
+		outcome[tags.length] = "outcome";
+		outcome[tags.length + 1] = success ? SUCCESS : FAILURE;
+		timer(name, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	private Timer timer(String name, String... tags) {
+		for (int i = 1; i < tags.length; i += 2) {
+			if (tags[i] == null) {
+				tags[i] = "none";
+			}
+		}
+		return Timer.builder(name).tags(tags).publishPercentileHistogram()
+				.register(registry);
+	}
+
+}
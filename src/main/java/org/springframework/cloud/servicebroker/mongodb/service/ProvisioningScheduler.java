@@ -0,0 +1,420 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerOverloadedException;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Runs provisioning and deprovisioning operations on a fixed set of worker threads.
+ * <p>
+ * Operations are asynchronous: an operation occupies a worker only while it runs its
+ * blocking steps and is counted as in flight until the stage it returns completes. At
+ * most {@code mongodb.scheduler.max-in-flight} operations are in flight at a time.
+ * Blocking steps of running operations are submitted through {@link #continuations()}
+ * and run on the workers ahead of new operations, so that started work finishes first.
+ * <p>
+ * Work is queued per tenant (org/space) and workers take from the tenant queues in
+ * round-robin order, so a burst from one space does not delay everybody else. New
+ * operations are admitted only while fewer than
+ * {@code mongodb.scheduler.queue-capacity} operations are waiting in total and fewer
+ * than {@code mongodb.scheduler.tenant-capacity} for the requesting tenant; otherwise
+ * they are rejected with {@link ServiceBrokerOverloadedException}. Operations that
+ * were already accepted, e.g. recovered ones, bypass admission.
+ * <p>
+ * Queue depth, operations in flight, rejections, and wait and run times are published
+ * under {@code provisioning.scheduler.*} on the metrics endpoint. Queue depth,
+ * operations in flight and rejections are also bound to Micrometer as
+ * {@code mongodb.scheduler.*}.
+ */
+@Component
+public class ProvisioningScheduler implements PublicMetrics, MeterBinder {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(ProvisioningScheduler.class);
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition available = lock.newCondition();
+
+	private final Map<String, Deque<Task>> queues = new HashMap<>();
+
+	private final Map<String, Integer> reservations = new HashMap<>();
+
+	private final Deque<String> ready = new ArrayDeque<>();
+
+	private final Deque<Runnable> continuations = new ArrayDeque<>();
+
+	private final List<Thread> workers = new ArrayList<>();
+
+	private int queued;
+
+	private int reserved;
+
+	private int inFlight;
+
+	private volatile boolean running = true;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final Timing waitTime = new Timing();
+
+	private final Timing runTime = new Timing();
+
+	@Value("${mongodb.scheduler.threads:10}")
+	private int threads = 10;
+
+	@Value("${mongodb.scheduler.max-in-flight:200}")
+	private int maxInFlight = 200;
+
+	@Value("${mongodb.scheduler.queue-capacity:200}")
+	private int queueCapacity = 200;
+
+	@Value("${mongodb.scheduler.tenant-capacity:20}")
+	private int tenantCapacity = 20;
+
+	@Value("${mongodb.scheduler.retry-after:30}")
+	private long retryAfter = 30;
+
+	@PostConstruct
+	public void start() {
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(this::work, "provisioning-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * @return the key operations of an instance are queued and admitted under
+	 */
+	static String tenantOf(ServiceInstance instance) {
+		return instance.getOrganizationGuid() + '/' + instance.getSpaceGuid();
+	}
+
+	/**
+	 * Reserves a queue slot for an operation of the given tenant.
+	 * @throws ServiceBrokerOverloadedException if the queue or the tenant's share of it
+	 * is full
+	 */
+	public Admission admit(String tenant) {
+		lock.lock();
+		try {
+			int tenantLoad = tenantLoad(tenant);
+			if (queued + reserved >= queueCapacity || tenantLoad >= tenantCapacity) {
+				rejected.incrementAndGet();
+				throw new ServiceBrokerOverloadedException(
+						"Too many operations in progress, retry later", retryAfter);
+			}
+			reserved++;
+			reservations.put(tenant, reservations.getOrDefault(tenant, 0) + 1);
+			return new Admission(tenant);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues an operation that has already been accepted, without admission control.
+	 */
+	public void execute(String tenant, Runnable operation) {
+		executeAsync(tenant, completed(operation));
+	}
+
+	/**
+	 * Queues an asynchronous operation that has already been accepted, without
+	 * admission control.
+	 */
+	public void executeAsync(String tenant,
+			Supplier<? extends CompletionStage<?>> operation) {
+		enqueue(tenant, operation, false);
+	}
+
+	/**
+	 * @return an executor for the blocking steps of operations in flight
+	 */
+	public Executor continuations() {
+		return continuation -> {
+			lock.lock();
+			try {
+				continuations.addLast(continuation);
+				available.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		};
+	}
+
+	private static Supplier<CompletionStage<?>> completed(Runnable operation) {
+		return () -> {
+			operation.run();
+			return CompletableFuture.completedFuture(null);
+		};
+	}
+
+	private int tenantLoad(String tenant) {
+		Deque<Task> queue = queues.get(tenant);
+		return (queue == null ? 0 : queue.size()) + reservations.getOrDefault(tenant, 0);
+	}
+
+	private void enqueue(String tenant, Supplier<? extends CompletionStage<?>> operation,
+			boolean reservation) {
+		lock.lock();
+		try {
+			if (reservation) {
+				release(tenant);
+			}
+			Deque<Task> queue = queues.get(tenant);
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				queues.put(tenant, queue);
+				ready.addLast(tenant);
+			}
+			queue.addLast(new Task(operation));
+			queued++;
+			available.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(String tenant) {
+		reserved--;
+		int remaining = reservations.get(tenant) - 1;
+		if (remaining == 0) {
+			reservations.remove(tenant);
+		}
+		else {
+			reservations.put(tenant, remaining);
+		}
+	}
+
+	private Runnable take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (continuations.isEmpty()
+					&& (ready.isEmpty() || inFlight >= maxInFlight)) {
+				available.await();
+			}
+			if (!continuations.isEmpty()) {
+				return continuations.pollFirst();
+			}
+			String tenant = ready.pollFirst();
+			Deque<Task> queue = queues.get(tenant);
+			Task task = queue.pollFirst();
+			if (queue.isEmpty()) {
+				queues.remove(tenant);
+			}
+			else {
+				ready.addLast(tenant);
+			}
+			queued--;
+			inFlight++;
+			return () -> start(task);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void work() {
+		while (running) {
+			Runnable work;
+			try {
+				work = take();
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+			try {
+				work.run();
+			}
+			catch (RuntimeException ex) {
+				LOGGER.error("Provisioning operation failed", ex);
+			}
+		}
+	}
+
+	private void start(Task task) {
+		long start = System.nanoTime();
+		waitTime.record(start - task.enqueued);
+		CompletionStage<?> stage;
+		try {
+			stage = task.operation.get();
+		}
+		catch (RuntimeException ex) {
+			finish(start);
+			throw ex;
+		}
+		stage.whenComplete((result, ex) -> {
+			if (ex != null) {
+				LOGGER.error("Provisioning operation failed", ex);
+			}
+			finish(start);
+		});
+	}
+
+	private void finish(long start) {
+		runTime.record(System.nanoTime() - start);
+		lock.lock();
+		try {
+			inFlight--;
+			available.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queued;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return operations started but not completed yet
+	 */
+	public int getActive() {
+		lock.lock();
+		try {
+			return inFlight;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("provisioning.scheduler.queue.depth", getQueueDepth()));
+		metrics.add(new Metric<>("provisioning.scheduler.active", getActive()));
+		metrics.add(new Metric<>("provisioning.scheduler.rejected", rejected.get()));
+		waitTime.addTo(metrics, "provisioning.scheduler.wait");
+		runTime.addTo(metrics, "provisioning.scheduler.run");
+		return metrics;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("mongodb.scheduler.queue.depth", this,
+				ProvisioningScheduler::getQueueDepth).register(registry);
+		Gauge.builder("mongodb.scheduler.in.flight", this,
+				ProvisioningScheduler::getActive).register(registry);
+		FunctionCounter.builder("mongodb.scheduler.rejected", rejected, AtomicLong::get)
+				.register(registry);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * A reserved queue slot; either {@link #execute(Runnable)},
+	 * {@link #executeAsync(Supplier)} or {@link #cancel()} must be called exactly once.
+	 */
+	public final class Admission {
+
+		private final String tenant;
+
+		private Admission(String tenant) {
+			this.tenant = tenant;
+		}
+
+		public void execute(Runnable operation) {
+			executeAsync(completed(operation));
+		}
+
+		public void executeAsync(Supplier<? extends CompletionStage<?>> operation) {
+			enqueue(tenant, operation, true);
+		}
+
+		public void cancel() {
+			lock.lock();
+			try {
+				release(tenant);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+	private static final class Task {
+
+		private final Supplier<? extends CompletionStage<?>> operation;
+
+		private final long enqueued = System.nanoTime();
+
+		Task(Supplier<? extends CompletionStage<?>> operation) {
+			this.operation = operation;
+		}
+
+	}
+
+	private static final class Timing {
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong total = new AtomicLong();
+
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			count.incrementAndGet();
+			total.addAndGet(millis);
+			max.accumulateAndGet(millis, Math::max);
+		}
+
+		void addTo(List<Metric<?>> metrics, String prefix) {
+			metrics.add(new Metric<>(prefix + ".count", count.get()));
+			metrics.add(new Metric<>(prefix + ".time.total", total.get()));
+			metrics.add(new Metric<>(prefix + ".time.max", max.get()));
+		}
+
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Picks up operations that are in progress but no longer running anywhere: those this
+ * replica owned before a restart and those whose lease expired because the replica
+ * running them went away. Once the application is ready, and then every
+ * {@code mongodb.lease.claim-interval} seconds, such operations are claimed and
+ * handed to the provisioning scheduler, so they are recovered in parallel. With
+ * {@code mongodb.recovery.mode=resume} (default) operations continue from their last
+ * checkpoint; with {@code rollback} interrupted creates are undone and marked as
+ * failed, while interrupted deletes are always completed.
+ */
+@Component
+public class ServiceInstanceOperationRecovery {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(ServiceInstanceOperationRecovery.class);
+
+	private final ServiceInstanceOperationStore operationStatus;
+
+	private final MongoServiceInstanceService instanceService;
+
+	private final ProvisioningScheduler scheduler;
+
+	private final ScheduledExecutorService claimer = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "operation-lease-claimer");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	@Value("${mongodb.recovery.mode:resume}")
+	private String mode = "resume";
+
+	@Value("${mongodb.lease.claim-interval:10}")
+	private long claimInterval = 10;
+
+	@Autowired
+	public ServiceInstanceOperationRecovery(ServiceInstanceOperationStore operationStatus,
+			MongoServiceInstanceService instanceService, ProvisioningScheduler scheduler) {
+		this.operationStatus = operationStatus;
+		this.instanceService = instanceService;
+		this.scheduler = scheduler;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		claimer.scheduleWithFixedDelay(this::recover, 0, claimInterval,
+				TimeUnit.SECONDS);
+	}
+
+	void recover() {
+		List<ServiceInstanceOperation> interrupted;
+		try {
+			interrupted = operationStatus.claimExpired();
+		}
+		catch (RuntimeException ex) {
+			LOGGER.warn("Unable to claim interrupted operations: " + ex.getMessage());
+			return;
+		}
+		if (interrupted.isEmpty()) {
+			return;
+		}
+		LOGGER.info("Recovering " + interrupted.size()
+				+ " interrupted service instance operations, mode: " + mode);
+		boolean rollback = "rollback".equalsIgnoreCase(mode);
+		for (ServiceInstanceOperation operation : interrupted) {
+			String tenant = ProvisioningScheduler.tenantOf(operation.getInstance());
+			if (rollback && operation.getType() == Type.CREATE) {
+				scheduler.executeAsync(tenant, () -> instanceService.rollback(operation,
+						"Rolled back after broker restart"));
+			}
+			else {
+				scheduler.executeAsync(tenant, () -> instanceService.resume(operation));
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		claimer.shutdown();
+	}
+
+}
@@ -0,0 +1,421 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.mongodb.exception.LeaseLostException;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerConcurrencyException;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceOperationRepository;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * Keeps the last operation of every service instance and distributes running
+ * operations across broker replicas.
+ * <p>
+ * An operation is leased to the replica running it ({@code owner}) for
+ * {@code mongodb.lease.duration} seconds and the lease is renewed by a heartbeat while
+ * the operation runs. Leases are taken atomically in the broker's Mongo; a replica
+ * that dies simply stops renewing and its operations can be claimed by any other
+ * replica once the lease expires. A lease also records when the replica holding it
+ * started, so that a replica restarted under the same id takes over the operations it
+ * ran before the restart straight away, but never those it is running now. A replica
+ * that finds one of its leases taken over while it still runs the operation stops
+ * recording changes to it: the next checkpoint fails with a
+ * {@link LeaseLostException}.
+ * <p>
+ * Operations owned by this replica are read from memory; their changes are applied to
+ * memory immediately and flushed in unordered bulk batches, either every
+ * {@code mongodb.operations.flush-interval} milliseconds or as soon as
+ * {@code mongodb.operations.batch-size} changes are pending. Flushed writes only
+ * apply while this replica still holds the lease. Operations owned by other replicas
+ * are read from Mongo.
+ */
+@Service
+public class ServiceInstanceOperationStore {
+
+	private static final Logger LOGGER = LoggerFactory
+			.getLogger(ServiceInstanceOperationStore.class);
+
+	private final ConcurrentMap<String, ServiceInstanceOperation> operations = new ConcurrentHashMap<>();
+
+	private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+	private final Set<String> leased = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Operations still running here whose lease another replica took over.
+	 */
+	private final Set<String> lost = ConcurrentHashMap.newKeySet();
+
+	private final Date bootEpoch = new Date();
+
+	private final MongoServiceInstanceOperationRepository repository;
+
+	private final MongoOperations mongoOperations;
+
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "operation-store-flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	@Value("${mongodb.operations.flush-interval:200}")
+	private long flushInterval = 200;
+
+	@Value("${mongodb.operations.batch-size:100}")
+	private int batchSize = 100;
+
+	@Value("${mongodb.lease.duration:30}")
+	private long leaseDuration = 30;
+
+	@Value("${mongodb.broker.replica-id:}")
+	private String replicaId;
+
+	@Autowired
+	public ServiceInstanceOperationStore(
+			MongoServiceInstanceOperationRepository repository,
+			MongoOperations mongoOperations) {
+		this.repository = repository;
+		this.mongoOperations = mongoOperations;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		if (StringUtils.isEmpty(replicaId)) {
+			replicaId = defaultReplicaId();
+		}
+		LOGGER.info("Broker replica id: " + replicaId);
+		flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval,
+				TimeUnit.MILLISECONDS);
+		long heartbeat = TimeUnit.SECONDS.toMillis(leaseDuration) / 3;
+		flusher.scheduleWithFixedDelay(this::renewLeases, heartbeat, heartbeat,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Defaults to the host name, which is unique per container and stays the same when
+	 * a container is restarted in place, so a restarted replica picks up its own
+	 * leases straight away.
+	 */
+	private static String defaultReplicaId() {
+		String hostname = System.getenv("HOSTNAME");
+		if (!StringUtils.isEmpty(hostname)) {
+			return hostname;
+		}
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch (UnknownHostException ex) {
+			throw new IllegalStateException(
+					"Unable to determine broker replica id, set mongodb.broker.replica-id",
+					ex);
+		}
+	}
+
+	public String getReplicaId() {
+		return replicaId;
+	}
+
+	public ServiceInstanceOperation get(String serviceInstanceId) {
+		if (leased.contains(serviceInstanceId)) {
+			return operations.get(serviceInstanceId);
+		}
+		ServiceInstanceOperation operation = repository.findOne(serviceInstanceId);
+		if (operation == null) {
+			operations.remove(serviceInstanceId);
+		}
+		else {
+			operations.put(serviceInstanceId, operation);
+		}
+		return operation;
+	}
+
+	/**
+	 * Records a new operation and leases it to this replica. The write is immediate. An
+	 * operation that finished here may not have been flushed yet, so its record still
+	 * shows it in progress under this replica's lease; such a record is taken over too.
+	 * @return the leased operation
+	 * @throws ServiceBrokerConcurrencyException if another operation for the same
+	 * instance is in progress here or under a live lease of another replica
+	 */
+	public ServiceInstanceOperation start(ServiceInstanceOperation operation) {
+		String id = operation.getServiceInstanceId();
+		ServiceInstanceOperation current = operations.get(id);
+		if (leased.contains(id) && current != null
+				&& current.getState() == OperationState.IN_PROGRESS) {
+			throw new ServiceBrokerConcurrencyException(
+					"Another operation is in progress for service instance " + id);
+		}
+		if (leased.contains(id) && current != null) {
+			// keeps a flush from writing the finished operation over the new one
+			synchronized (this) {
+				return start(operation, true);
+			}
+		}
+		return start(operation, false);
+	}
+
+	private ServiceInstanceOperation start(ServiceInstanceOperation operation,
+			boolean finishedHere) {
+		String id = operation.getServiceInstanceId();
+		Date now = new Date();
+		ServiceInstanceOperation started = operation.withLease(replicaId, bootEpoch,
+				leaseExpiry(now));
+		List<Criteria> claimable = new ArrayList<>(Arrays.asList(
+				where("state").ne(OperationState.IN_PROGRESS.name()), beforeRestart(),
+				where("leaseExpires").lt(now)));
+		if (finishedHere) {
+			claimable.add(ownLease());
+		}
+		Query query = new Query(where("_id").is(id)
+				.orOperator(claimable.toArray(new Criteria[claimable.size()])));
+		try {
+			mongoOperations.upsert(query, toUpdate(started).set("owner", replicaId)
+					.set("leaseEpoch", bootEpoch)
+					.set("leaseExpires", started.getLeaseExpires()),
+					ServiceInstanceOperation.class);
+		}
+		catch (DuplicateKeyException ex) {
+			throw new ServiceBrokerConcurrencyException(
+					"Another operation is in progress for service instance " + id);
+		}
+		operations.compute(id, (key, previous) -> {
+			lost.remove(key);
+			leased.add(key);
+			return started;
+		});
+		return started;
+	}
+
+	/**
+	 * @return criteria matching leases this replica held before it was restarted
+	 */
+	private Criteria beforeRestart() {
+		return where("owner").is(replicaId).and("leaseEpoch").ne(bootEpoch);
+	}
+
+	/**
+	 * @return criteria matching leases this replica holds now
+	 */
+	private Criteria ownLease() {
+		return where("owner").is(replicaId).and("leaseEpoch").is(bootEpoch);
+	}
+
+	/**
+	 * Takes over in-progress operations whose lease has expired, as well as operations
+	 * this replica owned before a restart. Operations it started since are left alone,
+	 * even before they are recorded as leased here.
+	 * @return the operations now leased to this replica
+	 */
+	public List<ServiceInstanceOperation> claimExpired() {
+		Date now = new Date();
+		Criteria expired = where("state").is(OperationState.IN_PROGRESS.name())
+				.orOperator(where("leaseExpires").lt(now), beforeRestart());
+		List<ServiceInstanceOperation> claimed = new ArrayList<>();
+		for (ServiceInstanceOperation candidate : mongoOperations
+				.find(new Query(expired), ServiceInstanceOperation.class)) {
+			String id = candidate.getServiceInstanceId();
+			if (leased.contains(id)) {
+				continue;
+			}
+			Date expiry = leaseExpiry(now);
+			ServiceInstanceOperation operation = mongoOperations.findAndModify(
+					new Query(where("_id").is(id).andOperator(expired)),
+					new Update().set("owner", replicaId).set("leaseEpoch", bootEpoch)
+							.set("leaseExpires", expiry),
+					FindAndModifyOptions.options().returnNew(true),
+					ServiceInstanceOperation.class);
+			if (operation != null) {
+				LOGGER.info("Claimed lease on operation of instance " + id
+						+ ", previous owner: " + candidate.getOwner());
+				operations.put(id, operation);
+				lost.remove(id);
+				leased.add(id);
+				claimed.add(operation);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Records a change to an operation, written with the next flush.
+	 * @throws LeaseLostException if another replica took the operation over
+	 */
+	public void put(ServiceInstanceOperation operation) {
+		checkLease(operation.getServiceInstanceId());
+		operations.put(operation.getServiceInstanceId(), operation);
+		markDirty(operation.getServiceInstanceId());
+	}
+
+	/**
+	 * Like {@link #put(ServiceInstanceOperation)}, but writes the change straight away
+	 * instead of with the next flush, for checkpoints other replicas have to see before
+	 * the operation goes on.
+	 * @throws LeaseLostException if another replica took the operation over
+	 * @throws DataAccessException if the write fails
+	 */
+	public void putNow(ServiceInstanceOperation operation) {
+		String id = operation.getServiceInstanceId();
+		checkLease(id);
+		operations.put(id, operation);
+		if (mongoOperations.updateFirst(new Query(where("_id").is(id).andOperator(ownLease())),
+				toUpdate(operation), ServiceInstanceOperation.class).getN() == 0) {
+			fence(id);
+			checkLease(id);
+		}
+	}
+
+	private void checkLease(String serviceInstanceId) {
+		if (lost.contains(serviceInstanceId)) {
+			throw new LeaseLostException("Lease on operation of service instance "
+					+ serviceInstanceId + " was taken over by another replica");
+		}
+	}
+
+	/**
+	 * Stops recording changes to an operation whose lease another replica took over.
+	 */
+	private void fence(String serviceInstanceId) {
+		lost.add(serviceInstanceId);
+		leased.remove(serviceInstanceId);
+		dirty.remove(serviceInstanceId);
+		operations.remove(serviceInstanceId);
+		LOGGER.warn("Lost lease on operation of instance " + serviceInstanceId
+				+ ", leaving it to its new owner");
+	}
+
+	private void markDirty(String serviceInstanceId) {
+		dirty.add(serviceInstanceId);
+		if (dirty.size() >= batchSize) {
+			flusher.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Writes all pending changes in one bulk request. Ids whose write fails stay
+	 * pending and are retried with the next flush. Operations that reached a terminal
+	 * state are released once written.
+	 */
+	synchronized void flush() {
+		if (dirty.isEmpty()) {
+			return;
+		}
+		List<String> updated = new ArrayList<>();
+		List<String> released = new ArrayList<>();
+		BulkOperations bulk = mongoOperations.bulkOps(BulkMode.UNORDERED,
+				ServiceInstanceOperation.class);
+		for (String id : dirty) {
+			dirty.remove(id);
+			ServiceInstanceOperation operation = operations.get(id);
+			if (operation == null) {
+				continue;
+			}
+			updated.add(id);
+			bulk.updateOne(new Query(where("_id").is(id).andOperator(ownLease())),
+					toUpdate(operation));
+			if (operation.getState() != OperationState.IN_PROGRESS) {
+				released.add(id);
+			}
+		}
+		if (updated.isEmpty()) {
+			return;
+		}
+		try {
+			bulk.execute();
+			for (String id : released) {
+				// a new operation may have been started since the snapshot was taken
+				operations.computeIfPresent(id, (key, operation) -> {
+					if (operation.getState() != OperationState.IN_PROGRESS) {
+						leased.remove(key);
+					}
+					return operation;
+				});
+			}
+		}
+		catch (DataAccessException ex) {
+			LOGGER.warn("Unable to persist service instance operations, will retry: "
+					+ ex.getMessage());
+			dirty.addAll(updated);
+		}
+	}
+
+	private void renewLeases() {
+		if (leased.isEmpty()) {
+			return;
+		}
+		List<String> ids = new ArrayList<>(leased);
+		try {
+			long renewed = mongoOperations.updateMulti(
+					new Query(where("_id").in(ids).andOperator(ownLease())),
+					new Update().set("leaseExpires", leaseExpiry(new Date())),
+					ServiceInstanceOperation.class).getN();
+			if (renewed < ids.size()) {
+				LOGGER.warn("Renewed " + renewed + " of " + ids.size()
+						+ " operation leases, the others were taken over");
+				Query held = new Query(where("_id").in(ids).andOperator(ownLease()));
+				held.fields().include("_id");
+				Set<String> taken = new HashSet<>(ids);
+				for (ServiceInstanceOperation operation : mongoOperations.find(held,
+						ServiceInstanceOperation.class)) {
+					taken.remove(operation.getServiceInstanceId());
+				}
+				taken.forEach(this::fence);
+			}
+		}
+		catch (DataAccessException ex) {
+			LOGGER.warn("Unable to renew operation leases: " + ex.getMessage());
+		}
+	}
+
+	private Date leaseExpiry(Date now) {
+		return new Date(now.getTime() + TimeUnit.SECONDS.toMillis(leaseDuration));
+	}
+
+	private static Update toUpdate(ServiceInstanceOperation operation) {
+		return new Update().set("type", operation.getType())
+				.set("state", operation.getState()).set("step", operation.getStep())
+				.set("instance", operation.getInstance())
+				.set("description", operation.getDescription())
+				.set("updated", operation.getUpdated());
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flusher.shutdown();
+		flush();
+	}
+
+}
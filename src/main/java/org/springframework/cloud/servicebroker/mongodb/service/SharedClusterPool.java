@@ -0,0 +1,451 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig.ServicePlan;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import freemarker.template.TemplateException;
+
+/**
+ * Keeps {@code mongodb.shared.size} replica sets running for the shared plan, whose
+ * instances are databases on one of them instead of clusters of their own, so creating
+ * one only takes a placement and a database create.
+ * <p>
+ * Shared clusters are built from the shared plan's defaults like warm pool clusters,
+ * with generated names and node ports, and are labelled {@code mongodb-broker/pool}
+ * {@code shared} once ready. They are never handed out or deleted with an instance.
+ * Unlike instance clusters they run with authorization and a key file generated for
+ * each cluster, which is kept in a k8s secret together with the broker's admin
+ * credentials, and tenants only get users of their own database.
+ * Every {@code mongodb.shared.refill-interval} seconds they are listed again and
+ * missing ones are started in the background.
+ * <p>
+ * New tenants are placed by {@link TenantPlacement} from the databases and sizes
+ * ({@code listDatabases}) and connections ({@code serverStatus}) of every cluster, read
+ * at most every {@code mongodb.shared.stats-ttl} seconds. Tenants placed since are
+ * counted until their database shows up. When no cluster has room, the placement
+ * fails and another cluster is started, up to {@code mongodb.shared.max-size}.
+ */
+@Component
+public class SharedClusterPool implements PublicMetrics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SharedClusterPool.class);
+
+	private static final int KEY_FILE_LENGTH = 756;
+
+	static final String SHARED = "shared";
+
+	private static final Set<String> SYSTEM_DATABASES = new HashSet<>(
+			Arrays.asList("admin", "local", "config"));
+
+	/**
+	 * Tenants placed longer ago than this whose database did not show up are taken to
+	 * have failed.
+	 */
+	private static final long PENDING_TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+	private final MongoK8sService k8sService;
+
+	private final MongoConfig config;
+
+	private final NodePortAllocator nodePorts;
+
+	private final MongoAdminService mongo;
+
+	private final Map<String, Cluster> clusters = new ConcurrentHashMap<>();
+
+	/**
+	 * Names of the clusters this broker is starting, with their node port, or 0 while
+	 * it is not allocated yet.
+	 */
+	private final Map<String, Integer> warming = new ConcurrentHashMap<>();
+
+	private final Object placementLock = new Object();
+
+	private final AtomicInteger target = new AtomicInteger();
+
+	private final AtomicLong placements = new AtomicLong();
+
+	private final AtomicLong rejections = new AtomicLong();
+
+	private String plan;
+
+	private ServiceInstanceParams template;
+
+	private TenantPlacement placement;
+
+	private ScheduledExecutorService executor;
+
+	private ExecutorService warmExecutor;
+
+	@Value("${mongodb.shared.size:0}")
+	private int size = 0;
+
+	@Value("${mongodb.shared.max-size:0}")
+	private int maxSize = 0;
+
+	@Value("${mongodb.shared.fill:0.8}")
+	private double fill = 0.8;
+
+	@Value("${mongodb.shared.max-tenants:500}")
+	private int maxTenants = 500;
+
+	@Value("${mongodb.shared.stats-ttl:5}")
+	private long statsTtl = 5;
+
+	@Value("${mongodb.shared.refill-interval:30}")
+	private long refillInterval = 30;
+
+	@Autowired
+	public SharedClusterPool(MongoK8sService k8sService, MongoConfig config,
+			NodePortAllocator nodePorts, MongoAdminService mongo) {
+		this.k8sService = k8sService;
+		this.config = config;
+		this.nodePorts = nodePorts;
+		this.mongo = mongo;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		if (size <= 0) {
+			return;
+		}
+		for (ServicePlan servicePlan : ServicePlan.values()) {
+			ServiceInstanceParams params = new ServiceInstanceParams(config,
+					servicePlan.getMetadata());
+			if (params.isShared()) {
+				plan = servicePlan.getId();
+				template = params;
+				break;
+			}
+		}
+		if (template == null) {
+			return;
+		}
+		placement = new TenantPlacement(fill, maxTenants);
+		target.set(size);
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "shared-clusters");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// starting a cluster blocks until it is ready, which must not hold up refills
+		warmExecutor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "shared-clusters-warm");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::refill, 0, refillInterval,
+				TimeUnit.SECONDS);
+		LOGGER.info("Keeping " + size + " shared clusters for plan " + plan);
+	}
+
+	/**
+	 * Places the database of an instance of the shared plan on a shared cluster.
+	 * @return the instance's parameters pointing at the chosen cluster
+	 * @throws MongoServiceException if no shared cluster has room for it
+	 */
+	public ServiceInstanceParams place(ServiceInstanceParams requested,
+			String instanceId) {
+		if (executor == null) {
+			throw new MongoServiceException(
+					"No shared clusters are kept, see mongodb.shared.size");
+		}
+		for (Cluster cluster : clusters.values()) {
+			try {
+				cluster.refreshIfStale();
+			}
+			catch (MongoServiceException ex) {
+				LOGGER.warn("Unable to read the load of shared cluster " + cluster.name
+						+ ": " + ex.getMessage());
+			}
+		}
+		long tenantSize = requested.getTenantSize() == null ? 0
+				: TenantPlacement.bytes(requested.getTenantSize());
+		Cluster chosen;
+		synchronized (placementLock) {
+			List<TenantPlacement.Load> loads = new ArrayList<>();
+			for (Cluster cluster : clusters.values()) {
+				if (cluster.stats != null) {
+					loads.add(cluster.load());
+				}
+			}
+			TenantPlacement.Load load = placement.choose(loads, tenantSize);
+			chosen = load == null ? null : clusters.get(load.getCluster());
+			if (chosen != null) {
+				chosen.pending.put(instanceId, System.nanoTime());
+			}
+		}
+		if (chosen == null) {
+			rejections.incrementAndGet();
+			if (target.get() < Math.max(size, maxSize)) {
+				target.incrementAndGet();
+				executor.execute(this::refill);
+			}
+			throw new MongoServiceException(
+					"No shared cluster has room for instance " + instanceId);
+		}
+		placements.incrementAndGet();
+		LOGGER.info("Instance " + instanceId + " placed on shared cluster " + chosen.name);
+		return requested.withCluster(chosen.name, chosen.port);
+	}
+
+	/**
+	 * Stops counting an instance whose create failed against its cluster.
+	 */
+	public void release(ServiceInstanceParams placed, String instanceId) {
+		Cluster cluster = clusters.get(placed.getName());
+		if (cluster != null) {
+			cluster.pending.remove(instanceId);
+		}
+	}
+
+	synchronized void refill() {
+		if (template == null) {
+			return;
+		}
+		try {
+			Set<String> ready = new HashSet<>();
+			for (JsonNode statefulSet : k8sService.listStatefulSets(template,
+					labels(SHARED))) {
+				String name = statefulSet.path("metadata").path("name").asText();
+				ready.add(name);
+				if (!clusters.containsKey(name)) {
+					int port = k8sService.getNodePort(template.forPool(plan, name, 0));
+					clusters.put(name, new Cluster(name, port));
+				}
+			}
+			clusters.keySet().retainAll(ready);
+			removeAbandoned();
+		}
+		catch (IOException | RuntimeException ex) {
+			LOGGER.warn("Unable to refill shared clusters: " + ex.getMessage());
+			return;
+		}
+		for (int i = clusters.size() + warming.size(); i < target.get(); i++) {
+			String name = config.getName() + "-shared-"
+					+ RandomStringUtils.randomAlphanumeric(8).toLowerCase();
+			warming.put(name, 0);
+			warmExecutor.execute(() -> warm(name));
+		}
+	}
+
+	private void warm(String name) {
+		int port;
+		try {
+			port = nodePorts.isEnabled() ? nodePorts.allocate() : 0;
+		}
+		catch (RuntimeException ex) {
+			LOGGER.warn("Unable to start shared cluster " + name + ": " + ex.getMessage());
+			warming.remove(name);
+			return;
+		}
+		warming.put(name, port);
+		// tenants share the cluster, so it runs with authorization and the broker's
+		// admin user, which is only handed to the cluster in its secret
+		ServiceInstanceParams cluster = template.forPool(plan, name, port)
+				.withAuthorization(RandomStringUtils.randomAlphanumeric(KEY_FILE_LENGTH),
+						config.getUsername(), config.getPassword());
+		boolean ready = false;
+		try {
+			long deadline = System.nanoTime()
+					+ TimeUnit.SECONDS.toNanos(cluster.getReadyTimeout());
+			if (k8sService.createK8sObjects(cluster, false)
+					&& k8sService.awaitReady(cluster, deadline)) {
+				if (port == 0) {
+					port = k8sService.getNodePort(cluster);
+				}
+				if (mongo.awaitReplicaSet(cluster.withCluster(name, port), deadline)
+						&& k8sService.labelStatefulSet(cluster, Collections
+								.singletonMap(WarmPool.POOL_LABEL, SHARED), null) != null) {
+					clusters.put(name, new Cluster(name, port));
+					ready = true;
+					LOGGER.info("Shared cluster " + name + " is ready");
+				}
+			}
+		}
+		catch (IOException | TemplateException ex) {
+			LOGGER.warn("Unable to start shared cluster " + name + ": " + ex.getMessage());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			warming.remove(name);
+			if (!ready) {
+				try {
+					k8sService.deleteK8sObjects(cluster);
+				}
+				finally {
+					nodePorts.release(port);
+				}
+			}
+		}
+	}
+
+	private void removeAbandoned() throws IOException {
+		Instant cutoff = Instant.now().minusSeconds(2 * template.getReadyTimeout());
+		for (JsonNode statefulSet : k8sService.listStatefulSets(template,
+				labels("warming"))) {
+			JsonNode metadata = statefulSet.path("metadata");
+			String name = metadata.path("name").asText();
+			String created = metadata.path("creationTimestamp").asText();
+			if (!warming.containsKey(name) && !created.isEmpty()
+					&& Instant.parse(created).isBefore(cutoff)) {
+				LOGGER.info("Removing abandoned shared cluster " + name);
+				int port = metadata.path("labels").path(WarmPool.PORT_LABEL).asInt();
+				try {
+					k8sService.deleteK8sObjects(template.forPool(plan, name, 0));
+				}
+				finally {
+					nodePorts.release(port);
+				}
+			}
+		}
+	}
+
+	private Map<String, String> labels(String state) {
+		Map<String, String> labels = new LinkedHashMap<>();
+		labels.put(WarmPool.POOL_LABEL, state);
+		labels.put(WarmPool.PLAN_LABEL, plan);
+		return labels;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		if (template != null) {
+			metrics.add(new Metric<>("mongodb.shared.clusters", clusters.size()));
+			metrics.add(new Metric<>("mongodb.shared.warming", warming.size()));
+			metrics.add(new Metric<>("mongodb.shared.placements", placements.get()));
+			metrics.add(new Metric<>("mongodb.shared.rejections", rejections.get()));
+		}
+		return metrics;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			warmExecutor.shutdownNow();
+		}
+	}
+
+	private final class Cluster {
+
+		private final String name;
+
+		private final int port;
+
+		/**
+		 * Instances placed here whose database has not been listed yet, with the
+		 * {@link System#nanoTime()} of their placement.
+		 */
+		private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+		private volatile Stats stats;
+
+		Cluster(String name, int port) {
+			this.name = name;
+			this.port = port;
+		}
+
+		void refreshIfStale() {
+			Stats current = stats;
+			if (current == null || System.nanoTime() - current.asOf > TimeUnit.SECONDS
+					.toNanos(statsTtl)) {
+				refresh();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void refresh() {
+			ServiceInstanceParams cluster = template.withCluster(name, port);
+			long asOf = System.nanoTime();
+			Document databases = mongo.listDatabases(cluster);
+			Document status = mongo.serverStatus(cluster);
+			Set<String> tenants = new HashSet<>();
+			for (Document database : (List<Document>) databases.get("databases",
+					List.class)) {
+				String databaseName = database.getString("name");
+				if (!SYSTEM_DATABASES.contains(databaseName)) {
+					tenants.add(databaseName);
+				}
+			}
+			Document connections = status.get("connections", Document.class);
+			stats = new Stats(tenants.size(),
+					databases.get("totalSize", Number.class).longValue(),
+					connections.get("current", Number.class).intValue(),
+					connections.get("available", Number.class).intValue(), asOf);
+			pending.keySet().removeAll(tenants);
+			pending.values().removeIf(placed -> asOf - placed > PENDING_TIMEOUT);
+		}
+
+		TenantPlacement.Load load() {
+			Stats current = stats;
+			return new TenantPlacement.Load(name,
+					TenantPlacement.bytes(template.getStorage()), current.size,
+					current.tenants + pending.size(), current.connections,
+					current.availableConnections);
+		}
+
+	}
+
+	private static final class Stats {
+
+		private final int tenants;
+
+		private final long size;
+
+		private final int connections;
+
+		private final int availableConnections;
+
+		private final long asOf;
+
+		Stats(int tenants, long size, int connections, int availableConnections,
+				long asOf) {
+			this.tenants = tenants;
+			this.size = size;
+			this.connections = connections;
+			this.availableConnections = availableConnections;
+			this.asOf = asOf;
+		}
+
+	}
+
+}
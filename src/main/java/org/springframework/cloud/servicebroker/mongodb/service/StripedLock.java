@@ -0,0 +1,29 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks shared by an unbounded set of keys. Requests for the same key
+ * always get the same lock; different keys only contend when they hash to the same
+ * stripe.
+ */
+class StripedLock {
+
+	private final Lock[] stripes;
+
+	StripedLock(int stripes) {
+		int size = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+		this.stripes = new Lock[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+	}
+
+	Lock get(String key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (stripes.length - 1)];
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the shared cluster a new tenant database goes to.
+ * <p>
+ * Every cluster is a bin with three dimensions: storage, tenants and connections. A
+ * tenant reserves its plan's tenant size, so the storage committed on a cluster is the
+ * larger of what its databases take on disk and what its tenants reserved. A tenant
+ * fits on a cluster if the committed storage plus its own reservation stays within
+ * {@code fill} of the volume, the cluster holds fewer than {@code maxTenants} tenants
+ * and less than {@code fill} of its connections are in use. Of the clusters it fits on,
+ * the tenant goes to the least loaded one (worst fit), the load of a cluster being its
+ * fullest dimension, so that tenants growing into their reservation have room.
+ */
+final class TenantPlacement {
+
+	private static final Pattern QUANTITY = Pattern
+			.compile("(\\d+(?:\\.\\d+)?)\\s*(Ki|Mi|Gi|Ti|K|M|G|T)?");
+
+	private final double fill;
+
+	private final int maxTenants;
+
+	TenantPlacement(double fill, int maxTenants) {
+		this.fill = fill;
+		this.maxTenants = maxTenants;
+	}
+
+	/**
+	 * @param tenantSize storage reserved by the new tenant, in bytes
+	 * @return the least loaded cluster the tenant fits on, or null if it fits on none
+	 */
+	Load choose(List<Load> clusters, long tenantSize) {
+		Load chosen = null;
+		double lowest = Double.MAX_VALUE;
+		for (Load cluster : clusters) {
+			if (!fits(cluster, tenantSize)) {
+				continue;
+			}
+			double load = load(cluster, tenantSize);
+			if (load < lowest) {
+				lowest = load;
+				chosen = cluster;
+			}
+		}
+		return chosen;
+	}
+
+	private boolean fits(Load cluster, long tenantSize) {
+		return committed(cluster, tenantSize) + tenantSize <= fill * cluster.capacity
+				&& cluster.tenants < maxTenants
+				&& (cluster.maxConnections() == 0
+						|| cluster.connections < fill * cluster.maxConnections());
+	}
+
+	private double load(Load cluster, long tenantSize) {
+		double storage = committed(cluster, tenantSize) / (double) cluster.capacity;
+		double tenants = cluster.tenants / (double) maxTenants;
+		double connections = cluster.maxConnections() == 0 ? 0
+				: cluster.connections / (double) cluster.maxConnections();
+		return Math.max(storage, Math.max(tenants, connections));
+	}
+
+	private static long committed(Load cluster, long tenantSize) {
+		return Math.max(cluster.size, cluster.tenants * tenantSize);
+	}
+
+	/**
+	 * @return the number of bytes of a k8s quantity such as {@code 256Mi} or
+	 * {@code 20Gi}
+	 */
+	static long bytes(String quantity) {
+		Matcher matcher = QUANTITY.matcher(quantity.trim());
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("Not a storage quantity: " + quantity);
+		}
+		double value = Double.parseDouble(matcher.group(1));
+		String unit = matcher.group(2) == null ? "" : matcher.group(2);
+		int exponent = "KMGT".indexOf(unit.isEmpty() ? ' ' : unit.charAt(0)) + 1;
+		double base = unit.endsWith("i") ? 1024 : 1000;
+		return (long) (value * Math.pow(base, exponent));
+	}
+
+	/**
+	 * What a shared cluster holds, as last seen.
+	 */
+	static final class Load {
+
+		private final String cluster;
+
+		private final long capacity;
+
+		private final long size;
+
+		private final int tenants;
+
+		private final int connections;
+
+		private final int availableConnections;
+
+		/**
+		 * @param capacity bytes of the cluster's volume
+		 * @param size bytes its databases take on disk
+		 * @param tenants number of tenant databases, including those placed but not
+		 * created yet
+		 */
+		Load(String cluster, long capacity, long size, int tenants, int connections,
+				int availableConnections) {
+			this.cluster = cluster;
+			this.capacity = capacity;
+			this.size = size;
+			this.tenants = tenants;
+			this.connections = connections;
+			this.availableConnections = availableConnections;
+		}
+
+		String getCluster() {
+			return cluster;
+		}
+
+		private int maxConnections() {
+			return connections + availableConnections;
+		}
+
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.util.Collections;
+
+import org.bson.Document;
+import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
+
+/**
+ * A user or role change for {@link MongoAdminService#runUserCommandsAsync}, which
+ * records its outcome once it has run.
+ */
+public final class UserCommand {
+
+	final String database;
+
+	final Document command;
+
+	/**
+	 * The user a grant is for, or null for other commands.
+	 */
+	final String grantee;
+
+	/**
+	 * The role a grant gives, or null for other commands.
+	 */
+	final Document role;
+
+	private volatile boolean done;
+
+	private volatile MongoServiceException error;
+
+	private UserCommand(String database, Document command, String grantee,
+			Document role) {
+		this.database = database;
+		this.command = command;
+		this.grantee = grantee;
+		this.role = role;
+	}
+
+	/**
+	 * @return a command creating a user with {@code readWrite} on its database
+	 */
+	public static UserCommand createUser(String database, String username,
+			String password) {
+		return createUser(database, username, password, "readWrite");
+	}
+
+	/**
+	 * @return a command creating a user with the given role on its database, and no
+	 * other
+	 */
+	public static UserCommand createUser(String database, String username,
+			String password, String role) {
+		return new UserCommand(database, new Document("createUser", username)
+				.append("pwd", password)
+				.append("roles", Collections.singletonList(role(role, database))),
+				null, null);
+	}
+
+	public static UserCommand deleteUser(String database, String username) {
+		return new UserCommand(database, new Document("dropUser", username), null, null);
+	}
+
+	/**
+	 * @param authDatabase the database the user is defined in
+	 * @return a command granting the user {@code dbOwner} on the given database
+	 */
+	public static UserCommand grantDbOwner(String authDatabase, String username,
+			String database) {
+		Document role = role("dbOwner", database);
+		return new UserCommand(authDatabase, new Document("grantRolesToUser", username)
+				.append("roles", Collections.singletonList(role)), username, role);
+	}
+
+	private static Document role(String role, String database) {
+		return new Document("role", role).append("db", database);
+	}
+
+	void complete(MongoServiceException error) {
+		this.error = error;
+		this.done = true;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public boolean isSucceeded() {
+		return done && error == null;
+	}
+
+	/**
+	 * @return why the command failed, or null if it succeeded or has not run yet
+	 */
+	public MongoServiceException getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		// the name of a command is its first key; the password stays out
+		String name = command.keySet().iterator().next();
+		return database + ": " + name + " " + command.get(name);
+	}
+
+}
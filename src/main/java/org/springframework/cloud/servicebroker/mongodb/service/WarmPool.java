@@ -0,0 +1,444 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig.ServicePlan;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import freemarker.template.TemplateException;
+
+/**
+ * Keeps {@code mongodb.pool.size} idle, ready clusters per plan so that creating an
+ * instance does not have to wait for volumes to be provisioned and pods to start.
+ * <p>
+ * Pool clusters are ordinary instance clusters with generated names and node ports from
+ * the {@link NodePortAllocator} (or assigned by k8s if it is disabled), whose statefulset
+ * is labelled {@code mongodb-broker/pool} ({@code warming} while starting, {@code idle}
+ * once ready, {@code claimed} once handed out), {@code mongodb-broker/plan} and
+ * {@code mongodb-broker/port}. A create request that uses the plan's defaults claims an
+ * idle cluster by relabelling its statefulset; the label update is conditional on the
+ * statefulset's resource version, so a cluster is never handed out twice, even by
+ * different broker replicas. The claimed cluster keeps its name and node port, and is
+ * deleted with the instance like any other.
+ * <p>
+ * The pool state lives in k8s: every {@code mongodb.pool.refill-interval} seconds the
+ * idle clusters are listed again and missing ones are started in the background. Clusters
+ * that were left warming by a broker that went away are removed once they are older than
+ * twice the plan's ready timeout, and their node port released. So are clusters claimed
+ * longer than the plan's ready timeout ago that neither the instance they were claimed
+ * for nor its operation refer to, e.g. because the broker that claimed them went away
+ * before it recorded the claim. Warming a cluster blocks until it is ready, so it runs on
+ * its own threads rather than on the one that refills the pools.
+ */
+@Component
+public class WarmPool implements PublicMetrics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WarmPool.class);
+
+	static final String POOL_LABEL = "mongodb-broker/pool";
+
+	static final String PLAN_LABEL = "mongodb-broker/plan";
+
+	static final String INSTANCE_LABEL = "mongodb-broker/instance";
+
+	static final String PORT_LABEL = "mongodb-broker/port";
+
+	static final String CLAIMED_AT_LABEL = "mongodb-broker/claimed-at";
+
+	private final MongoK8sService k8sService;
+
+	private final MongoConfig config;
+
+	private final NodePortAllocator nodePorts;
+
+	private final MongoAdminService mongo;
+
+	private final MongoServiceInstanceRepository instanceRepository;
+
+	private final ServiceInstanceOperationStore operationStore;
+
+	private final Map<String, Pool> pools = new LinkedHashMap<>();
+
+	private ScheduledExecutorService executor;
+
+	private ExecutorService warmExecutor;
+
+	@Value("${mongodb.pool.size:0}")
+	private int size = 0;
+
+	@Value("${mongodb.pool.plans:}")
+	private String plans = "";
+
+	@Value("${mongodb.pool.refill-interval:30}")
+	private long refillInterval = 30;
+
+	@Value("${mongodb.pool.threads:2}")
+	private int threads = 2;
+
+	@Value("${service.id:mongodb}")
+	private String serviceId = "mongodb";
+
+	@Autowired
+	public WarmPool(MongoK8sService k8sService, MongoConfig config,
+			NodePortAllocator nodePorts, MongoAdminService mongo,
+			MongoServiceInstanceRepository instanceRepository,
+			ServiceInstanceOperationStore operationStore) {
+		this.k8sService = k8sService;
+		this.config = config;
+		this.nodePorts = nodePorts;
+		this.mongo = mongo;
+		this.instanceRepository = instanceRepository;
+		this.operationStore = operationStore;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		if (size <= 0) {
+			return;
+		}
+		Set<String> enabled = StringUtils.commaDelimitedListToSet(plans);
+		for (ServicePlan plan : ServicePlan.values()) {
+			ServiceInstanceParams template = new ServiceInstanceParams(config,
+					plan.getMetadata());
+			// instances of the shared plan live on the shared clusters
+			if ((enabled.isEmpty() || enabled.contains(plan.getId()))
+					&& !template.isShared()) {
+				pools.put(serviceId + plan.getId(), new Pool(plan.getId(), template));
+			}
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "warm-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		warmExecutor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "warm-pool-warm");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::refill, 0, refillInterval,
+				TimeUnit.SECONDS);
+		LOGGER.info("Keeping " + size + " warm clusters for plans " + pools.keySet());
+	}
+
+	/**
+	 * Hands out an idle cluster of the plan to the given instance. The caller has to
+	 * record the instance's parameters before the plan's ready timeout has passed, or
+	 * the cluster is taken for orphaned and removed.
+	 * @return the instance's parameters pointing at the claimed cluster, or null if the
+	 * pool is empty or the instance does not use the plan's defaults
+	 */
+	public ServiceInstanceParams claim(String planId, ServiceInstanceParams requested,
+			String instanceId) {
+		Pool pool = pools.get(planId);
+		if (pool == null || !pool.fits(requested)) {
+			return null;
+		}
+		Member member;
+		while ((member = pool.idle.pollFirst()) != null) {
+			ServiceInstanceParams cluster = pool.template.forPool(pool.plan, member.name,
+					member.port);
+			Map<String, String> labels = new LinkedHashMap<>();
+			labels.put(POOL_LABEL, "claimed");
+			labels.put(INSTANCE_LABEL, instanceId);
+			labels.put(CLAIMED_AT_LABEL, String.valueOf(Instant.now().getEpochSecond()));
+			try {
+				if (k8sService.labelStatefulSet(cluster, labels,
+						member.resourceVersion) != null) {
+					pool.hits.incrementAndGet();
+					LOGGER.info("Instance " + instanceId + " claimed warm cluster "
+							+ member.name);
+					executor.execute(this::refill);
+					return requested.withCluster(member.name, member.port);
+				}
+			}
+			catch (IOException ex) {
+				LOGGER.warn("Unable to claim warm cluster " + member.name + ": "
+						+ ex.getMessage());
+			}
+		}
+		pool.misses.incrementAndGet();
+		return null;
+	}
+
+	synchronized void refill() {
+		for (Pool pool : pools.values()) {
+			try {
+				refill(pool);
+			}
+			catch (IOException | RuntimeException ex) {
+				LOGGER.warn("Unable to refill warm pool of plan " + pool.plan + ": "
+						+ ex.getMessage());
+			}
+		}
+	}
+
+	private void refill(Pool pool) throws IOException {
+		List<Member> idle = new ArrayList<>();
+		for (JsonNode statefulSet : k8sService.listStatefulSets(pool.template,
+				pool.labels("idle"))) {
+			String name = statefulSet.path("metadata").path("name").asText();
+			Integer port = pool.ports.get(name);
+			if (port == null) {
+				port = k8sService.getNodePort(pool.template.forPool(pool.plan, name, 0));
+				pool.ports.put(name, port);
+			}
+			idle.add(new Member(name, port,
+					statefulSet.path("metadata").path("resourceVersion").asText()));
+		}
+		pool.ports.keySet()
+				.retainAll(idle.stream().map(m -> m.name).collect(Collectors.toSet()));
+		pool.idle.clear();
+		pool.idle.addAll(idle);
+		removeAbandoned(pool);
+		removeOrphaned(pool);
+		for (int i = idle.size() + pool.warming.size(); i < size; i++) {
+			String name = config.getName() + "-"
+					+ RandomStringUtils.randomAlphanumeric(8).toLowerCase();
+			pool.warming.put(name, 0);
+			warmExecutor.execute(() -> warm(pool, name));
+		}
+	}
+
+	private void warm(Pool pool, String name) {
+		int port;
+		try {
+			port = nodePorts.isEnabled() ? nodePorts.allocate() : 0;
+		}
+		catch (RuntimeException ex) {
+			LOGGER.warn("Unable to warm cluster " + name + ": " + ex.getMessage());
+			pool.warming.remove(name);
+			return;
+		}
+		pool.warming.put(name, port);
+		ServiceInstanceParams cluster = pool.template.forPool(pool.plan, name, port);
+		boolean ready = false;
+		try {
+			long deadline = System.nanoTime()
+					+ TimeUnit.SECONDS.toNanos(cluster.getReadyTimeout());
+			if (k8sService.createK8sObjects(cluster, false)
+					&& k8sService.awaitReady(cluster, deadline)) {
+				if (port == 0) {
+					port = k8sService.getNodePort(cluster);
+				}
+				JsonNode labelled = null;
+				if (mongo.awaitReplicaSet(cluster.withCluster(name, port), deadline)) {
+					labelled = k8sService.labelStatefulSet(cluster,
+							Collections.singletonMap(POOL_LABEL, "idle"), null);
+				}
+				if (labelled != null) {
+					pool.ports.put(name, port);
+					pool.idle.addLast(new Member(name, port, labelled.path("metadata")
+							.path("resourceVersion").asText()));
+					ready = true;
+					LOGGER.info("Warm cluster " + name + " of plan " + pool.plan
+							+ " is ready");
+				}
+			}
+		}
+		catch (IOException | TemplateException ex) {
+			LOGGER.warn("Unable to warm cluster " + name + ": " + ex.getMessage());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			pool.warming.remove(name);
+			if (!ready) {
+				try {
+					k8sService.deleteK8sObjects(cluster);
+				}
+				finally {
+					nodePorts.release(port);
+				}
+			}
+		}
+	}
+
+	private void removeAbandoned(Pool pool) throws IOException {
+		Instant cutoff = Instant.now()
+				.minusSeconds(2 * pool.template.getReadyTimeout());
+		for (JsonNode statefulSet : k8sService.listStatefulSets(pool.template,
+				pool.labels("warming"))) {
+			JsonNode metadata = statefulSet.path("metadata");
+			String name = metadata.path("name").asText();
+			String created = metadata.path("creationTimestamp").asText();
+			if (!pool.warming.containsKey(name) && !created.isEmpty()
+					&& Instant.parse(created).isBefore(cutoff)) {
+				LOGGER.info("Removing abandoned warm cluster " + name);
+				int port = metadata.path("labels").path(PORT_LABEL).asInt();
+				try {
+					k8sService.deleteK8sObjects(pool.template.forPool(pool.plan, name, 0));
+				}
+				finally {
+					nodePorts.release(port);
+				}
+			}
+		}
+	}
+
+	private void removeOrphaned(Pool pool) throws IOException {
+		long cutoff = Instant.now().minusSeconds(pool.template.getReadyTimeout())
+				.getEpochSecond();
+		for (JsonNode statefulSet : k8sService.listStatefulSets(pool.template,
+				pool.labels("claimed"))) {
+			JsonNode metadata = statefulSet.path("metadata");
+			String name = metadata.path("name").asText();
+			JsonNode labels = metadata.path("labels");
+			String instanceId = labels.path(INSTANCE_LABEL).asText();
+			if (labels.path(CLAIMED_AT_LABEL).asLong(Long.MAX_VALUE) > cutoff
+					|| isRecorded(instanceId, name)) {
+				continue;
+			}
+			LOGGER.info("Removing warm cluster " + name + " claimed for instance "
+					+ instanceId + ", which does not use it");
+			int port = labels.path(PORT_LABEL).asInt();
+			try {
+				k8sService
+						.deleteK8sObjects(pool.template.forPool(pool.plan, name, 0));
+			}
+			finally {
+				nodePorts.release(port);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the instance or its last operation refer to the given cluster
+	 */
+	private boolean isRecorded(String instanceId, String cluster) {
+		ServiceInstance instance = instanceRepository.findOne(instanceId);
+		if (instance != null && usesCluster(instance, cluster)) {
+			return true;
+		}
+		ServiceInstanceOperation operation = operationStore.get(instanceId);
+		return operation != null && usesCluster(operation.getInstance(), cluster);
+	}
+
+	private static boolean usesCluster(ServiceInstance instance, String cluster) {
+		return instance != null && instance.getInstanceParams() != null
+				&& cluster.equals(instance.getInstanceParams().getName());
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		for (Pool pool : pools.values()) {
+			String prefix = "mongodb.pool." + pool.plan;
+			metrics.add(new Metric<>(prefix + ".idle", pool.idle.size()));
+			metrics.add(new Metric<>(prefix + ".warming", pool.warming.size()));
+			metrics.add(new Metric<>(prefix + ".claims.hit", pool.hits.get()));
+			metrics.add(new Metric<>(prefix + ".claims.miss", pool.misses.get()));
+		}
+		return metrics;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			warmExecutor.shutdownNow();
+		}
+	}
+
+	private final class Pool {
+
+		private final String plan;
+
+		private final ServiceInstanceParams template;
+
+		private final ConcurrentLinkedDeque<Member> idle = new ConcurrentLinkedDeque<>();
+
+		/**
+		 * Names of the clusters this broker is warming, with their node port, or 0
+		 * while it is not allocated yet.
+		 */
+		private final Map<String, Integer> warming = new ConcurrentHashMap<>();
+
+		private final Map<String, Integer> ports = new ConcurrentHashMap<>();
+
+		private final AtomicLong hits = new AtomicLong();
+
+		private final AtomicLong misses = new AtomicLong();
+
+		Pool(String plan, ServiceInstanceParams template) {
+			this.plan = plan;
+			this.template = template;
+		}
+
+		Map<String, String> labels(String state) {
+			Map<String, String> labels = new LinkedHashMap<>();
+			labels.put(POOL_LABEL, state);
+			labels.put(PLAN_LABEL, plan);
+			return labels;
+		}
+
+		/**
+		 * Pool clusters are built from the plan's defaults, so only requests that do
+		 * not override any of them can be served from the pool.
+		 */
+		boolean fits(ServiceInstanceParams requested) {
+			return Objects.equals(requested.getNamespace(), template.getNamespace())
+					&& Objects.equals(requested.getUrl(), template.getUrl())
+					&& Objects.equals(requested.getAccessToken(),
+							template.getAccessToken())
+					&& Objects.equals(requested.getName(), template.getName())
+					&& !requested.isExposePortRequested()
+					&& Objects.equals(requested.getStorage(), template.getStorage())
+					&& requested.getReplicas() == template.getReplicas();
+		}
+
+	}
+
+	private static final class Member {
+
+		private final String name;
+
+		private final int port;
+
+		private final String resourceVersion;
+
+		Member(String name, int port, String resourceVersion) {
+			this.name = name;
+			this.port = port;
+			this.resourceVersion = resourceVersion;
+		}
+
+	}
+
+}
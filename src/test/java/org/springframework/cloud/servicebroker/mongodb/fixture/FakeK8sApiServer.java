@@ -0,0 +1,586 @@
+package org.springframework.cloud.servicebroker.mongodb.fixture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the parts of the Kubernetes API the broker calls: storage
+ * classes, config maps, secrets, services, statefulsets, pods and persistent volume
+ * claims.
+ * <p>
+ * Objects are kept in memory. Creating a statefulset creates its pods and volume
+ * claims; the pods turn {@code Running} (or {@code Failed}, see {@link #failPods}) after
+ * the configured start delay. Lists can be watched with {@code watch=true}, which streams
+ * an event per line for every change to the listed objects until
+ * {@code timeoutSeconds}. Deleting a statefulset removes its pods after the stop
+ * delay; volume claims stay until they are deleted. Every request can be slowed down
+ * with a fixed latency, and errors can be injected either for the next matching
+ * requests or at random.
+ */
+public class FakeK8sApiServer {
+
+	private static final Pattern PATH = Pattern.compile(
+			"^/(?:api/v1|apis/[^/]+/v1)(?:/namespaces/([^/]+))?/([a-z]+)(?:/([^/]+))?(/status)?$");
+
+	private final ObjectMapper json = new ObjectMapper();
+
+	private final ObjectMapper yaml = new ObjectMapper(new YAMLFactory());
+
+	private final Map<String, ObjectNode> objects = new LinkedHashMap<>();
+
+	private final Set<String> failingStatefulSets = new HashSet<>();
+
+	private final List<ErrorRule> errorRules = new ArrayList<>();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong watches = new AtomicLong();
+
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(daemon("fake-k8s-timer"));
+
+	private final ExecutorService workers = Executors
+			.newCachedThreadPool(daemon("fake-k8s"));
+
+	private HttpServer server;
+
+	private long resourceVersion;
+
+	private int nextNodePort = 30000;
+
+	private volatile long latency;
+
+	private volatile long podStartDelay = 100;
+
+	private volatile long podStopDelay = 100;
+
+	private volatile double errorRate;
+
+	private volatile int randomErrorStatus = 500;
+
+	public void start() throws IOException {
+		server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(workers);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		workers.shutdownNow();
+		timer.shutdownNow();
+	}
+
+	/**
+	 * @return the master URL to configure the broker with
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of watches that have been opened
+	 */
+	public long getWatchCount() {
+		return watches.get();
+	}
+
+	public void setLatency(long millis) {
+		this.latency = millis;
+	}
+
+	public void setPodStartDelay(long millis) {
+		this.podStartDelay = millis;
+	}
+
+	public void setPodStopDelay(long millis) {
+		this.podStopDelay = millis;
+	}
+
+	/**
+	 * Answers the given fraction of all requests with the given status.
+	 */
+	public void setErrorRate(double rate, int status) {
+		this.errorRate = rate;
+		this.randomErrorStatus = status;
+	}
+
+	/**
+	 * Answers the next {@code times} requests with the given method whose path contains
+	 * {@code pathPart} with the given status.
+	 */
+	public synchronized void failNext(String method, String pathPart, int status,
+			int times) {
+		errorRules.add(new ErrorRule(method, pathPart, status, times));
+	}
+
+	/**
+	 * Lets the pods of the given statefulset fail instead of running.
+	 */
+	public synchronized void failPods(String statefulSet) {
+		failingStatefulSets.add(statefulSet);
+	}
+
+	/**
+	 * @return the number of stored objects of a kind, e.g. {@code pods}
+	 */
+	public synchronized int count(String kind) {
+		int count = 0;
+		for (String key : objects.keySet()) {
+			if (key.startsWith(kind + "/")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (latency > 0) {
+				TimeUnit.MILLISECONDS.sleep(latency);
+			}
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+			Integer injected = injectedError(method, path);
+			if (injected != null) {
+				exchange.getResponseHeaders().set("Retry-After", "0");
+				respond(exchange, injected, status(injected, "injected error"));
+				return;
+			}
+			Matcher matcher = PATH.matcher(path);
+			if (!matcher.matches()) {
+				respond(exchange, 404, status(404, "unknown path " + path));
+				return;
+			}
+			String namespace = matcher.group(1) == null ? "" : matcher.group(1);
+			String kind = matcher.group(2);
+			String name = matcher.group(3);
+			Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+			byte[] body = read(exchange.getRequestBody());
+			synchronized (this) {
+				dispatch(exchange, method, namespace, kind, name, query, body);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (RuntimeException ex) {
+			respond(exchange, 500, status(500, String.valueOf(ex)));
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private void dispatch(HttpExchange exchange, String method, String namespace,
+			String kind, String name, Map<String, String> query, byte[] body)
+			throws IOException {
+		String selector = query.get("labelSelector");
+		switch (method) {
+		case "POST":
+			create(exchange, namespace, kind, body);
+			break;
+		case "GET":
+			if (name == null && "true".equals(query.get("watch"))) {
+				watch(exchange, namespace, kind, selector, query.get("timeoutSeconds"));
+			}
+			else if (name == null) {
+				respond(exchange, 200, list(namespace, kind, selector));
+			}
+			else {
+				ObjectNode object = objects.get(key(kind, namespace, name));
+				respond(exchange, object == null ? 404 : 200,
+						object == null ? status(404, name + " not found") : object);
+			}
+			break;
+		case "DELETE":
+			if (name == null) {
+				ObjectNode deleted = list(namespace, kind, selector);
+				for (JsonNode object : deleted.path("items")) {
+					delete(kind, namespace, object.path("metadata").path("name").asText());
+				}
+				respond(exchange, 200, deleted);
+			}
+			else {
+				ObjectNode deleted = delete(kind, namespace, name);
+				respond(exchange, deleted == null ? 404 : 200,
+						deleted == null ? status(404, name + " not found") : deleted);
+			}
+			break;
+		case "PATCH":
+			patch(exchange, namespace, kind, name, body);
+			break;
+		default:
+			respond(exchange, 405, status(405, method));
+		}
+	}
+
+	private void create(HttpExchange exchange, String namespace, String kind,
+			byte[] body) throws IOException {
+		ObjectNode object = (ObjectNode) yaml.readTree(body);
+		ObjectNode metadata = (ObjectNode) object.path("metadata");
+		String name = metadata.path("name").asText();
+		String key = key(kind, namespace, name);
+		if (objects.containsKey(key)) {
+			respond(exchange, 409, status(409, name + " already exists"));
+			return;
+		}
+		store(kind, namespace, object);
+		if ("services".equals(kind)) {
+			assignNodePorts(object);
+		}
+		else if ("statefulsets".equals(kind)) {
+			createPods(namespace, object);
+		}
+		respond(exchange, 201, object);
+	}
+
+	private void store(String kind, String namespace, ObjectNode object) {
+		ObjectNode metadata = object.with("metadata");
+		if (!namespace.isEmpty()) {
+			metadata.put("namespace", namespace);
+		}
+		metadata.put("uid", UUID.randomUUID().toString());
+		metadata.put("resourceVersion", String.valueOf(++resourceVersion));
+		metadata.put("creationTimestamp", Instant.now().toString());
+		objects.put(key(kind, namespace, metadata.path("name").asText()), object);
+		notifyAll();
+	}
+
+	private void assignNodePorts(ObjectNode service) {
+		if (!"NodePort".equals(service.path("spec").path("type").asText())) {
+			return;
+		}
+		for (JsonNode port : service.path("spec").path("ports")) {
+			if (!port.hasNonNull("nodePort")) {
+				((ObjectNode) port).put("nodePort", nextNodePort++);
+			}
+		}
+	}
+
+	private void createPods(String namespace, ObjectNode statefulSet) {
+		String name = statefulSet.path("metadata").path("name").asText();
+		JsonNode podLabels = statefulSet.path("spec").path("template").path("metadata")
+				.path("labels");
+		int replicas = Math.max(1, statefulSet.path("spec").path("replicas").asInt(1));
+		for (int ordinal = 0; ordinal < replicas; ordinal++) {
+			String podName = name + "-" + ordinal;
+			ObjectNode pod = json.createObjectNode();
+			pod.put("kind", "Pod");
+			ObjectNode metadata = pod.putObject("metadata");
+			metadata.put("name", podName);
+			metadata.set("labels", podLabels.deepCopy());
+			pod.putObject("status").put("phase", "Pending");
+			store("pods", namespace, pod);
+			for (JsonNode template : statefulSet.path("spec")
+					.path("volumeClaimTemplates")) {
+				ObjectNode claim = json.createObjectNode();
+				claim.put("kind", "PersistentVolumeClaim");
+				ObjectNode claimMetadata = claim.putObject("metadata");
+				claimMetadata.put("name",
+						template.path("metadata").path("name").asText() + "-" + podName);
+				ObjectNode labels = claimMetadata.putObject("labels");
+				labels.setAll((ObjectNode) statefulSet.path("spec").path("selector")
+						.path("matchLabels"));
+				if (template.path("metadata").has("labels")) {
+					labels.setAll((ObjectNode) template.path("metadata").path("labels"));
+				}
+				store("persistentvolumeclaims", namespace, claim);
+			}
+			String phase = failingStatefulSets.contains(name) ? "Failed" : "Running";
+			timer.schedule(() -> setPhase(namespace, podName, phase), podStartDelay,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void setPhase(String namespace, String podName, String phase) {
+		ObjectNode pod = objects.get(key("pods", namespace, podName));
+		if (pod != null) {
+			pod.with("status").put("phase", phase);
+			pod.with("metadata").put("resourceVersion", String.valueOf(++resourceVersion));
+			notifyAll();
+		}
+	}
+
+	private ObjectNode delete(String kind, String namespace, String name) {
+		ObjectNode deleted = objects.get(key(kind, namespace, name));
+		if (deleted == null) {
+			return null;
+		}
+		if (!"statefulsets".equals(kind)) {
+			objects.remove(key(kind, namespace, name));
+			notifyAll();
+			return deleted;
+		}
+		// foreground deletion: the statefulset goes away together with its pods
+		deleted.with("metadata").put("deletionTimestamp", Instant.now().toString());
+		timer.schedule(() -> removeStatefulSet(namespace, name), podStopDelay,
+				TimeUnit.MILLISECONDS);
+		return deleted;
+	}
+
+	private synchronized void removeStatefulSet(String namespace, String name) {
+		objects.remove(key("statefulsets", namespace, name));
+		Iterator<String> keys = objects.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(key("pods", namespace, name + "-"))) {
+				keys.remove();
+			}
+		}
+		notifyAll();
+	}
+
+	private void patch(HttpExchange exchange, String namespace, String kind, String name,
+			byte[] body) throws IOException {
+		ObjectNode object = objects.get(key(kind, namespace, name));
+		if (object == null) {
+			respond(exchange, 404, status(404, name + " not found"));
+			return;
+		}
+		JsonNode metadata = json.readTree(body).path("metadata");
+		String expected = metadata.path("resourceVersion").asText(null);
+		ObjectNode current = object.with("metadata");
+		if (expected != null
+				&& !expected.equals(current.path("resourceVersion").asText())) {
+			respond(exchange, 409, status(409, name + " has been modified"));
+			return;
+		}
+		// merge patch: a null label is removed
+		metadata.path("labels").fields().forEachRemaining(label -> {
+			if (label.getValue().isNull()) {
+				current.with("labels").remove(label.getKey());
+			}
+			else {
+				current.with("labels").set(label.getKey(), label.getValue());
+			}
+		});
+		current.put("resourceVersion", String.valueOf(++resourceVersion));
+		notifyAll();
+		respond(exchange, 200, object);
+	}
+
+	/**
+	 * Streams an {@code ADDED}, {@code MODIFIED} or {@code DELETED} event for every
+	 * change to the listed objects, starting with the objects that exist, until the
+	 * timeout has passed or the client goes away. Runs with the monitor held, which is
+	 * released while waiting for the next change.
+	 */
+	private void watch(HttpExchange exchange, String namespace, String kind,
+			String selector, String timeoutSeconds) throws IOException {
+		watches.incrementAndGet();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS
+				.toNanos(timeoutSeconds == null ? 1800 : Long.parseLong(timeoutSeconds));
+		Map<String, JsonNode> seen = new HashMap<>();
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			while (true) {
+				Map<String, JsonNode> current = new HashMap<>();
+				for (JsonNode object : list(namespace, kind, selector).path("items")) {
+					current.put(object.path("metadata").path("name").asText(), object);
+				}
+				for (Map.Entry<String, JsonNode> object : current.entrySet()) {
+					JsonNode previous = seen.put(object.getKey(), object.getValue().deepCopy());
+					if (previous == null) {
+						event(out, "ADDED", object.getValue());
+					}
+					else if (!previous.path("metadata").path("resourceVersion")
+							.equals(object.getValue().path("metadata").path("resourceVersion"))) {
+						event(out, "MODIFIED", object.getValue());
+					}
+				}
+				Iterator<Map.Entry<String, JsonNode>> gone = seen.entrySet().iterator();
+				while (gone.hasNext()) {
+					Map.Entry<String, JsonNode> object = gone.next();
+					if (!current.containsKey(object.getKey())) {
+						event(out, "DELETED", object.getValue());
+						gone.remove();
+					}
+				}
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					return;
+				}
+				wait(remaining);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void event(OutputStream out, String type, JsonNode object)
+			throws IOException {
+		ObjectNode event = json.createObjectNode();
+		event.put("type", type);
+		event.set("object", object);
+		out.write(json.writeValueAsBytes(event));
+		out.write('\n');
+		out.flush();
+	}
+
+	private ObjectNode list(String namespace, String kind, String selector) {
+		Map<String, String> labels = new HashMap<>();
+		if (selector != null) {
+			for (String term : selector.split(",")) {
+				String[] pair = term.split("=", 2);
+				labels.put(pair[0], pair.length > 1 ? pair[1] : "");
+			}
+		}
+		ObjectNode list = json.createObjectNode();
+		list.put("kind", "List");
+		ArrayNode items = list.putArray("items");
+		String prefix = namespace.isEmpty() ? kind + "/" : key(kind, namespace, "");
+		for (Map.Entry<String, ObjectNode> entry : objects.entrySet()) {
+			if (entry.getKey().startsWith(prefix) && matches(entry.getValue(), labels)) {
+				items.add(entry.getValue());
+			}
+		}
+		return list;
+	}
+
+	private static boolean matches(JsonNode object, Map<String, String> labels) {
+		JsonNode actual = object.path("metadata").path("labels");
+		for (Map.Entry<String, String> label : labels.entrySet()) {
+			if (!label.getValue().equals(actual.path(label.getKey()).asText(null))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized Integer injectedError(String method, String path) {
+		Iterator<ErrorRule> rules = errorRules.iterator();
+		while (rules.hasNext()) {
+			ErrorRule rule = rules.next();
+			if (rule.method.equals(method) && path.contains(rule.pathPart)) {
+				if (--rule.remaining == 0) {
+					rules.remove();
+				}
+				return rule.status;
+			}
+		}
+		if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+			return randomErrorStatus;
+		}
+		return null;
+	}
+
+	private ObjectNode status(int code, String message) {
+		ObjectNode status = json.createObjectNode();
+		status.put("kind", "Status");
+		status.put("code", code);
+		status.put("message", message);
+		return status;
+	}
+
+	private void respond(HttpExchange exchange, int code, JsonNode body)
+			throws IOException {
+		byte[] bytes = json.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String key(String kind, String namespace, String name) {
+		return kind + "/" + namespace + "/" + name;
+	}
+
+	private static Map<String, String> query(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null) {
+			return query;
+		}
+		for (String parameter : rawQuery.split("&")) {
+			String[] pair = parameter.split("=", 2);
+			try {
+				query.put(pair[0], pair.length > 1
+						? URLDecoder.decode(pair[1], StandardCharsets.UTF_8.name()) : "");
+			}
+			catch (UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+		return query;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static ThreadFactory daemon(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static final class ErrorRule {
+
+		private final String method;
+
+		private final String pathPart;
+
+		private final int status;
+
+		private int remaining;
+
+		ErrorRule(String method, String pathPart, int status, int times) {
+			this.method = method;
+			this.pathPart = pathPart;
+			this.status = status;
+			this.remaining = times;
+		}
+
+	}
+
+}
@@ -1,10 +1,12 @@
 package org.springframework.cloud.servicebroker.mongodb.fixture;
 
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
 
 public class ServiceInstanceFixture {
 	public static ServiceInstance getServiceInstance() {
 		return new ServiceInstance("service-instance-id", "service-definition-id", "plan-id",
-				"org-guid", "space-guid", "http://dashboard.example.com");
+				"org-guid", "space-guid", "http://dashboard.example.com",
+				new ServiceInstanceParams());
 	}
 }
@@ -0,0 +1,102 @@
+package org.springframework.cloud.servicebroker.mongodb.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the latency of every call made for an operation and summarizes them as
+ * throughput and nearest-rank percentiles.
+ */
+class LatencyRecorder {
+
+	private final ConcurrentMap<String, Samples> operations = new ConcurrentHashMap<>();
+
+	void record(String operation, long nanos) {
+		samples(operation).add(nanos);
+	}
+
+	void failed(String operation) {
+		samples(operation).failed();
+	}
+
+	void rejected(String operation) {
+		samples(operation).rejected();
+	}
+
+	private Samples samples(String operation) {
+		return operations.computeIfAbsent(operation, key -> new Samples());
+	}
+
+	/**
+	 * @param elapsed wall-clock duration of the run in nanoseconds
+	 * @return per operation: call count, failures, rejections, calls per second and
+	 * p50/p95/p99/max latency in milliseconds, ordered by operation name
+	 */
+	Map<String, Map<String, Object>> summarize(long elapsed) {
+		Map<String, Map<String, Object>> summary = new LinkedHashMap<>();
+		operations.keySet().stream().sorted().forEach(
+				operation -> summary.put(operation, operations.get(operation)
+						.summarize(elapsed)));
+		return summary;
+	}
+
+	private static final class Samples {
+
+		private long[] nanos = new long[1024];
+
+		private int count;
+
+		private int failures;
+
+		private int rejections;
+
+		synchronized void add(long latency) {
+			if (count == nanos.length) {
+				nanos = Arrays.copyOf(nanos, count * 2);
+			}
+			nanos[count++] = latency;
+		}
+
+		synchronized void failed() {
+			failures++;
+		}
+
+		synchronized void rejected() {
+			rejections++;
+		}
+
+		synchronized Map<String, Object> summarize(long elapsed) {
+			long[] sorted = Arrays.copyOf(nanos, count);
+			Arrays.sort(sorted);
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("count", count);
+			summary.put("failures", failures);
+			summary.put("rejections", rejections);
+			summary.put("throughput", round(count / (elapsed / 1e9)));
+			summary.put("p50", percentile(sorted, 50));
+			summary.put("p95", percentile(sorted, 95));
+			summary.put("p99", percentile(sorted, 99));
+			summary.put("max", percentile(sorted, 100));
+			return summary;
+		}
+
+		private static double percentile(long[] sorted, int percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+			return round(sorted[Math.max(0, rank - 1)]
+					/ (double) TimeUnit.MILLISECONDS.toNanos(1));
+		}
+
+		private static double round(double value) {
+			return Math.round(value * 100) / 100.0;
+		}
+
+	}
+
+}
@@ -0,0 +1,325 @@
+package org.springframework.cloud.servicebroker.mongodb.loadtest;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.stubbing.Answer;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.model.ServiceDefinition;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.fixture.FakeK8sApiServer;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceBinding;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Step;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceBindingRepository;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceOperationRepository;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.cloud.servicebroker.mongodb.service.K8sApiLimiter;
+import org.springframework.cloud.servicebroker.mongodb.service.K8sManifestRenderer;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoAdminService;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoK8sService;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoServiceInstanceBindingService;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoServiceInstanceService;
+import org.springframework.cloud.servicebroker.mongodb.service.NodePortAllocator;
+import org.springframework.cloud.servicebroker.mongodb.service.ProvisioningMetrics;
+import org.springframework.cloud.servicebroker.mongodb.service.ProvisioningScheduler;
+import org.springframework.cloud.servicebroker.mongodb.service.ServiceInstanceOperationStore;
+import org.springframework.cloud.servicebroker.mongodb.service.SharedClusterPool;
+import org.springframework.cloud.servicebroker.mongodb.service.WarmPool;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteResult;
+import com.mongodb.client.MongoDatabase;
+
+import freemarker.template.Configuration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The broker's service beans wired the way the application context wires them, with
+ * local stand-ins for its backends: a {@link FakeK8sApiServer} for Kubernetes, an
+ * admin service whose instance cluster calls just take {@code mongoLatency}
+ * milliseconds, and repositories and operation store writes kept in memory.
+ * <p>
+ * Everything in between (admission, the provisioning scheduler, the operation store
+ * with its leases and batched flushes, the k8s rate limiter and the asynchronous k8s
+ * pipelines) is the production code with its default settings.
+ */
+class LoadTestBroker {
+
+	static final String SERVICE_ID = "mongodb";
+
+	private final FakeK8sApiServer k8s = new FakeK8sApiServer();
+
+	private final Map<String, ServiceInstance> instances = new ConcurrentHashMap<>();
+
+	private final Map<String, ServiceInstanceBinding> bindings = new ConcurrentHashMap<>();
+
+	private final Map<String, ServiceInstanceOperation> operations = new ConcurrentHashMap<>();
+
+	private final ServiceDefinition serviceDefinition;
+
+	private final HttpComponentsAsyncClientHttpRequestFactory asyncRequestFactory = new HttpComponentsAsyncClientHttpRequestFactory();
+
+	private final ProvisioningScheduler scheduler = new ProvisioningScheduler();
+
+	private final ServiceInstanceOperationStore operationStore;
+
+	private final MongoServiceInstanceService instanceService;
+
+	private final MongoServiceInstanceBindingService bindingService;
+
+	LoadTestBroker(long k8sLatency, long podStartDelay, long mongoLatency)
+			throws Exception {
+		k8s.setLatency(k8sLatency);
+		k8s.setPodStartDelay(podStartDelay);
+		k8s.setPodStopDelay(podStartDelay);
+		k8s.start();
+
+		try {
+			MongoConfig config = new MongoConfig();
+			ReflectionTestUtils.setField(config, "masterUrl", k8s.getUrl());
+			ReflectionTestUtils.setField(config, "namespace", "loadtest");
+			ReflectionTestUtils.setField(config, "accessToken", "token");
+			ReflectionTestUtils.setField(config, "name", "mongo-od");
+			ReflectionTestUtils.setField(config, "serviceTimeout", 30L);
+			ReflectionTestUtils.setField(config, "readyTimeout", 120L);
+
+			CatalogConfig catalog = new CatalogConfig();
+			ReflectionTestUtils.setField(catalog, "serviceId", SERVICE_ID);
+			serviceDefinition = catalog.catalog().getServiceDefinitions().get(0);
+
+			MongoOperations mongoOperations = inMemoryOperations();
+			MongoServiceInstanceRepository instanceRepository = inMemoryInstances();
+			MongoServiceInstanceOperationRepository operationRepository = mock(
+					MongoServiceInstanceOperationRepository.class);
+			when(operationRepository.findOne(anyString()))
+					.thenAnswer(invocation -> operations
+							.get(invocation.getArguments()[0]));
+
+			operationStore = new ServiceInstanceOperationStore(operationRepository,
+					mongoOperations);
+			ReflectionTestUtils.setField(operationStore, "replicaId", "loadtest");
+			operationStore.initialize();
+			scheduler.start();
+
+			ProvisioningMetrics metrics = new ProvisioningMetrics(
+					new SimpleMeterRegistry());
+			MongoK8sService k8sService = new MongoK8sService(
+					new K8sManifestRenderer(
+							new Configuration(Configuration.VERSION_2_3_23), "json"),
+					new HttpComponentsClientHttpRequestFactory(), asyncRequestFactory,
+					new K8sApiLimiter(), metrics);
+			MongoAdminService mongo = new SimulatedMongoAdminService(mongoLatency);
+			NodePortAllocator nodePorts = new NodePortAllocator(mongoOperations,
+					k8sService, instanceRepository, config);
+			ReflectionTestUtils.setField(nodePorts, "enabled", false);
+			WarmPool warmPool = new WarmPool(k8sService, config, nodePorts, mongo,
+					instanceRepository, operationStore);
+			SharedClusterPool sharedClusters = new SharedClusterPool(k8sService,
+					config, nodePorts, mongo);
+
+			instanceService = new MongoServiceInstanceService(mongo,
+					instanceRepository, k8sService, config, scheduler, operationStore,
+					warmPool, sharedClusters, nodePorts, metrics, 64);
+			bindingService = new MongoServiceInstanceBindingService(mongo,
+					inMemoryBindings(), instanceRepository, metrics);
+		}
+		catch (Exception | Error ex) {
+			k8s.stop();
+			throw ex;
+		}
+	}
+
+	MongoServiceInstanceService getInstanceService() {
+		return instanceService;
+	}
+
+	MongoServiceInstanceBindingService getBindingService() {
+		return bindingService;
+	}
+
+	ServiceDefinition getServiceDefinition() {
+		return serviceDefinition;
+	}
+
+	long getK8sRequestCount() {
+		return k8s.getRequestCount();
+	}
+
+	void shutdown() throws Exception {
+		scheduler.shutdown();
+		operationStore.shutdown();
+		asyncRequestFactory.destroy();
+		k8s.stop();
+	}
+
+	private MongoServiceInstanceRepository inMemoryInstances() {
+		MongoServiceInstanceRepository repository = mock(
+				MongoServiceInstanceRepository.class);
+		when(repository.findOne(anyString()))
+				.thenAnswer(invocation -> instances.get(invocation.getArguments()[0]));
+		when(repository.save(any(ServiceInstance.class))).thenAnswer(invocation -> {
+			ServiceInstance instance = (ServiceInstance) invocation.getArguments()[0];
+			instances.put(instance.getServiceInstanceId(), instance);
+			return instance;
+		});
+		doAnswer(invocation -> instances.remove(invocation.getArguments()[0]))
+				.when(repository).delete(anyString());
+		return repository;
+	}
+
+	private MongoServiceInstanceBindingRepository inMemoryBindings() {
+		MongoServiceInstanceBindingRepository repository = mock(
+				MongoServiceInstanceBindingRepository.class);
+		when(repository.findOne(anyString()))
+				.thenAnswer(invocation -> bindings.get(invocation.getArguments()[0]));
+		when(repository.save(any(ServiceInstanceBinding.class))).thenAnswer(invocation -> {
+			ServiceInstanceBinding binding = (ServiceInstanceBinding) invocation
+					.getArguments()[0];
+			bindings.put(binding.getId(), binding);
+			return binding;
+		});
+		doAnswer(invocation -> bindings.remove(invocation.getArguments()[0]))
+				.when(repository).delete(anyString());
+		return repository;
+	}
+
+	/**
+	 * Applies the operation store's upserts, updates and bulk updates to the in-memory
+	 * operations collection, which its repository reads from. Leases always succeed,
+	 * as with a single broker replica.
+	 */
+	private MongoOperations inMemoryOperations() {
+		MongoOperations mongoOperations = mock(MongoOperations.class);
+		Answer<Object> write = invocation -> {
+			Object[] arguments = invocation.getArguments();
+			apply((Query) arguments[0], (Update) arguments[1]);
+			return invocation.getMock() instanceof BulkOperations ? invocation.getMock()
+					: WriteResult.unacknowledged();
+		};
+		when(mongoOperations.upsert(any(Query.class), any(Update.class),
+				any(Class.class))).thenAnswer(write);
+		when(mongoOperations.updateFirst(any(Query.class), any(Update.class),
+				any(Class.class))).thenAnswer(invocation -> {
+					write.answer(invocation);
+					return new WriteResult(1, true, null);
+				});
+		when(mongoOperations.updateMulti(any(Query.class), any(Update.class),
+				any(Class.class)))
+				.thenReturn(new WriteResult(Integer.MAX_VALUE, true, null));
+		when(mongoOperations.bulkOps(any(BulkMode.class), any(Class.class)))
+				.thenAnswer(invocation -> {
+					BulkOperations bulk = mock(BulkOperations.class);
+					when(bulk.updateOne(any(Query.class), any(Update.class)))
+							.thenAnswer(write);
+					return bulk;
+				});
+		return mongoOperations;
+	}
+
+	private void apply(Query query, Update update) {
+		String id = (String) query.getQueryObject().get("_id");
+		DBObject set = (DBObject) update.getUpdateObject().get("$set");
+		ServiceInstanceOperation operation = new ServiceInstanceOperation(
+				(ServiceInstance) set.get("instance"), (Type) set.get("type"),
+				(OperationState) set.get("state"), (String) set.get("description"))
+						.withStep((Step) set.get("step"));
+		operations.put(id, operation);
+	}
+
+	/**
+	 * An admin service whose calls to instance clusters only take time, the way a
+	 * round trip to a healthy cluster would.
+	 */
+	private static final class SimulatedMongoAdminService extends MongoAdminService {
+
+		private final long latency;
+
+		private final MongoDatabase database = mock(MongoDatabase.class);
+
+		SimulatedMongoAdminService(long latency) {
+			super(mock(MongoClient.class));
+			this.latency = latency;
+		}
+
+		@Override
+		public boolean databaseExists(ServiceInstanceParams cluster,
+				String databaseName) {
+			roundTrip();
+			return false;
+		}
+
+		@Override
+		public void deleteDatabase(ServiceInstanceParams cluster, String databaseName) {
+			roundTrip();
+		}
+
+		@Override
+		public MongoDatabase createDatabase(ServiceInstanceParams cluster,
+				String databaseName) {
+			roundTrip();
+			return database;
+		}
+
+		@Override
+		public void createUser(ServiceInstanceParams cluster, String database,
+				String username, String password) {
+			roundTrip();
+		}
+
+		@Override
+		public void deleteUser(ServiceInstanceParams cluster, String database,
+				String username) {
+			roundTrip();
+		}
+
+		@Override
+		public String getConnectionString(ServiceInstanceParams cluster,
+				String database, String username, String password) {
+			return "mongodb://" + username + ":" + password + "@" + cluster.getName()
+					+ ":27017/" + database;
+		}
+
+		@Override
+		public CompletableFuture<Boolean> awaitReplicaSetAsync(
+				ServiceInstanceParams cluster, long deadline, Executor executor) {
+			return CompletableFuture.supplyAsync(() -> {
+				roundTrip();
+				return true;
+			}, executor);
+		}
+
+		private void roundTrip() {
+			try {
+				TimeUnit.MILLISECONDS.sleep(latency);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
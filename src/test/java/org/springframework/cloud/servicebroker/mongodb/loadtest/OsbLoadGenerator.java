@@ -0,0 +1,331 @@
+package org.springframework.cloud.servicebroker.mongodb.loadtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.servicebroker.model.CreateServiceInstanceAppBindingResponse;
+import org.springframework.cloud.servicebroker.model.CreateServiceInstanceBindingRequest;
+import org.springframework.cloud.servicebroker.model.CreateServiceInstanceRequest;
+import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceBindingRequest;
+import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceRequest;
+import org.springframework.cloud.servicebroker.model.GetLastServiceOperationRequest;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.model.ServiceDefinition;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig.ServicePlan;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerConcurrencyException;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerOverloadedException;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoServiceInstanceBindingService;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoServiceInstanceService;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Drives the broker the way Cloud Controller does: every virtual client provisions an
+ * instance, polls {@code last_operation} until the create has finished, binds and
+ * unbinds an app, deprovisions the instance and polls again until it is gone. Calls
+ * refused with 503 are retried after a short pause, as the platform would after the
+ * Retry-After it got. See {@link LoadTestBroker} for what runs behind the services.
+ * <p>
+ * The run is reported as throughput and p50/p95/p99 latency per OSB call, plus the time
+ * from accepting a provision or deprovision to its completion
+ * ({@code provision.complete}, {@code deprovision.complete}). The report is written to
+ * the first argument and compared with the baseline in the second; a p95, p99 or
+ * throughput figure worse than the baseline by more than {@code loadtest.tolerance}
+ * fails the run. {@code -Dloadtest.record-baseline=true} replaces the baseline with
+ * the report instead. Baselines only compare across runs on the same kind of machine.
+ * <p>
+ * Settings are read from {@code loadtest.*} system properties:
+ * {@code instances} (200), {@code clients} (50), {@code poll-interval} (50ms),
+ * {@code k8s-latency} (5ms), {@code pod-start-delay} (200ms), {@code mongo-latency}
+ * (5ms) and {@code tolerance} (1.5).
+ * <p>
+ * Run it with {@code ./gradlew loadTest}.
+ */
+public final class OsbLoadGenerator {
+
+	private static final String[] COMPARED = { "p95", "p99" };
+
+	/**
+	 * Instances are spread over this many orgs, so that the scheduler's per-tenant
+	 * share does not dominate the results.
+	 */
+	private static final int ORGS = 10;
+
+	/**
+	 * Latencies below this many milliseconds are not compared, they are mostly noise.
+	 */
+	private static final double NOISE_FLOOR = 5;
+
+	private final MongoServiceInstanceService instances;
+
+	private final MongoServiceInstanceBindingService bindings;
+
+	private final ServiceDefinition serviceDefinition;
+
+	private final LatencyRecorder recorder = new LatencyRecorder();
+
+	private final long pollInterval;
+
+	private OsbLoadGenerator(LoadTestBroker broker, long pollInterval) {
+		this.instances = broker.getInstanceService();
+		this.bindings = broker.getBindingService();
+		this.serviceDefinition = broker.getServiceDefinition();
+		this.pollInterval = pollInterval;
+	}
+
+	public static void main(String[] args) throws Exception {
+		((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+				.setLevel(Level.WARN);
+		File results = new File(
+				args.length > 0 ? args[0] : "build/loadtest/results.json");
+		File baseline = new File(
+				args.length > 1 ? args[1] : "src/test/resources/loadtest/baseline.json");
+
+		Map<String, Object> settings = new LinkedHashMap<>();
+		settings.put("instances", Integer.getInteger("loadtest.instances", 200));
+		settings.put("clients", Integer.getInteger("loadtest.clients", 50));
+		settings.put("poll-interval", Long.getLong("loadtest.poll-interval", 50));
+		settings.put("k8s-latency", Long.getLong("loadtest.k8s-latency", 5));
+		settings.put("pod-start-delay", Long.getLong("loadtest.pod-start-delay", 200));
+		settings.put("mongo-latency", Long.getLong("loadtest.mongo-latency", 5));
+		double tolerance = Double.parseDouble(
+				System.getProperty("loadtest.tolerance", "1.5"));
+
+		LoadTestBroker broker = new LoadTestBroker((Long) settings.get("k8s-latency"),
+				(Long) settings.get("pod-start-delay"),
+				(Long) settings.get("mongo-latency"));
+		Map<String, Object> report = new LinkedHashMap<>();
+		try {
+			OsbLoadGenerator generator = new OsbLoadGenerator(broker,
+					(Long) settings.get("poll-interval"));
+			long elapsed = generator.run((Integer) settings.get("instances"),
+					(Integer) settings.get("clients"));
+			report.put("settings", settings);
+			report.put("elapsed", TimeUnit.NANOSECONDS.toMillis(elapsed));
+			report.put("k8sRequests", broker.getK8sRequestCount());
+			report.put("operations", generator.recorder.summarize(elapsed));
+		}
+		finally {
+			broker.shutdown();
+		}
+
+		ObjectMapper mapper = new ObjectMapper()
+				.enable(SerializationFeature.INDENT_OUTPUT);
+		results.getAbsoluteFile().getParentFile().mkdirs();
+		mapper.writeValue(results, report);
+		System.out.println(mapper.writeValueAsString(report.get("operations")));
+		System.out.println("Results written to " + results);
+
+		if (Boolean.getBoolean("loadtest.record-baseline")) {
+			baseline.getAbsoluteFile().getParentFile().mkdirs();
+			mapper.writeValue(baseline, report);
+			System.out.println("Baseline recorded in " + baseline);
+			return;
+		}
+		if (!baseline.exists()) {
+			System.out.println("No baseline at " + baseline
+					+ ", record one with -Dloadtest.record-baseline=true");
+			return;
+		}
+		List<String> regressions = compare(
+				mapper.readTree(baseline).path("operations"),
+				mapper.valueToTree(report.get("operations")), tolerance);
+		if (!regressions.isEmpty()) {
+			regressions.forEach(System.err::println);
+			System.exit(1);
+		}
+		System.out.println("No regressions against " + baseline);
+	}
+
+	/**
+	 * @return the wall-clock duration of the run in nanoseconds
+	 */
+	private long run(int count, int clients) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		List<Callable<Void>> lifecycles = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			String instanceId = UUID.randomUUID().toString();
+			String serviceName = "mongo-" + i;
+			String org = "load-org-" + i % ORGS;
+			lifecycles.add(() -> {
+				lifecycle(instanceId, serviceName, org);
+				return null;
+			});
+		}
+		long start = System.nanoTime();
+		try {
+			executor.invokeAll(lifecycles);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void lifecycle(String instanceId, String serviceName, String org)
+			throws InterruptedException {
+		try {
+			long accepted = call("provision",
+					() -> instances.createServiceInstance(createRequest(instanceId,
+							serviceName, org)));
+			if (awaitOperation(instanceId) != OperationState.SUCCEEDED) {
+				recorder.failed("provision.complete");
+				return;
+			}
+			recorder.record("provision.complete", System.nanoTime() - accepted);
+
+			String bindingId = UUID.randomUUID().toString();
+			call("bind", () -> {
+				return ((CreateServiceInstanceAppBindingResponse) bindings
+						.createServiceInstanceBinding(bindRequest(instanceId, bindingId)))
+								.getCredentials();
+			});
+			call("unbind", () -> {
+				bindings.deleteServiceInstanceBinding(new DeleteServiceInstanceBindingRequest(
+						instanceId, bindingId, serviceDefinition.getId(), planId(),
+						serviceDefinition));
+				return null;
+			});
+
+			accepted = call("deprovision",
+					() -> instances.deleteServiceInstance(new DeleteServiceInstanceRequest(
+							instanceId, serviceDefinition.getId(), planId(),
+							serviceDefinition, true)));
+			if (awaitOperation(instanceId) != OperationState.SUCCEEDED) {
+				recorder.failed("deprovision.complete");
+				return;
+			}
+			recorder.record("deprovision.complete", System.nanoTime() - accepted);
+		}
+		catch (RuntimeException ex) {
+			// already counted against the call that failed
+		}
+	}
+
+	/**
+	 * Polls {@code last_operation} until the operation of the instance has finished.
+	 */
+	private OperationState awaitOperation(String instanceId)
+			throws InterruptedException {
+		GetLastServiceOperationRequest request = new GetLastServiceOperationRequest(
+				instanceId, serviceDefinition.getId(), planId(), null);
+		while (true) {
+			TimeUnit.MILLISECONDS.sleep(pollInterval);
+			OperationState state = timed("last_operation",
+					() -> instances.getLastOperation(request).getState());
+			if (state != OperationState.IN_PROGRESS) {
+				return state;
+			}
+		}
+	}
+
+	/**
+	 * Makes a call until it is accepted, pausing after each refusal.
+	 * @return when the accepted call was made, as a {@link System#nanoTime()} value
+	 */
+	private long call(String operation, Callable<?> call) throws InterruptedException {
+		while (true) {
+			long start = System.nanoTime();
+			try {
+				timed(operation, call);
+				return start;
+			}
+			catch (ServiceBrokerOverloadedException
+					| ServiceBrokerConcurrencyException ex) {
+				recorder.rejected(operation);
+				TimeUnit.MILLISECONDS.sleep(pollInterval);
+			}
+		}
+	}
+
+	private <T> T timed(String operation, Callable<T> call) {
+		long start = System.nanoTime();
+		try {
+			T result = call.call();
+			recorder.record(operation, System.nanoTime() - start);
+			return result;
+		}
+		catch (ServiceBrokerOverloadedException | ServiceBrokerConcurrencyException ex) {
+			throw ex;
+		}
+		catch (Exception ex) {
+			recorder.failed(operation);
+			throw ex instanceof RuntimeException ? (RuntimeException) ex
+					: new IllegalStateException(ex);
+		}
+	}
+
+	private CreateServiceInstanceRequest createRequest(String instanceId,
+			String serviceName, String org) {
+		return new CreateServiceInstanceRequest(serviceDefinition.getId(), planId(),
+				org, "load-space",
+				Collections.singletonMap("service_name", serviceName))
+						.withServiceInstanceId(instanceId)
+						.withServiceDefinition(serviceDefinition)
+						.withAsyncAccepted(true);
+	}
+
+	private CreateServiceInstanceBindingRequest bindRequest(String instanceId,
+			String bindingId) {
+		return new CreateServiceInstanceBindingRequest(serviceDefinition.getId(),
+				planId(), "app-" + bindingId, null, null).withBindingId(bindingId)
+						.withServiceInstanceId(instanceId);
+	}
+
+	private String planId() {
+		return LoadTestBroker.SERVICE_ID + ServicePlan.DEFAULT.getId();
+	}
+
+	/**
+	 * @return a description of every figure of the run that is worse than the
+	 * baseline by more than the tolerance
+	 */
+	static List<String> compare(JsonNode baseline, JsonNode run, double tolerance) {
+		List<String> regressions = new ArrayList<>();
+		baseline.fields().forEachRemaining(entry -> {
+			String operation = entry.getKey();
+			JsonNode expected = entry.getValue();
+			JsonNode actual = run.path(operation);
+			if (actual.isMissingNode()) {
+				regressions.add(operation + ": not measured");
+				return;
+			}
+			for (String percentile : COMPARED) {
+				double limit = Math.max(NOISE_FLOOR,
+						expected.path(percentile).asDouble() * tolerance);
+				if (actual.path(percentile).asDouble() > limit) {
+					regressions.add(operation + ": " + percentile + " "
+							+ actual.path(percentile).asDouble() + "ms, baseline "
+							+ expected.path(percentile).asDouble() + "ms");
+				}
+			}
+			double throughput = expected.path("throughput").asDouble() / tolerance;
+			if (actual.path("throughput").asDouble() < throughput) {
+				regressions.add(operation + ": throughput "
+						+ actual.path("throughput").asDouble() + "/s, baseline "
+						+ expected.path("throughput").asDouble() + "/s");
+			}
+			if (actual.path("failures").asInt() > expected.path("failures").asInt()) {
+				regressions.add(operation + ": " + actual.path("failures").asInt()
+						+ " failures, baseline " + expected.path("failures").asInt());
+			}
+		});
+		return regressions;
+	}
+
+}
@@ -0,0 +1,33 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DatabaseInventoryTest {
+
+	private static final long TTL = TimeUnit.MINUTES.toNanos(1);
+
+	private final DatabaseInventory inventory = new DatabaseInventory(100);
+
+	@Test
+	public void listingStartedBeforeCreateDoesNotUndoIt() {
+		long asOf = System.nanoTime();
+		inventory.created("c1", "db1");
+		inventory.listed("c1", "db1", false, asOf);
+
+		assertEquals(Boolean.TRUE, inventory.lookup("c1", "db1", TTL));
+		assertNull(inventory.lookup("c2", "db1", TTL));
+	}
+
+	@Test
+	public void staleEntriesAreUnknown() {
+		inventory.listed("c1", "db1", true, System.nanoTime() - TTL - 1);
+
+		assertNull(inventory.lookup("c1", "db1", TTL));
+	}
+
+}
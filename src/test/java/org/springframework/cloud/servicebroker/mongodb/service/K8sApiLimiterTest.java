@@ -0,0 +1,82 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerOverloadedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class K8sApiLimiterTest {
+
+	private static final URI MASTER = URI.create("https://k8s.example:6443/api/v1/pods");
+
+	private K8sApiLimiter limiter;
+
+	@Before
+	public void setup() {
+		limiter = new K8sApiLimiter();
+		ReflectionTestUtils.setField(limiter, "maxBackoff", 1L);
+		ReflectionTestUtils.setField(limiter, "failureThreshold", 3);
+	}
+
+	@Test
+	public void throttledCallIsRetried() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Retry-After", "0");
+		ResponseEntity<String> response = limiter.execute(MASTER, HttpMethod.POST,
+				() -> calls.incrementAndGet() == 1
+						? new ResponseEntity<>(headers, HttpStatus.TOO_MANY_REQUESTS)
+						: new ResponseEntity<>("{}", HttpStatus.CREATED));
+
+		assertEquals(HttpStatus.CREATED, response.getStatusCode());
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void serverErrorOnPostIsNotRetried() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		ResponseEntity<String> response = limiter.execute(MASTER, HttpMethod.POST, () -> {
+			calls.incrementAndGet();
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		});
+
+		assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void circuitOpensAfterRepeatedFailures() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			limiter.execute(MASTER, HttpMethod.GET, () -> {
+				calls.incrementAndGet();
+				return new ResponseEntity<>(HttpStatus.BAD_GATEWAY);
+			});
+			fail("retries should stop once the circuit opens");
+		}
+		catch (ServiceBrokerOverloadedException ex) {
+			assertEquals(3, calls.get());
+		}
+		try {
+			limiter.execute(MASTER, HttpMethod.GET, () -> {
+				calls.incrementAndGet();
+				return new ResponseEntity<>(HttpStatus.OK);
+			});
+			fail("circuit should be open");
+		}
+		catch (ServiceBrokerOverloadedException ex) {
+			assertEquals(3, calls.get());
+		}
+	}
+
+}
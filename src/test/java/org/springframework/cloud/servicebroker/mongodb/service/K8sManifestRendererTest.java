@@ -0,0 +1,142 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.service.MongoK8sService.K8sObject;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import freemarker.template.Configuration;
+
+public class K8sManifestRendererTest {
+
+	private K8sManifestRenderer renderer;
+
+	@Before
+	public void setup() throws Exception {
+		renderer = new K8sManifestRenderer(new Configuration(Configuration.VERSION_2_3_23),
+				"json");
+		ReflectionTestUtils.setField(renderer, "cacheSize", 1);
+	}
+
+	@Test
+	public void cacheKeepsOnlyTheMostRecentlyUsedInstances() throws Exception {
+		ServiceInstanceParams first = params("mongodb-1", "128Mi");
+		ServiceInstanceParams second = params("mongodb-2", "128Mi");
+		K8sManifestRenderer.Manifest rendered = renderer.render(K8sObject.STATEFULSET, first);
+		assertSame(rendered, renderer.render(K8sObject.STATEFULSET, first));
+
+		renderer.render(K8sObject.STATEFULSET, second);
+
+		assertNotSame(rendered, renderer.render(K8sObject.STATEFULSET, first));
+	}
+
+	@Test
+	public void changedParametersRenderAnew() throws Exception {
+		K8sManifestRenderer.Manifest rendered = renderer.render(K8sObject.STATEFULSET,
+				params("mongodb-1", "128Mi"));
+
+		assertNotSame(rendered,
+				renderer.render(K8sObject.STATEFULSET, params("mongodb-1", "1Gi")));
+	}
+
+	@Test
+	public void nodePortOfAReplicaSetOnlyRoutesToThePrimary() throws Exception {
+		ServiceInstanceParams params = params("mongodb-1", "128Mi", 3);
+		ObjectMapper mapper = new ObjectMapper();
+		JsonNode statefulSet = mapper
+				.readTree(renderer.render(K8sObject.STATEFULSET, params).getBody());
+		JsonNode discovery = mapper
+				.readTree(renderer.render(K8sObject.DISCOVERY_SERVICE, params).getBody());
+		JsonNode headless = mapper
+				.readTree(renderer.render(K8sObject.HEADLESS_SERVICE, params).getBody());
+
+		JsonNode spec = statefulSet.path("spec");
+		assertEquals(3, spec.path("replicas").asInt());
+		// every running member is ready, whether primary or secondary
+		JsonNode probe = spec.path("template").path("spec").path("containers").path(0)
+				.path("readinessProbe").path("exec").path("command");
+		assertTrue(probe.toString().contains("db.adminCommand('ping')"));
+		assertFalse(probe.toString().contains("isMaster"));
+		// the port routes to the member the broker labels as primary
+		assertEquals(PrimaryRouter.PRIMARY, discovery.path("spec").path("selector")
+				.path(PrimaryRouter.ROLE_LABEL).asText());
+		assertTrue(spec.path("template").path("metadata").path("labels")
+				.path(PrimaryRouter.ROLE_LABEL).isMissingNode());
+		// peers still find each other
+		assertTrue(headless.path("spec").path("publishNotReadyAddresses").asBoolean());
+	}
+
+	@Test
+	public void singleMemberIsAlwaysThePrimary() throws Exception {
+		JsonNode statefulSet = new ObjectMapper().readTree(renderer
+				.render(K8sObject.STATEFULSET, params("mongodb-1", "128Mi")).getBody());
+
+		assertEquals(PrimaryRouter.PRIMARY, statefulSet.path("spec").path("template")
+				.path("metadata").path("labels").path(PrimaryRouter.ROLE_LABEL).asText());
+	}
+
+	@Test
+	public void sharedClustersRunWithAuthorization() throws Exception {
+		MongoConfig mongoConfig = mock(MongoConfig.class);
+		when(mongoConfig.getNamespace()).thenReturn("mongo");
+		ServiceInstanceParams shared = new ServiceInstanceParams(mongoConfig,
+				CatalogConfig.ServicePlan.DENSE.getMetadata())
+				.forPool("dense", "mongodb-shared-1", 31000)
+				.withAuthorization("key", "broker", "s3cr'et");
+		ObjectMapper mapper = new ObjectMapper();
+		JsonNode config = mapper
+				.readTree(renderer.render(K8sObject.CONFIGMAP, shared).getBody());
+		JsonNode secret = mapper
+				.readTree(renderer.render(K8sObject.SECRET, shared).getBody());
+		JsonNode statefulSet = mapper
+				.readTree(renderer.render(K8sObject.STATEFULSET, shared).getBody());
+
+		String conf = config.path("data").path("mongod.conf").asText();
+		assertTrue(conf, conf.contains("authorization: enabled"));
+		assertTrue(conf, conf.contains("keyFile: /work-dir/keyfile"));
+		// the key and the admin credentials are only kept in the secret
+		assertFalse(config.path("data").has("keyfile"));
+		String onStart = config.path("data").path("on-start.sh").asText();
+		assertFalse(onStart, onStart.contains("'password'"));
+		assertEquals("mongodb-shared-1-auth", secret.path("metadata").path("name").asText());
+		assertEquals("key", secret.path("stringData").path("keyfile").asText());
+		assertEquals("broker", secret.path("stringData").path("username").asText());
+		assertEquals("s3cr'et", secret.path("stringData").path("password").asText());
+		JsonNode pod = statefulSet.path("spec").path("template").path("spec");
+		JsonNode boot = pod.path("initContainers").path(1);
+		assertTrue(boot.path("command").toString().contains("/auth/keyfile"));
+		assertTrue(boot.path("volumeMounts").toString().contains("\"/auth\""));
+		assertTrue(pod.path("volumes").toString().contains("mongodb-shared-1-auth"));
+
+		JsonNode dedicated = mapper.readTree(renderer.render(K8sObject.CONFIGMAP,
+				params("mongodb-2", "128Mi")).getBody());
+		assertTrue(dedicated.path("data").path("mongod.conf").asText()
+				.contains("authorization: disabled"));
+		assertFalse(dedicated.path("data").has("on-start.sh"));
+	}
+
+	private static ServiceInstanceParams params(String name, String storage) {
+		return params(name, storage, 1);
+	}
+
+	private static ServiceInstanceParams params(String name, String storage,
+			int replicas) {
+		return new ServiceInstanceParams("mongo", name, "token", "http://localhost", 31000,
+				1, storage, replicas);
+	}
+
+}
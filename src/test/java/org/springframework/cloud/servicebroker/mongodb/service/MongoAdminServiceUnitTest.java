@@ -1,18 +1,42 @@
 package org.springframework.cloud.servicebroker.mongodb.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig.ServicePlan;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
 
 public class MongoAdminServiceUnitTest {
 
@@ -26,11 +50,147 @@ public class MongoAdminServiceUnitTest {
 	
 	@Mock
 	private ServerAddress server2;
+
+	@Mock
+	private MongoDatabase admin;
 	
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
 		service = new MongoAdminService(client);
+		when(client.getDatabase("admin")).thenReturn(admin);
+	}
+
+	@Test
+	public void uriCarriesTheConnectionOptionsOfThePlan() {
+		MongoClientCache clients = mock(MongoClientCache.class);
+		ServiceInstanceParams gold = new ServiceInstanceParams(mock(MongoConfig.class),
+				ServicePlan.GOLD.getMetadata());
+		when(clients.addressOf(gold)).thenReturn(new ServerAddress("server1", 31001));
+		service = new MongoAdminService(client, clients);
+
+		MongoClientURI uri = new MongoClientURI(
+				service.getConnectionString(gold, "database", "username", "password"));
+
+		assertEquals(Arrays.asList("server1:31001"), uri.getHosts());
+		// the single address is the primary, see MongoClientCache
+		assertEquals(ReadPreference.primary(), uri.getOptions().getReadPreference());
+		assertEquals(WriteConcern.MAJORITY, uri.getOptions().getWriteConcern());
+		assertEquals(50, uri.getOptions().getConnectionsPerHost());
+	}
+
+	@Test
+	public void usersOfASharedClusterOnlyOwnTheirDatabase() {
+		MongoDatabase db = mock(MongoDatabase.class);
+		when(client.getDatabase("db1")).thenReturn(db);
+		when(db.runCommand(any(Bson.class))).thenReturn(new Document("ok", 1.0));
+		ServiceInstanceParams dense = new ServiceInstanceParams(mock(MongoConfig.class),
+				ServicePlan.DENSE.getMetadata());
+
+		service.createUser(dense, "db1", "user1", "secret");
+
+		ArgumentCaptor<Document> command = ArgumentCaptor.forClass(Document.class);
+		verify(db).runCommand(command.capture());
+		assertEquals("user1", command.getValue().get("createUser"));
+		assertEquals(Arrays.asList(new Document("role", "dbOwner").append("db", "db1")),
+				command.getValue().get("roles"));
+	}
+
+	@Test
+	public void databaseExistsListsOnlyTheDatabaseAskedFor() {
+		// a server before 3.6 ignores the filter, so other names may come back
+		when(admin.runCommand(any(Bson.class))).thenReturn(listed("other", "db1"));
+
+		assertTrue(service.databaseExists("db1"));
+
+		ArgumentCaptor<Document> command = ArgumentCaptor.forClass(Document.class);
+		verify(admin).runCommand(command.capture());
+		assertEquals(true, command.getValue().get("nameOnly"));
+		assertEquals(new Document("name", "db1"), command.getValue().get("filter"));
+	}
+
+	@Test
+	public void inventoryAnswersRepeatedChecksAndFollowsDrops() {
+		ReflectionTestUtils.setField(service, "inventoryEnabled", true);
+		when(admin.runCommand(any(Bson.class))).thenReturn(listed("db1"));
+
+		assertTrue(service.databaseExists("db1"));
+		assertTrue(service.databaseExists("db1"));
+		verify(admin, times(1)).runCommand(any(Bson.class));
+
+		service.deleteDatabase("db1");
+		assertFalse(service.databaseExists("db1"));
+		verify(admin, times(1)).runCommand(any(Bson.class));
+	}
+
+	@Test
+	public void disabledInventoryIsNotFilled() {
+		when(admin.runCommand(any(Bson.class))).thenReturn(listed("db1"));
+
+		service.deleteDatabase("db1");
+		ReflectionTestUtils.setField(service, "inventoryEnabled", true);
+
+		assertTrue(service.databaseExists("db1"));
+		verify(admin, times(1)).runCommand(any(Bson.class));
+	}
+
+	@Test
+	public void planCreatesTenantCollectionWithoutPlaceholderData() {
+		MongoDatabase db = mock(MongoDatabase.class);
+		when(client.getDatabase("db1")).thenReturn(db);
+		ServiceInstanceParams gold = new ServiceInstanceParams(mock(MongoConfig.class),
+				ServicePlan.GOLD.getMetadata());
+
+		assertEquals(db, service.createDatabase(gold, "db1"));
+
+		ArgumentCaptor<CreateCollectionOptions> options = ArgumentCaptor
+				.forClass(CreateCollectionOptions.class);
+		verify(db).createCollection(eq("data"), options.capture());
+		assertEquals(new Document("wiredTiger",
+				new Document("configString", "block_compressor=zlib")),
+				options.getValue().getStorageEngineOptions());
+		verify(db, never()).getCollection(anyString());
+		verify(admin, never()).runCommand(any(Bson.class));
+	}
+
+	@Test
+	public void batchRunsEveryCommandAndMergesGrantsToTheSameUser() throws Exception {
+		MongoDatabase db1 = mock(MongoDatabase.class);
+		MongoDatabase db2 = mock(MongoDatabase.class);
+		when(client.getDatabase("db1")).thenReturn(db1);
+		when(client.getDatabase("db2")).thenReturn(db2);
+		when(db1.runCommand(any(Bson.class))).thenReturn(new Document("ok", 1.0));
+		when(db2.runCommand(any(Bson.class))).thenReturn(new Document("ok", 0.0));
+		when(admin.runCommand(any(Bson.class))).thenReturn(new Document("ok", 1));
+		List<UserCommand> commands = Arrays.asList(
+				UserCommand.createUser("db1", "user1", "secret"),
+				UserCommand.deleteUser("db2", "user2"),
+				UserCommand.grantDbOwner("admin", "broker", "db1"),
+				UserCommand.grantDbOwner("admin", "broker", "db2"));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			service.runUserCommandsAsync(null, commands, executor).get();
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		assertTrue(commands.get(0).isSucceeded());
+		assertFalse(commands.get(1).isSucceeded());
+		assertTrue(commands.get(1).isDone());
+		assertTrue(commands.get(2).isSucceeded());
+		assertTrue(commands.get(3).isSucceeded());
+		ArgumentCaptor<Document> grant = ArgumentCaptor.forClass(Document.class);
+		verify(admin).runCommand(grant.capture());
+		assertEquals(2, grant.getValue().get("roles", List.class).size());
+	}
+
+	private static Document listed(String... names) {
+		List<Document> databases = new ArrayList<>();
+		for (String name : names) {
+			databases.add(new Document("name", name));
+		}
+		return new Document("databases", databases).append("ok", 1.0);
 	}
 
 	@Test
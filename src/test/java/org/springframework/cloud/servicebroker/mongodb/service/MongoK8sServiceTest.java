@@ -0,0 +1,176 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.fixture.FakeK8sApiServer;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import freemarker.template.Configuration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MongoK8sServiceTest {
+
+	private FakeK8sApiServer k8s;
+
+	private HttpComponentsAsyncClientHttpRequestFactory asyncRequestFactory;
+
+	private MongoK8sService service;
+
+	private ServiceInstanceParams params;
+
+	@Before
+	public void setup() throws Exception {
+		k8s = new FakeK8sApiServer();
+		k8s.start();
+		K8sApiLimiter limiter = new K8sApiLimiter();
+		ReflectionTestUtils.setField(limiter, "maxBackoff", 10L);
+		asyncRequestFactory = new HttpComponentsAsyncClientHttpRequestFactory();
+		service = new MongoK8sService(
+				new K8sManifestRenderer(new Configuration(Configuration.VERSION_2_3_23),
+						"json"),
+				new HttpComponentsClientHttpRequestFactory(), asyncRequestFactory,
+				limiter, new ProvisioningMetrics(new SimpleMeterRegistry()));
+		params = new ServiceInstanceParams("mongo", "mongodb-test", "token", k8s.getUrl(),
+				31000, 1, "128Mi", 3);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		asyncRequestFactory.destroy();
+		k8s.stop();
+	}
+
+	@Test
+	public void instanceIsCreatedRunningAndReleased() throws Exception {
+		assertTrue(service.createK8sObjects(params, false));
+		assertTrue(service.awaitReady(params, deadline()));
+		assertEquals(3, k8s.count("pods"));
+		assertEquals(3, k8s.count("persistentvolumeclaims"));
+
+		service.deleteK8sObjects(params);
+
+		assertEquals(0, k8s.count("statefulsets"));
+		assertEquals(0, k8s.count("pods"));
+		assertEquals(0, k8s.count("persistentvolumeclaims"));
+		assertEquals(0, k8s.count("services"));
+	}
+
+	@Test
+	public void readinessIsObservedThroughAWatch() throws Exception {
+		assertTrue(service.createK8sObjects(params, false));
+		long requests = k8s.getRequestCount();
+
+		assertTrue(service.awaitReady(params, deadline()));
+		assertEquals(1, k8s.getWatchCount());
+		assertEquals(requests + 1, k8s.getRequestCount());
+	}
+
+	@Test
+	public void unusableWatchFallsBackToPolling() throws Exception {
+		k8s.failNext("GET", "/pods", 403, 1);
+
+		assertTrue(service.createK8sObjects(params, false));
+		assertTrue(service.awaitReady(params, deadline()));
+		assertEquals(0, k8s.getWatchCount());
+	}
+
+	@Test
+	public void failedPodEndsTheWait() throws Exception {
+		k8s.failPods("mongodb-test");
+
+		assertTrue(service.createK8sObjects(params, false));
+		assertFalse(service.awaitReady(params, deadline()));
+	}
+
+	@Test
+	public void throttledCreationIsRetried() throws Exception {
+		k8s.failNext("POST", "/configmaps", 429, 2);
+
+		assertTrue(service.createK8sObjects(params, false));
+		assertEquals(1, k8s.count("configmaps"));
+	}
+
+	@Test
+	public void existingObjectsCountAsCreatedWhenResuming() throws Exception {
+		assertTrue(service.createK8sObjects(params, false));
+
+		assertFalse(service.createK8sObjects(params, false));
+		assertTrue(service.createK8sObjects(params, true));
+	}
+
+	@Test
+	public void failedCreationRemovesWhatItCreated() throws Exception {
+		k8s.failNext("POST", "/statefulsets", 422, 1);
+
+		assertFalse(service.createK8sObjects(params, false));
+		assertEquals(0, k8s.count("configmaps"));
+		assertEquals(0, k8s.count("services"));
+		assertEquals(0, k8s.count("storageclasses"));
+	}
+
+	@Test
+	public void failedCreationLeavesExistingObjects() throws Exception {
+		assertTrue(service.createK8sObjects(params, false));
+
+		assertFalse(service.createK8sObjects(params, false));
+		assertEquals(1, k8s.count("statefulsets"));
+		assertEquals(2, k8s.count("services"));
+		assertEquals(3, k8s.count("persistentvolumeclaims"));
+	}
+
+	@Test
+	public void createdObjectsAreDeletedByName() throws Exception {
+		assertTrue(service.createK8sObjects(params, false));
+
+		service.deleteCreatedK8sObjectsAsync(params).join();
+
+		assertEquals(0, k8s.count("statefulsets"));
+		assertEquals(0, k8s.count("persistentvolumeclaims"));
+		assertEquals(0, k8s.count("services"));
+	}
+
+	@Test
+	public void sharedClusterKeepsItsCredentialsInASecret() throws Exception {
+		MongoConfig mongoConfig = mock(MongoConfig.class);
+		when(mongoConfig.getNamespace()).thenReturn("mongo");
+		when(mongoConfig.getMasterUrl()).thenReturn(k8s.getUrl());
+		when(mongoConfig.getAccessToken()).thenReturn("token");
+		ServiceInstanceParams shared = new ServiceInstanceParams(mongoConfig,
+				CatalogConfig.ServicePlan.DENSE.getMetadata())
+				.forPool("dense", "mongodb-shared-1", 31000)
+				.withAuthorization("key", "admin", "password");
+
+		assertTrue(service.createK8sObjects(shared, false));
+		assertEquals(1, k8s.count("secrets"));
+
+		service.deleteK8sObjects(shared);
+
+		assertEquals(0, k8s.count("secrets"));
+	}
+
+	@Test
+	public void dedicatedClusterHasNoSecret() throws Exception {
+		assertTrue(service.createK8sObjects(params, false));
+
+		assertEquals(0, k8s.count("secrets"));
+	}
+
+	private static long deadline() {
+		return System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+	}
+
+}
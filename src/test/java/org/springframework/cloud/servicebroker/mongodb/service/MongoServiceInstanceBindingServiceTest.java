@@ -1,12 +1,9 @@
 package org.springframework.cloud.servicebroker.mongodb.service;
 
-import com.mongodb.MongoClient;
-import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceBindingDoesNotExistException;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceBindingExistsException;
@@ -14,13 +11,16 @@ import org.springframework.cloud.servicebroker.model.CreateServiceInstanceAppBin
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceBindingRequest;
 import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceBindingRequest;
 import org.springframework.cloud.servicebroker.model.ServiceBindingResource;
-import org.springframework.cloud.servicebroker.mongodb.IntegrationTestBase;
 import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
 import org.springframework.cloud.servicebroker.mongodb.fixture.ServiceInstanceBindingFixture;
 import org.springframework.cloud.servicebroker.mongodb.fixture.ServiceInstanceFixture;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceBinding;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
 import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceBindingRepository;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 import java.util.Collections;
 import java.util.Map;
@@ -35,10 +35,7 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-public class MongoServiceInstanceBindingServiceTest extends IntegrationTestBase {
-
-	@Autowired
-	private MongoClient client;
+public class MongoServiceInstanceBindingServiceTest {
 
 	@Mock
 	private MongoAdminService mongo;
@@ -46,6 +43,9 @@ public class MongoServiceInstanceBindingServiceTest extends IntegrationTestBase
 	@Mock
 	private MongoServiceInstanceBindingRepository repository;
 
+	@Mock
+	private MongoServiceInstanceRepository instanceRepository;
+
 	private MongoServiceInstanceBindingService service;
 
 	private ServiceInstance instance;
@@ -54,16 +54,13 @@ public class MongoServiceInstanceBindingServiceTest extends IntegrationTestBase
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
-		service = new MongoServiceInstanceBindingService(mongo, repository);
+		service = new MongoServiceInstanceBindingService(mongo, repository, instanceRepository,
+				new ProvisioningMetrics(new SimpleMeterRegistry()));
 		instance = ServiceInstanceFixture.getServiceInstance();
+		when(instanceRepository.findOne(any(String.class))).thenReturn(instance);
 		instanceBinding = ServiceInstanceBindingFixture.getServiceInstanceBinding();
 	}
 
-	@After
-	public void cleanup() {
-		client.dropDatabase(DB_NAME);
-	}
-
 	// TODO Test if user already exists
 
 	@Test
@@ -94,7 +91,7 @@ public class MongoServiceInstanceBindingServiceTest extends IntegrationTestBase
 	@Test(expected = ServiceBrokerException.class)
 	public void serviceInstanceBindingCreationFailsWithUserCreationFailure() throws Exception {
 		when(repository.findOne(any(String.class))).thenReturn(null);
-		doThrow(new MongoServiceException("fail")).when(mongo).createUser(any(String.class), any(String.class), any(String.class));
+		doThrow(new MongoServiceException("fail")).when(mongo).createUser(any(ServiceInstanceParams.class), any(String.class), any(String.class), any(String.class));
 
 		service.createServiceInstanceBinding(buildCreateRequest());
 	}
@@ -114,7 +111,19 @@ public class MongoServiceInstanceBindingServiceTest extends IntegrationTestBase
 
 		service.deleteServiceInstanceBinding(buildDeleteRequest());
 
-		verify(mongo).deleteUser(binding.getServiceInstanceId(), binding.getId());
+		verify(mongo).deleteUser(instance.getInstanceParams(), binding.getServiceInstanceId(), binding.getId());
+		verify(repository).delete(binding.getId());
+	}
+
+	@Test
+	public void bindingOfARemovedInstanceIsDeleted() throws Exception {
+		ServiceInstanceBinding binding = ServiceInstanceBindingFixture.getServiceInstanceBinding();
+		when(repository.findOne(any(String.class))).thenReturn(binding);
+		when(instanceRepository.findOne(any(String.class))).thenReturn(null);
+
+		service.deleteServiceInstanceBinding(buildDeleteRequest());
+
+		verify(mongo, never()).deleteUser(any(ServiceInstanceParams.class), any(String.class), any(String.class));
 		verify(repository).delete(binding.getId());
 	}
 
@@ -126,7 +135,7 @@ public class MongoServiceInstanceBindingServiceTest extends IntegrationTestBase
 
 		service.deleteServiceInstanceBinding(buildDeleteRequest());
 
-		verify(mongo, never()).deleteUser(binding.getServiceInstanceId(), binding.getId());
+		verify(mongo, never()).deleteUser(any(ServiceInstanceParams.class), any(String.class), any(String.class));
 		verify(repository, never()).delete(binding.getId());
 	}
 
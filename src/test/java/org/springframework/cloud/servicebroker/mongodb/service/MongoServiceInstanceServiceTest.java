@@ -1,101 +1,192 @@
 package org.springframework.cloud.servicebroker.mongodb.service;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cloud.servicebroker.exception.ServiceBrokerException;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceDoesNotExistException;
 import org.springframework.cloud.servicebroker.exception.ServiceInstanceExistsException;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceRequest;
 import org.springframework.cloud.servicebroker.model.CreateServiceInstanceResponse;
 import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceRequest;
 import org.springframework.cloud.servicebroker.model.DeleteServiceInstanceResponse;
+import org.springframework.cloud.servicebroker.model.OperationState;
 import org.springframework.cloud.servicebroker.model.ServiceDefinition;
-import org.springframework.cloud.servicebroker.mongodb.IntegrationTestBase;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
 import org.springframework.cloud.servicebroker.mongodb.fixture.ServiceInstanceFixture;
 import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Step;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
 import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.test.util.ReflectionTestUtils;
 
-import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
 
-public class MongoServiceInstanceServiceTest extends IntegrationTestBase {
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MongoServiceInstanceServiceTest {
 
 	private static final String SVC_DEF_ID = "serviceDefinitionId";
 	private static final String SVC_PLAN_ID = "servicePlanId";
+	private static final long TIMEOUT = 5000;
 
-	@Autowired
-	private MongoClient client;
-	
 	@Mock
 	private MongoAdminService mongo;
 
 	@Mock
 	private MongoServiceInstanceRepository repository;
-	
+
+	@Mock
+	private MongoK8sService k8sService;
+
+	@Mock
+	private MongoConfig config;
+
+	@Mock
+	private ServiceInstanceOperationStore operationStatus;
+
+	@Mock
+	private WarmPool warmPool;
+
+	@Mock
+	private SharedClusterPool sharedClusters;
+
+	@Mock
+	private NodePortAllocator nodePorts;
+
 	@Mock
 	private MongoDatabase db;
 
 	@Mock
 	private ServiceDefinition serviceDefinition;
-	
+
+	private ProvisioningScheduler scheduler;
+
 	private MongoServiceInstanceService service;
-	
+
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
-		
-		service = new MongoServiceInstanceService(mongo, repository);
+		scheduler = new ProvisioningScheduler();
+		ReflectionTestUtils.setField(scheduler, "threads", 2);
+		scheduler.start();
+		when(config.getAccessToken()).thenReturn("token");
+		when(config.getMasterUrl()).thenReturn("http://localhost");
+		when(config.getNamespace()).thenReturn("mongo");
+		when(config.getName()).thenReturn("mongo-od");
+		when(operationStatus.start(any(ServiceInstanceOperation.class)))
+				.thenAnswer(invocation -> invocation.getArguments()[0]);
+		when(nodePorts.claim(anyInt())).thenReturn(true);
+		when(k8sService.createK8sObjectsAsync(any(ServiceInstanceParams.class),
+				anyBoolean())).thenReturn(CompletableFuture.completedFuture(true));
+		when(k8sService.awaitReadyAsync(any(ServiceInstanceParams.class), anyLong()))
+				.thenReturn(CompletableFuture.completedFuture(true));
+		when(k8sService.deleteK8sObjectsAsync(any(ServiceInstanceParams.class)))
+				.thenReturn(CompletableFuture.completedFuture(null));
+		when(k8sService.deleteCreatedK8sObjectsAsync(any(ServiceInstanceParams.class)))
+				.thenReturn(CompletableFuture.completedFuture(null));
+		when(mongo.awaitReplicaSetAsync(any(ServiceInstanceParams.class), anyLong(),
+				any(Executor.class))).thenReturn(CompletableFuture.completedFuture(true));
+
+		service = new MongoServiceInstanceService(mongo, repository, k8sService, config,
+				scheduler, operationStatus, warmPool, sharedClusters, nodePorts,
+				new ProvisioningMetrics(new SimpleMeterRegistry()), 64);
 	}
-	
+
 	@After
 	public void cleanup() {
-		client.dropDatabase(DB_NAME);
+		scheduler.shutdown();
 	}
-	
+
 	@Test
 	public void newServiceInstanceCreatedSuccessfully() throws Exception {
 		when(repository.findOne(any(String.class))).thenReturn(null);
-		when(mongo.databaseExists(any(String.class))).thenReturn(false);
-		when(mongo.createDatabase(any(String.class))).thenReturn(db);
+		when(mongo.databaseExists(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(false);
+		when(mongo.createDatabase(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(db);
 
 		CreateServiceInstanceResponse response = service.createServiceInstance(buildCreateRequest());
-		
+
 		assertNotNull(response);
 		assertNull(response.getDashboardUrl());
-		assertFalse(response.isAsync());
+		assertTrue(response.isAsync());
 
-		verify(repository).save(isA(ServiceInstance.class));
+		verify(repository, timeout(TIMEOUT)).save(isA(ServiceInstance.class));
+		verify(operationStatus, timeout(TIMEOUT)).put(argThat(inState(OperationState.SUCCEEDED)));
 	}
 
 	@Test
 	public void newServiceInstanceCreatedSuccessfullyWithExistingDB() throws Exception {
 
 		when(repository.findOne(any(String.class))).thenReturn(null);
-		when(mongo.databaseExists(any(String.class))).thenReturn(true);
-		when(mongo.createDatabase(any(String.class))).thenReturn(db);
+		when(mongo.databaseExists(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(true);
+		when(mongo.createDatabase(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(db);
 
 		CreateServiceInstanceRequest request = buildCreateRequest();
 		CreateServiceInstanceResponse response = service.createServiceInstance(request);
 
 		assertNotNull(response);
 		assertNull(response.getDashboardUrl());
-		assertFalse(response.isAsync());
+		assertTrue(response.isAsync());
 
-		verify(mongo).deleteDatabase(request.getServiceInstanceId());
-		verify(repository).save(isA(ServiceInstance.class));
+		verify(repository, timeout(TIMEOUT)).save(isA(ServiceInstance.class));
+		verify(mongo).deleteDatabase(any(ServiceInstanceParams.class),
+				eq(request.getServiceInstanceId()));
+	}
+
+	@Test
+	public void warmClusterClaimIsCheckpointedAtOnce() throws Exception {
+		when(repository.findOne(any(String.class))).thenReturn(null);
+		when(mongo.createDatabase(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(db);
+		when(warmPool.claim(any(String.class), any(ServiceInstanceParams.class),
+				any(String.class))).thenAnswer(invocation -> ((ServiceInstanceParams)
+						invocation.getArguments()[1]).withCluster("mongo-od-warm", 31500));
+
+		service.createServiceInstance(buildCreateRequest());
+
+		verify(operationStatus, timeout(TIMEOUT)).putNow(argThat(
+				new ArgumentMatcher<ServiceInstanceOperation>() {
+
+					@Override
+					public boolean matches(Object argument) {
+						ServiceInstanceOperation operation =
+								(ServiceInstanceOperation) argument;
+						return operation.getStep() == Step.POD_RUNNING
+								&& "mongo-od-warm".equals(operation.getInstance()
+										.getInstanceParams().getName());
+					}
+
+				}));
+		verify(operationStatus, timeout(TIMEOUT)).put(argThat(inState(OperationState.SUCCEEDED)));
+		verify(k8sService, never()).createK8sObjectsAsync(any(ServiceInstanceParams.class),
+				anyBoolean());
 	}
 
 	@Test(expected=ServiceInstanceExistsException.class)
@@ -105,13 +196,20 @@ public class MongoServiceInstanceServiceTest extends IntegrationTestBase {
 		service.createServiceInstance(buildCreateRequest());
 	}
 
-	@Test(expected=ServiceBrokerException.class)
+	@Test
 	public void serviceInstanceCreationFailsWithDBCreationFailure() throws Exception {
 		when(repository.findOne(any(String.class))).thenReturn(null);
-		when(mongo.databaseExists(any(String.class))).thenReturn(false);
-		when(mongo.createDatabase(any(String.class))).thenReturn(null);
+		when(mongo.databaseExists(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(false);
+		when(mongo.createDatabase(any(ServiceInstanceParams.class), any(String.class)))
+				.thenReturn(null);
 
 		service.createServiceInstance(buildCreateRequest());
+
+		// the failure is reported by the operation, which is rolled back
+		verify(operationStatus, timeout(TIMEOUT)).put(argThat(inState(OperationState.FAILED)));
+		verify(k8sService).deleteCreatedK8sObjectsAsync(any(ServiceInstanceParams.class));
+		verify(repository, never()).save(isA(ServiceInstance.class));
 	}
 
 	@Test
@@ -130,34 +228,40 @@ public class MongoServiceInstanceServiceTest extends IntegrationTestBase {
 		DeleteServiceInstanceResponse response = service.deleteServiceInstance(buildDeleteRequest());
 
 		assertNotNull(response);
-		assertFalse(response.isAsync());
+		assertTrue(response.isAsync());
 
-		verify(mongo).deleteDatabase(id);
-		verify(repository).delete(id);
+		verify(repository, timeout(TIMEOUT)).delete(id);
+		verify(mongo).deleteDatabase(instance.getInstanceParams(), id);
+		verify(k8sService, timeout(TIMEOUT)).deleteK8sObjectsAsync(instance.getInstanceParams());
 	}
 
 	@Test(expected = ServiceInstanceDoesNotExistException.class)
 	public void unknownServiceInstanceDeleteCallSuccessful() throws Exception {
 		when(repository.findOne(any(String.class))).thenReturn(null);
 
-		DeleteServiceInstanceRequest request = buildDeleteRequest();
+		service.deleteServiceInstance(buildDeleteRequest());
+	}
 
-		DeleteServiceInstanceResponse response = service.deleteServiceInstance(request);
+	private static ArgumentMatcher<ServiceInstanceOperation> inState(OperationState state) {
+		return new ArgumentMatcher<ServiceInstanceOperation>() {
 
-		assertNotNull(response);
-		assertFalse(response.isAsync());
+			@Override
+			public boolean matches(Object operation) {
+				return ((ServiceInstanceOperation) operation).getState() == state;
+			}
 
-		verify(mongo).deleteDatabase(request.getServiceInstanceId());
-		verify(repository).delete(request.getServiceInstanceId());
+		};
 	}
 
 	private CreateServiceInstanceRequest buildCreateRequest() {
-		return new CreateServiceInstanceRequest(SVC_DEF_ID, SVC_PLAN_ID, "organizationGuid", "spaceGuid", null)
-				.withServiceInstanceId(ServiceInstanceFixture.getServiceInstance().getServiceInstanceId());
+		return new CreateServiceInstanceRequest(SVC_DEF_ID, SVC_PLAN_ID, "organizationGuid", "spaceGuid",
+				Collections.emptyMap())
+				.withServiceInstanceId(ServiceInstanceFixture.getServiceInstance().getServiceInstanceId())
+				.withServiceDefinition(serviceDefinition);
 	}
 
 	private DeleteServiceInstanceRequest buildDeleteRequest() {
 		return new DeleteServiceInstanceRequest(ServiceInstanceFixture.getServiceInstance().getServiceInstanceId(),
 				SVC_DEF_ID, SVC_PLAN_ID, serviceDefinition);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.NodePortRange;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+
+public class NodePortAllocatorTest {
+
+	private final NodePortRange range = new NodePortRange(30000, 30127);
+
+	private final Set<Integer> servicePorts = new HashSet<>();
+
+	private NodePortAllocator nodePorts;
+
+	@Before
+	public void setup() throws Exception {
+		MongoOperations mongoOperations = mock(MongoOperations.class);
+		when(mongoOperations.findById(range.getId(), NodePortRange.class))
+				.thenReturn(range);
+		when(mongoOperations.updateFirst(any(Query.class), any(Update.class),
+				eq(NodePortRange.class))).thenAnswer(invocation -> {
+					// sets words.<index>; no other replica races these updates
+					DBObject set = (DBObject) ((Update) invocation.getArguments()[1])
+							.getUpdateObject().get("$set");
+					String field = set.keySet().iterator().next();
+					int index = Integer.parseInt(field.substring("words.".length()));
+					range.getWords().set(index, (Long) set.get(field));
+					return new WriteResult(1, true, null);
+				});
+		when(mongoOperations.find(any(Query.class), eq(ServiceInstanceOperation.class)))
+				.thenReturn(Collections.emptyList());
+		MongoK8sService k8sService = mock(MongoK8sService.class);
+		when(k8sService.listNodePorts(any(ServiceInstanceParams.class)))
+				.thenReturn(servicePorts);
+		MongoServiceInstanceRepository instanceRepository = mock(
+				MongoServiceInstanceRepository.class);
+		when(instanceRepository.findAll()).thenReturn(Collections.emptyList());
+		nodePorts = new NodePortAllocator(mongoOperations, k8sService, instanceRepository,
+				mock(MongoConfig.class));
+		ReflectionTestUtils.setField(nodePorts, "rangeEnd", 30127);
+		nodePorts.initialize();
+	}
+
+	@After
+	public void cleanup() {
+		nodePorts.shutdown();
+	}
+
+	@Test
+	public void portWithoutServiceIsKeptForOneReconciliation() {
+		int port = nodePorts.allocate();
+
+		nodePorts.reconcile();
+		assertFalse(nodePorts.claim(port));
+
+		nodePorts.reconcile();
+		assertTrue(nodePorts.claim(port));
+	}
+
+	@Test
+	public void portWhoseServiceWasCreatedMeanwhileIsKept() {
+		int port = nodePorts.allocate();
+
+		nodePorts.reconcile();
+		servicePorts.add(port);
+		nodePorts.reconcile();
+
+		assertFalse(nodePorts.claim(port));
+	}
+
+	@Test
+	public void portInUseIsMarked() {
+		servicePorts.add(30070);
+
+		nodePorts.reconcile();
+
+		assertFalse(nodePorts.claim(30070));
+	}
+
+}
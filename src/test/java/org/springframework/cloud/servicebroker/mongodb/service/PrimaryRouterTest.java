@@ -0,0 +1,139 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.fixture.FakeK8sApiServer;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+
+import freemarker.template.Configuration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PrimaryRouterTest {
+
+	private static final ServerAddress ADDRESS = new ServerAddress("localhost", 31000);
+
+	private FakeK8sApiServer k8s;
+
+	private HttpComponentsAsyncClientHttpRequestFactory asyncRequestFactory;
+
+	private MongoK8sService k8sService;
+
+	private MongoClientCache clients;
+
+	private PrimaryRouter router;
+
+	private ServiceInstanceParams params;
+
+	@Before
+	public void setup() throws Exception {
+		k8s = new FakeK8sApiServer();
+		k8s.start();
+		K8sApiLimiter limiter = new K8sApiLimiter();
+		ReflectionTestUtils.setField(limiter, "maxBackoff", 10L);
+		asyncRequestFactory = new HttpComponentsAsyncClientHttpRequestFactory();
+		k8sService = new MongoK8sService(
+				new K8sManifestRenderer(new Configuration(Configuration.VERSION_2_3_23),
+						"json"),
+				new HttpComponentsClientHttpRequestFactory(), asyncRequestFactory,
+				limiter, new ProvisioningMetrics(new SimpleMeterRegistry()));
+		clients = mock(MongoClientCache.class);
+		when(clients.addressOf(any(ServiceInstanceParams.class))).thenReturn(ADDRESS);
+		router = new PrimaryRouter(k8sService, clients, mock(MongoConfig.class));
+		params = new ServiceInstanceParams("mongo", "mongodb-test", "token", k8s.getUrl(),
+				31000, 1, "128Mi", 3);
+		assertTrue(k8sService.createK8sObjects(params, false));
+		assertTrue(k8sService.awaitReady(params,
+				System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		asyncRequestFactory.destroy();
+		k8s.stop();
+	}
+
+	@Test
+	public void unroutedClusterIsRoutedToAMemberFirst() throws Exception {
+		assertFalse(router.route(params));
+
+		assertEquals(Collections.singletonList("mongodb-test-0"), routedPods());
+		verify(clients, never()).execute(any(ServerAddress.class), isMaster());
+	}
+
+	@Test
+	public void labelFollowsThePrimary() throws Exception {
+		router.route(params);
+		when(clients.execute(eq(ADDRESS), isMaster())).thenReturn(new Document("primary",
+				"mongodb-test-2.mongodb-test-service.mongo.svc.cluster.local:27017"));
+
+		assertTrue(router.route(params));
+		assertEquals(Collections.singletonList("mongodb-test-2"), routedPods());
+		// connections made before still go to the former pod
+		verify(clients, times(2)).reset(ADDRESS);
+
+		assertTrue(router.route(params));
+		verify(clients, times(2)).reset(ADDRESS);
+	}
+
+	@Test
+	public void unreachableMemberHandsTheLabelOn() throws Exception {
+		router.route(params);
+		when(clients.execute(eq(ADDRESS), isMaster()))
+				.thenThrow(new MongoTimeoutException("no server reachable"));
+
+		assertFalse(router.route(params));
+		assertEquals(Collections.singletonList("mongodb-test-1"), routedPods());
+	}
+
+	@Test
+	public void singleMemberNeedsNoRouting() {
+		ServiceInstanceParams single = new ServiceInstanceParams("mongo", "mongodb-single",
+				"token", k8s.getUrl(), 31001, 1, "128Mi", 1);
+
+		assertTrue(router.route(single));
+		verify(clients, never()).reset(any(ServerAddress.class));
+	}
+
+	private List<String> routedPods() throws Exception {
+		List<String> names = new ArrayList<>();
+		for (JsonNode pod : k8sService.listPods(params,
+				Collections.singletonMap(PrimaryRouter.ROLE_LABEL, PrimaryRouter.PRIMARY))) {
+			names.add(pod.path("metadata").path("name").asText());
+		}
+		return names;
+	}
+
+	private static Function<MongoClient, Document> isMaster() {
+		return Matchers.<Function<MongoClient, Document>> any();
+	}
+
+}
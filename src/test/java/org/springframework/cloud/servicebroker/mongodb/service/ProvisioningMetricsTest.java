@@ -0,0 +1,68 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.mongodb.exception.MongoServiceException;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ProvisioningMetricsTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	private final ProvisioningMetrics metrics = new ProvisioningMetrics(registry);
+
+	@Test
+	public void stepsAreTaggedWithPlanAndOutcome() {
+		assertTrue(metrics.step("database_exists", "mongodbgold", () -> true));
+		try {
+			metrics.step("create_database", "mongodbgold", () -> {
+				throw new MongoServiceException("unable to create mongo database instance");
+			});
+			fail();
+		}
+		catch (MongoServiceException ex) {
+			// expected
+		}
+
+		assertEquals(1, registry.get("mongodb.provisioning.step")
+				.tags("step", "database_exists", "plan", "mongodbgold", "outcome", "success")
+				.timer().count());
+		assertEquals(1, registry.get("mongodb.provisioning.step")
+				.tags("step", "create_database", "plan", "mongodbgold", "outcome", "failure")
+				.timer().count());
+	}
+
+	@Test
+	public void asyncStepsAreTimedUntilTheyComplete() {
+		CompletableFuture<Boolean> pods = new CompletableFuture<>();
+		CompletableFuture<Boolean> timed = metrics.stepAsync("pods_ready", null,
+				() -> pods);
+
+		assertEquals(0, registry.find("mongodb.provisioning.step").timers().size());
+		pods.completeExceptionally(new MongoServiceException("mongo pods are not running"));
+
+		assertTrue(timed.isCompletedExceptionally());
+		assertEquals(1, registry.get("mongodb.provisioning.step")
+				.tags("step", "pods_ready", "plan", "none", "outcome", "failure").timer()
+				.count());
+	}
+
+	@Test
+	public void operationsAreTaggedWithType() {
+		metrics.operation(Type.DELETE, "mongodbdefault", OperationState.SUCCEEDED,
+				System.nanoTime());
+
+		assertEquals(1, registry.get("mongodb.provisioning.operation")
+				.tags("type", "delete", "plan", "mongodbdefault", "outcome", "success")
+				.timer().count());
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.mongodb.exception.ServiceBrokerOverloadedException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ProvisioningSchedulerTest {
+
+	private ProvisioningScheduler scheduler;
+
+	@Before
+	public void setup() {
+		scheduler = new ProvisioningScheduler();
+		ReflectionTestUtils.setField(scheduler, "threads", 1);
+		ReflectionTestUtils.setField(scheduler, "queueCapacity", 4);
+		ReflectionTestUtils.setField(scheduler, "tenantCapacity", 3);
+		scheduler.start();
+	}
+
+	@After
+	public void cleanup() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void tenantsAreServedRoundRobin() throws Exception {
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(4);
+		List<String> order = new CopyOnWriteArrayList<>();
+		scheduler.execute("busy", () -> {
+			running.countDown();
+			await(blocked);
+		});
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+		for (String name : Arrays.asList("a1", "a2", "a3")) {
+			scheduler.admit("org-a/space").execute(() -> record(order, name, done));
+		}
+		scheduler.admit("org-b/space").execute(() -> record(order, "b1", done));
+		blocked.countDown();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), order);
+	}
+
+	@Test(expected = ServiceBrokerOverloadedException.class)
+	public void admissionIsRejectedWhenTenantShareIsFull() {
+		scheduler.admit("org-a/space");
+		scheduler.admit("org-a/space");
+		scheduler.admit("org-a/space");
+		scheduler.admit("org-a/space");
+	}
+
+	@Test
+	public void cancelledAdmissionFreesItsSlot() {
+		for (int i = 0; i < 10; i++) {
+			scheduler.admit("org-a/space").cancel();
+		}
+		assertEquals(0, scheduler.getQueueDepth());
+	}
+
+	@Test
+	public void inFlightOperationsAreLimited() throws Exception {
+		ReflectionTestUtils.setField(scheduler, "maxInFlight", 1);
+		CompletableFuture<Void> first = new CompletableFuture<>();
+		CountDownLatch second = new CountDownLatch(1);
+		scheduler.executeAsync("org-a/space", () -> first);
+		scheduler.execute("org-b/space", second::countDown);
+
+		assertFalse(second.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, scheduler.getActive());
+		first.complete(null);
+		assertTrue(second.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void continuationsRunWhileInFlightIsFull() throws Exception {
+		ReflectionTestUtils.setField(scheduler, "maxInFlight", 1);
+		CountDownLatch continued = new CountDownLatch(1);
+		scheduler.executeAsync("org-a/space", () -> new CompletableFuture<Void>());
+		scheduler.continuations().execute(continued::countDown);
+
+		assertTrue(continued.await(5, TimeUnit.SECONDS));
+	}
+
+	private static void record(List<String> order, String name, CountDownLatch done) {
+		order.add(name);
+		done.countDown();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
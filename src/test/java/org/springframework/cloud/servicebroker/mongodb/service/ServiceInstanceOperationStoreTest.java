@@ -0,0 +1,130 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.mongodb.exception.LeaseLostException;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Step;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceOperationRepository;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.mongodb.WriteResult;
+
+public class ServiceInstanceOperationStoreTest {
+
+	private MongoOperations mongoOperations;
+
+	private ServiceInstanceOperationStore store;
+
+	@Before
+	public void setup() {
+		mongoOperations = mock(MongoOperations.class);
+		store = new ServiceInstanceOperationStore(
+				mock(MongoServiceInstanceOperationRepository.class), mongoOperations);
+		ReflectionTestUtils.setField(store, "replicaId", "broker-0");
+		ReflectionTestUtils.setField(store, "flushInterval", 60000L);
+		store.initialize();
+	}
+
+	@After
+	public void cleanup() {
+		store.shutdown();
+	}
+
+	@Test
+	public void claimSkipsOperationsStartedSinceBoot() {
+		ServiceInstanceOperation started = store.start(operation("instance-1"));
+
+		store.claimExpired();
+
+		ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+		verify(mongoOperations).find(query.capture(), eq(ServiceInstanceOperation.class));
+		String criteria = query.getValue().getQueryObject().toString();
+		// own leases are only claimed if they are from before the restart
+		assertTrue(criteria, criteria.contains("\"owner\" : \"broker-0\""));
+		assertTrue(criteria, criteria.contains("\"leaseEpoch\" : { \"$ne\""));
+		assertEquals(started.getLeaseEpoch(),
+				ReflectionTestUtils.getField(store, "bootEpoch"));
+	}
+
+	@Test(expected = LeaseLostException.class)
+	public void lostLeaseStopsTheOperation() {
+		ServiceInstanceOperation started = store.start(operation("instance-1"));
+		when(mongoOperations.updateMulti(any(Query.class), any(Update.class),
+				eq(ServiceInstanceOperation.class)))
+				.thenReturn(new WriteResult(0, true, null));
+		when(mongoOperations.find(any(Query.class), eq(ServiceInstanceOperation.class)))
+				.thenReturn(Collections.emptyList());
+
+		ReflectionTestUtils.invokeMethod(store, "renewLeases");
+
+		store.put(started.withStep(Step.PORT_ALLOCATED));
+	}
+
+	@Test(expected = LeaseLostException.class)
+	public void refusedCheckpointStopsTheOperation() {
+		ServiceInstanceOperation started = store.start(operation("instance-1"));
+		when(mongoOperations.updateFirst(any(Query.class), any(Update.class),
+				eq(ServiceInstanceOperation.class)))
+				.thenReturn(new WriteResult(0, true, null));
+
+		store.putNow(started.withStep(Step.PORT_ALLOCATED));
+	}
+
+	@Test
+	public void finishedOperationCanBeFollowedBeforeItIsFlushed() {
+		ServiceInstanceOperation created = store.start(operation("instance-1"));
+		when(mongoOperations.bulkOps(BulkMode.UNORDERED, ServiceInstanceOperation.class))
+				.thenReturn(mock(BulkOperations.class));
+		store.put(created.withState(OperationState.SUCCEEDED, "Created"));
+		// until the next flush, the record shows the create in progress under this
+		// replica's current lease, which only a claim of that lease matches
+		doAnswer(invocation -> {
+			String criteria = ((Query) invocation.getArguments()[0]).getQueryObject()
+					.toString();
+			if (!criteria.contains("\"leaseEpoch\" : { \"$date\"")) {
+				throw new DuplicateKeyException("E11000 duplicate key error");
+			}
+			return null;
+		}).when(mongoOperations).upsert(any(Query.class), any(Update.class),
+				eq(ServiceInstanceOperation.class));
+
+		store.start(operation("instance-1", Type.DELETE));
+
+		assertEquals(Type.DELETE, store.get("instance-1").getType());
+		assertEquals(OperationState.IN_PROGRESS, store.get("instance-1").getState());
+	}
+
+	private static ServiceInstanceOperation operation(String instanceId) {
+		return operation(instanceId, Type.CREATE);
+	}
+
+	private static ServiceInstanceOperation operation(String instanceId, Type type) {
+		return new ServiceInstanceOperation(
+				new ServiceInstance(instanceId, "mongodb", "D", "org", "space", null, null),
+				type, OperationState.IN_PROGRESS, "Creating service instance");
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.model.Plan;
+import org.springframework.cloud.servicebroker.mongodb.config.CatalogConfig;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SharedClusterPoolTest {
+
+	private MongoK8sService k8sService;
+
+	private MongoConfig config;
+
+	private MongoAdminService mongo;
+
+	private SharedClusterPool pool;
+
+	@Before
+	public void setup() throws Exception {
+		k8sService = mock(MongoK8sService.class);
+		config = mock(MongoConfig.class);
+		mongo = mock(MongoAdminService.class);
+		when(k8sService.listStatefulSets(any(ServiceInstanceParams.class),
+				anyMapOf(String.class, String.class)))
+				.thenReturn(Collections.singletonList(new ObjectMapper()
+						.readTree("{\"metadata\":{\"name\":\"mongo-shared-1\"}}")));
+		when(k8sService.getNodePort(any(ServiceInstanceParams.class))).thenReturn(31000);
+		when(mongo.listDatabases(any(ServiceInstanceParams.class))).thenReturn(
+				new Document("databases", Collections.emptyList()).append("totalSize", 0));
+		when(mongo.serverStatus(any(ServiceInstanceParams.class))).thenReturn(
+				new Document("connections",
+						new Document("current", 1).append("available", 99)));
+		pool = new SharedClusterPool(k8sService, config, mock(NodePortAllocator.class),
+				mongo);
+	}
+
+	@After
+	public void cleanup() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void advertisedPlansCanBeProvisionedWithDefaults() {
+		pool.initialize();
+
+		List<CatalogConfig.ServicePlan> plans = advertisedPlans(0);
+		assertFalse(plans.contains(CatalogConfig.ServicePlan.DENSE));
+		for (CatalogConfig.ServicePlan plan : plans) {
+			ServiceInstanceParams params = new ServiceInstanceParams(config,
+					plan.getMetadata());
+			if (params.isShared()) {
+				pool.place(params, "instance-" + plan.getId());
+			}
+		}
+	}
+
+	@Test
+	public void sharedPlanIsAdvertisedAndPlacedOnceClustersAreKept() {
+		ReflectionTestUtils.setField(pool, "size", 1);
+		pool.initialize();
+		pool.refill();
+
+		List<CatalogConfig.ServicePlan> plans = advertisedPlans(1);
+		assertTrue(plans.contains(CatalogConfig.ServicePlan.DENSE));
+		ServiceInstanceParams placed = pool.place(new ServiceInstanceParams(config,
+				CatalogConfig.ServicePlan.DENSE.getMetadata()), "instance-1");
+		assertEquals("mongo-shared-1", placed.getName());
+		assertEquals(31000, placed.getExposePort());
+	}
+
+	private static List<CatalogConfig.ServicePlan> advertisedPlans(int sharedClusters) {
+		CatalogConfig catalog = new CatalogConfig();
+		ReflectionTestUtils.setField(catalog, "serviceId", "mongodb");
+		ReflectionTestUtils.setField(catalog, "sharedClusters", sharedClusters);
+		List<String> ids = catalog.catalog().getServiceDefinitions().get(0).getPlans()
+				.stream().map(Plan::getId).collect(Collectors.toList());
+		return Arrays.stream(CatalogConfig.ServicePlan.values())
+				.filter(plan -> ids.contains("mongodb" + plan.getId()))
+				.collect(Collectors.toList());
+	}
+
+}
@@ -0,0 +1,45 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.cloud.servicebroker.mongodb.service.TenantPlacement.Load;
+
+public class TenantPlacementTest {
+
+	private static final long GI = 1L << 30;
+
+	private static final long TENANT = TenantPlacement.bytes("256Mi");
+
+	private final TenantPlacement placement = new TenantPlacement(0.8, 100);
+
+	@Test
+	public void choosesLeastLoadedClusterTheTenantFitsOn() {
+		Load busy = new Load("busy", 10 * GI, 6 * GI, 10, 10, 990);
+		Load reserved = new Load("reserved", 10 * GI, GI, 20, 10, 990);
+		Load quiet = new Load("quiet", 10 * GI, 2 * GI, 10, 10, 990);
+
+		assertEquals("quiet", placement.choose(Arrays.asList(busy, reserved, quiet),
+				TENANT).getCluster());
+	}
+
+	@Test
+	public void refusesWhenNoClusterHasRoom() {
+		Load full = new Load("full", 10 * GI, 8 * GI - TENANT + 1, 10, 10, 990);
+		Load crowded = new Load("crowded", 10 * GI, GI, 100, 10, 990);
+		Load connected = new Load("connected", 10 * GI, GI, 10, 800, 200);
+
+		assertNull(placement.choose(Arrays.asList(full, crowded, connected), TENANT));
+	}
+
+	@Test
+	public void parsesStorageQuantities() {
+		assertEquals(20 * GI, TenantPlacement.bytes("20Gi"));
+		assertEquals(2000000L, TenantPlacement.bytes("2M"));
+		assertEquals(512L, TenantPlacement.bytes("512"));
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.springframework.cloud.servicebroker.mongodb.service;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.springframework.cloud.servicebroker.model.OperationState;
+import org.springframework.cloud.servicebroker.mongodb.config.MongoConfig;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstance;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceOperation.Type;
+import org.springframework.cloud.servicebroker.mongodb.model.ServiceInstanceParams;
+import org.springframework.cloud.servicebroker.mongodb.repository.MongoServiceInstanceRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class WarmPoolTest {
+
+	private static final String CLAIMED = "mongo-od-claimed";
+
+	private MongoK8sService k8sService;
+
+	private NodePortAllocator nodePorts;
+
+	private MongoServiceInstanceRepository instanceRepository;
+
+	private ServiceInstanceOperationStore operationStore;
+
+	private WarmPool pool;
+
+	@Before
+	public void setup() throws Exception {
+		k8sService = mock(MongoK8sService.class);
+		nodePorts = mock(NodePortAllocator.class);
+		instanceRepository = mock(MongoServiceInstanceRepository.class);
+		operationStore = mock(ServiceInstanceOperationStore.class);
+		MongoConfig config = mock(MongoConfig.class);
+		when(config.getName()).thenReturn("mongo-od");
+		when(config.getReadyTimeout()).thenReturn(120L);
+		when(k8sService.listStatefulSets(any(ServiceInstanceParams.class),
+				anyMapOf(String.class, String.class)))
+				.thenReturn(Collections.emptyList());
+		pool = new WarmPool(k8sService, config, nodePorts, mock(MongoAdminService.class),
+				instanceRepository, operationStore);
+		ReflectionTestUtils.setField(pool, "size", 1);
+		ReflectionTestUtils.setField(pool, "plans", "gold");
+		ReflectionTestUtils.setField(pool, "refillInterval", 3600L);
+	}
+
+	@After
+	public void cleanup() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void claimNobodyRecordedIsRemoved() throws Exception {
+		claimed(Instant.now().minusSeconds(600));
+		pool.initialize();
+
+		pool.refill();
+
+		verify(k8sService, atLeastOnce()).deleteK8sObjects(argThat(named(CLAIMED)));
+		verify(nodePorts, atLeastOnce()).release(31500);
+	}
+
+	@Test
+	public void claimRecordedByTheOperationIsKept() throws Exception {
+		claimed(Instant.now().minusSeconds(600));
+		ServiceInstanceParams params = new ServiceInstanceParams("mongo", CLAIMED,
+				"token", "http://localhost", 31500, 1, "128Mi", 1);
+		when(operationStore.get("instance-1")).thenReturn(new ServiceInstanceOperation(
+				new ServiceInstance("instance-1", "mongodb", "gold", "org", "space", null,
+						null).withInstanceParams(params),
+				Type.CREATE, OperationState.IN_PROGRESS, "Creating service instance"));
+		pool.initialize();
+
+		pool.refill();
+
+		verify(k8sService, never()).deleteK8sObjects(argThat(named(CLAIMED)));
+	}
+
+	@Test
+	public void recentClaimIsKept() throws Exception {
+		claimed(Instant.now());
+		pool.initialize();
+
+		pool.refill();
+
+		verify(k8sService, never()).deleteK8sObjects(argThat(named(CLAIMED)));
+	}
+
+	private void claimed(Instant at) throws Exception {
+		ObjectNode statefulSet = new ObjectMapper().createObjectNode();
+		ObjectNode metadata = statefulSet.putObject("metadata");
+		metadata.put("name", CLAIMED);
+		ObjectNode labels = metadata.putObject("labels");
+		labels.put(WarmPool.POOL_LABEL, "claimed");
+		labels.put(WarmPool.PLAN_LABEL, "gold");
+		labels.put(WarmPool.PORT_LABEL, "31500");
+		labels.put(WarmPool.INSTANCE_LABEL, "instance-1");
+		labels.put(WarmPool.CLAIMED_AT_LABEL, String.valueOf(at.getEpochSecond()));
+		when(k8sService.listStatefulSets(any(ServiceInstanceParams.class),
+				eq(claimedLabels()))).thenReturn(Collections.singletonList(statefulSet));
+	}
+
+	private static Map<String, String> claimedLabels() {
+		Map<String, String> labels = new LinkedHashMap<>();
+		labels.put(WarmPool.POOL_LABEL, "claimed");
+		labels.put(WarmPool.PLAN_LABEL, "gold");
+		return labels;
+	}
+
+	private static ArgumentMatcher<ServiceInstanceParams> named(String name) {
+		return new ArgumentMatcher<ServiceInstanceParams>() {
+
+			@Override
+			public boolean matches(Object params) {
+				return params != null
+						&& name.equals(((ServiceInstanceParams) params).getName());
+			}
+
+		};
+	}
+
+}